@@ -19,9 +19,18 @@ package robot;
 
 import java.net.*;
 import java.io.*;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -55,6 +64,17 @@ class OutOfTheTownException extends Exception {
 	private static final long serialVersionUID = -9052627935191392109L;
 }
 
+/**
+ * When a robot can not make a step, because another robot stands there. The
+ * robot stays where it was.
+ * 
+ * @author n
+ * 
+ */
+class CollisionException extends Exception {
+	private static final long serialVersionUID = 2811739450918360357L;
+}
+
 /**
  * Helper functions for a client or a server.
  * 
@@ -444,16 +464,28 @@ class ClientRobot extends TheRobot {
 }
 
 class ServerRobot extends TheRobot {
+	private static final AtomicInteger lastId = new AtomicInteger();
+
 	public boolean[] isProcessorBroken;
 
 	public int stepsWithoutBreak;
 
+	/**
+	 * The town shared with other robots or null, if the robot is alone.
+	 */
+	public Town town;
+	public int id;
+
+	private Random random;
+
 	public ServerRobot() {
 		super();
 
 		this.isProcessorBroken = new boolean[10];
 
 		Random random = new Random();
+		this.random = random;
+		this.id = ServerRobot.newId();
 
 		int min = -17;
 		int max = 17;
@@ -479,18 +511,438 @@ class ServerRobot extends TheRobot {
 			System.exit(1);
 		}
 	}
+
+	public ServerRobot(Town town) {
+		this();
+
+		this.town = town;
+	}
+
+	/**
+	 * Starts the ids from the beginning, no robot may be playing.
+	 */
+	public static void resetIds() {
+		ServerRobot.lastId.set(0);
+	}
+
+	/**
+	 * Gives a new robot id, never Town.EMPTY.
+	 * 
+	 * @return
+	 */
+	private static int newId() {
+		for (;;) {
+			int id = ServerRobot.lastId.incrementAndGet() & Integer.MAX_VALUE;
+
+			if (id != Town.EMPTY) {
+				return id;
+			}
+		}
+	}
+
+	/**
+	 * Puts the robot into the shared town.
+	 * 
+	 * @return false if there is no free cell
+	 */
+	public boolean enterTown() {
+		if (this.town == null) {
+			return true;
+		}
+
+		return this.town.enter(this.id, this.position, this.random);
+	}
+
+	public void leaveTown() {
+		if (this.town != null) {
+			this.town.leave(this.id, this.position.x, this.position.y);
+		}
+	}
+
+	public boolean liftMark() {
+		return this.town == null || this.town.liftMark(this.id);
+	}
+
+	/**
+	 * Makes a step in the town, or alone if there is no town.
+	 * 
+	 * @throws CollisionException
+	 *             if another robot stands there, the robot stays
+	 */
+	public void step() throws OutOfTheTownException, CollisionException {
+		if (this.town == null) {
+			super.makeStep();
+			return;
+		}
+
+		int prevX = this.position.x;
+		int prevY = this.position.y;
+
+		try {
+			super.makeStep();
+		} catch (OutOfTheTownException e) {
+			this.town.leave(this.id, prevX, prevY);
+			throw e;
+		}
+
+		if (!this.town.move(this.id, prevX, prevY, this.position.x,
+				this.position.y)) {
+			this.position.set(prevX, prevY);
+			throw new CollisionException();
+		}
+	}
+}
+
+/**
+ * A town shared by all robots of one server.
+ * 
+ * Every cell of the town holds an id of the robot which stands there (or
+ * EMPTY). A robot claims a cell by CAS before it leaves the old one, so any
+ * number of robots can move at once without a global lock. The mark at (0,0)
+ * can be held only by one robot at a time.
+ * 
+ * The town has CAPACITY cells (37x37, the bounds of the game), so at most
+ * that many robots play in it at once; a robot which comes to a full town is
+ * disconnected before the greeting.
+ * 
+ * @author n
+ * 
+ */
+class Town {
+	public static final int EMPTY = 0;
+
+	private static final int WIDTH = Robot.BOUND_X_MAX - Robot.BOUND_X_MIN + 1;
+	private static final int HEIGHT = Robot.BOUND_Y_MAX - Robot.BOUND_Y_MIN
+			+ 1;
+
+	public static final int CAPACITY = Town.WIDTH * Town.HEIGHT;
+
+	private final AtomicIntegerArray cells;
+	private final AtomicInteger markHolder;
+
+	public Town() {
+		this.cells = new AtomicIntegerArray(Town.CAPACITY);
+		this.markHolder = new AtomicInteger(Town.EMPTY);
+	}
+
+	private static int index(int x, int y) {
+		return (x - Robot.BOUND_X_MIN) * Town.HEIGHT + (y - Robot.BOUND_Y_MIN);
+	}
+
+	/**
+	 * Puts the robot on a free cell. The position is used if it is free,
+	 * otherwise the town is searched from a random cell.
+	 * 
+	 * @param id
+	 * @param position
+	 *            wanted position, is changed to the claimed one
+	 * @param random
+	 * @return false if the town is full
+	 */
+	public boolean enter(int id, Position position, Random random) {
+		if (this.cells.compareAndSet(index(position.x, position.y),
+				Town.EMPTY, id)) {
+			return true;
+		}
+
+		int start = random.nextInt(this.cells.length());
+
+		for (int i = 0; i < this.cells.length(); i += 1) {
+			int cell = (start + i) % this.cells.length();
+
+			if (this.cells.compareAndSet(cell, Town.EMPTY, id)) {
+				position.set(cell / Town.HEIGHT + Robot.BOUND_X_MIN, cell
+						% Town.HEIGHT + Robot.BOUND_Y_MIN);
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Moves the robot from one cell to another one.
+	 * 
+	 * @return false if the target cell is occupied
+	 */
+	public boolean move(int id, int fromX, int fromY, int toX, int toY) {
+		if (!this.cells.compareAndSet(index(toX, toY), Town.EMPTY, id)) {
+			return false;
+		}
+
+		this.cells.compareAndSet(index(fromX, fromY), id, Town.EMPTY);
+		return true;
+	}
+
+	/**
+	 * Frees the cell and the mark, if the robot holds them.
+	 */
+	public void leave(int id, int x, int y) {
+		if (x >= Robot.BOUND_X_MIN && x <= Robot.BOUND_X_MAX
+				&& y >= Robot.BOUND_Y_MIN && y <= Robot.BOUND_Y_MAX) {
+			this.cells.compareAndSet(index(x, y), id, Town.EMPTY);
+		}
+
+		this.markHolder.compareAndSet(id, Town.EMPTY);
+	}
+
+	/**
+	 * @return true if the robot got the mark
+	 */
+	public boolean liftMark(int id) {
+		return this.markHolder.compareAndSet(Town.EMPTY, id)
+				|| this.markHolder.get() == id;
+	}
+}
+
+/**
+ * Read-only feed of robot movements and game outcomes for spectators.
+ * 
+ * Every event is packed into one long and published into a broadcast ring.
+ * Game threads only claim a slot and write it, they never wait for anybody.
+ * Every spectator reads the ring with his own cursor, a spectator which is
+ * too slow is lapped by the writers and skips ahead to the live events.
+ * 
+ * @author n
+ * 
+ */
+class SpectatorFeed {
+	public static final String OPTION = "spectators=";
+
+	public static final int EVENT_MOVE = 1;
+	public static final int EVENT_OUTCOME = 2;
+
+	private static final int CAPACITY = 1 << 14;
+	private static final int MASK = SpectatorFeed.CAPACITY - 1;
+
+	/**
+	 * Marks a slot which is empty or being written.
+	 */
+	private static final long BUSY = -1;
+
+	private static final long PARK_NANOS = 1_000_000;
+
+	private final AtomicLong cursor;
+	private final AtomicLongArray sequences;
+	private final AtomicLongArray events;
+
+	private ServerSocket serverSocket;
+
+	public SpectatorFeed() {
+		this.cursor = new AtomicLong();
+		this.sequences = new AtomicLongArray(SpectatorFeed.CAPACITY);
+		this.events = new AtomicLongArray(SpectatorFeed.CAPACITY);
+
+		for (int i = 0; i < SpectatorFeed.CAPACITY; i += 1) {
+			this.sequences.set(i, SpectatorFeed.BUSY);
+		}
+	}
+
+	/**
+	 * Creates the feed and starts accepting spectators on the port.
+	 * 
+	 * @param port
+	 * @throws IOException
+	 */
+	public SpectatorFeed(int port) throws IOException {
+		this();
+
+		this.serverSocket = new ServerSocket(port);
+
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				SpectatorFeed.this.accept();
+			}
+		}, "spectator-acceptor");
+
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Publishes a position and a direction of the robot.
+	 */
+	public void move(int id, Position position, TheRobot.DIRECTIONS direction) {
+		// @formatter:off
+		this.publish((long) SpectatorFeed.EVENT_MOVE << 60 |
+				     ((long) id & 0x7FFFFFFF) << 29 |
+				     ((long) position.x & 0xFF) << 21 |
+				     ((long) position.y & 0xFF) << 13 |
+				     ((long) direction.ordinal() & 0x07) << 10);
+		// @formatter:on
+	}
+
+	/**
+	 * Publishes the last response code of a finished game.
+	 */
+	public void outcome(int id, int code) {
+		// @formatter:off
+		this.publish((long) SpectatorFeed.EVENT_OUTCOME << 60 |
+				     ((long) id & 0x7FFFFFFF) << 29 |
+				     ((long) code & 0x3FF));
+		// @formatter:on
+	}
+
+	private void publish(long event) {
+		long sequence = this.cursor.getAndIncrement();
+		int slot = (int) (sequence & SpectatorFeed.MASK);
+
+		this.sequences.set(slot, SpectatorFeed.BUSY);
+		this.events.set(slot, event);
+		this.sequences.set(slot, sequence);
+	}
+
+	public static String format(long event) {
+		int id = (int) (event >>> 29) & 0x7FFFFFFF;
+
+		switch ((int) (event >>> 60)) {
+		case SpectatorFeed.EVENT_MOVE:
+			int x = (byte) (event >>> 21);
+			int y = (byte) (event >>> 13);
+			int direction = (int) (event >>> 10) & 0x07;
+
+			return "ROBOT " + id + " (" + x + "," + y + ") "
+					+ TheRobot.DIRECTIONS.values()[direction];
+		case SpectatorFeed.EVENT_OUTCOME:
+			return "GAME " + id + " " + (event & 0x3FF);
+		default:
+			return "UNKNOWN " + Long.toHexString(event);
+		}
+	}
+
+	private void accept() {
+		try {
+			for (;;) {
+				final Socket spectator = this.serverSocket.accept();
+
+				Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						SpectatorFeed.this.watch(spectator);
+					}
+				}, "spectator");
+
+				thread.setDaemon(true);
+				thread.start();
+			}
+		} catch (IOException e) {
+			System.err.println("Spectator feed has stopped accepting.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Sends the events to one spectator until he disconnects.
+	 * 
+	 * @param spectator
+	 */
+	private void watch(Socket spectator) {
+		try {
+			PrintWriter out = new PrintWriter(new BufferedOutputStream(
+					spectator.getOutputStream()));
+
+			long next = this.cursor.get();
+
+			while (!out.checkError()) {
+				int slot = (int) (next & SpectatorFeed.MASK);
+				long sequence = this.sequences.get(slot);
+
+				if (sequence == next) {
+					long event = this.events.get(slot);
+
+					if (this.sequences.get(slot) == next) {
+						out.print(SpectatorFeed.format(event) + "\r\n");
+						next += 1;
+						continue;
+					}
+				}
+
+				long head = this.cursor.get();
+
+				if (sequence > next || head - next > SpectatorFeed.CAPACITY) {
+					/* lapped by the writers, skip to the live events */
+					out.print("SKIPPED " + (head - next) + "\r\n");
+					next = head;
+					continue;
+				}
+
+				out.flush();
+				LockSupport.parkNanos(SpectatorFeed.PARK_NANOS);
+			}
+		} catch (IOException e) {
+			System.err.println("Spectator has failed.");
+		} finally {
+			try {
+				spectator.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
 }
 
 class SalesWoman extends NetUtils implements Runnable {
 	private Socket socket;
+	private InputStream input;
+	private OutputStream output;
 	private ServerRobot robot;
 	private String message;
 
+	/**
+	 * Feed for spectators or null.
+	 */
+	private SpectatorFeed feed;
+
+	/**
+	 * The code of the response which has ended the game.
+	 */
+	private int outcome;
+
+	/**
+	 * Messages read in the game.
+	 */
+	public int messages;
+
 	public SalesWoman(Socket socket) {
+		this(socket, null, null);
+	}
+
+	public SalesWoman(Socket socket, Town town, SpectatorFeed feed) {
 		this.socket = socket;
+		this.robot = new ServerRobot(town);
+		this.feed = feed;
+	}
+
+	/**
+	 * Game without a socket, e.g. for a warm-up.
+	 * 
+	 * @param input
+	 * @param output
+	 */
+	public SalesWoman(InputStream input, OutputStream output) {
+		this.input = input;
+		this.output = output;
 		this.robot = new ServerRobot();
 	}
 
+	private void publishMove() {
+		if (this.feed != null) {
+			this.feed.move(this.robot.id, this.robot.position,
+					this.robot.direction);
+		}
+	}
+
+	/**
+	 * Sends the response which ends the game.
+	 * 
+	 * @param response
+	 */
+	private void finish(String response) {
+		super.sendMessage(response);
+		this.outcome = NetUtils.parseCode(response);
+	}
+
 	@Override
 	public void run() {
 		
@@ -498,14 +950,28 @@ class SalesWoman extends NetUtils implements Runnable {
 		
 		try {
 			try {
-				this.out = new PrintWriter(this.socket.getOutputStream(), true);
-				this.in = new BufferedInputStream(this.socket.getInputStream());
+				if (this.socket != null) {
+					this.input = this.socket.getInputStream();
+					this.output = this.socket.getOutputStream();
+				}
+
+				this.out = new PrintWriter(this.output, true);
+				this.in = new BufferedInputStream(this.input);
 			} catch (IOException e) {
 				System.err.println("Couldn't get I/O.");
 				e.printStackTrace();
 				System.exit(1);
 			}
 
+			if (!this.robot.enterTown()) {
+				/* no response code means "full", the robot is turned away */
+				System.err.println("The town is full (" + Town.CAPACITY
+						+ " robots), a robot has been turned away.");
+				return;
+			}
+
+			this.publishMove();
+
 			this.sendMessage("210 Ahoj, tady robot verze 0.00. Oslovuj mne nesrotom.");
 
 			int redadedMessages = 0;
@@ -529,7 +995,7 @@ class SalesWoman extends NetUtils implements Runnable {
 
 					for (int it = 0; it < 9; it += 1) {
 						if (this.robot.isProcessorBroken[it] == true) {
-							super.sendMessage(Robot.RESPONSE_NOT_FIXED_PROCCESOR);
+							this.finish(Robot.RESPONSE_NOT_FIXED_PROCCESOR);
 							isBroken = true;
 							break;
 						}
@@ -553,25 +1019,33 @@ class SalesWoman extends NetUtils implements Runnable {
 					}
 
 					try {
-						this.robot.makeStep();
+						this.robot.step();
+					} catch (CollisionException e) {
+						/* the robot has not moved, it is not a step */
+						this.robot.stepsWithoutBreak -= 1;
+						super.sendMessage(Robot.RESPONSE_COLLISION);
+						break;
 					} catch (OutOfTheTownException e) {
-						super.sendMessage(Robot.RESPONSE_OUT_OF_THE_TOWN);
+						this.finish(Robot.RESPONSE_OUT_OF_THE_TOWN);
 						stop = true;
 						break;
 					}
 
+					this.publishMove();
 					super.sendMessage("240 OK " + this.robot.position);
 					break;
 				case LEFT:
 					this.robot.turnLeft();
+					this.publishMove();
 					super.sendMessage(Robot.RESPONSE_OK + this.robot.position);
 					break;
 				case LIFT:
-					if (this.robot.position.equals(Robot.POSITION_ORIGIN)) {
-						super.sendMessage(Robot.RESPONSE_SUCCESS
+					if (this.robot.position.equals(Robot.POSITION_ORIGIN)
+							&& this.robot.liftMark()) {
+						this.finish(Robot.RESPONSE_SUCCESS
 								+ Robot.SUCCESS_MESSAGE);
 					} else {
-						super.sendMessage(Robot.RESPONSE_NOT_ON_THE_MARK);
+						this.finish(Robot.RESPONSE_NOT_ON_THE_MARK);
 					}
 
 					stop = true;
@@ -599,7 +1073,7 @@ class SalesWoman extends NetUtils implements Runnable {
 						this.robot.isProcessorBroken[processorId] = false;
 						super.sendMessage("240 OK " + this.robot.position);
 					} else {
-						super.sendMessage(Robot.RESPONSE_BAD_REPAIR);
+						this.finish(Robot.RESPONSE_BAD_REPAIR);
 						stop = true;
 					}
 
@@ -612,10 +1086,17 @@ class SalesWoman extends NetUtils implements Runnable {
 				}
 			}
 
+			this.messages = redadedMessages;
 		} catch (Exception e) {
 			e.printStackTrace();
 			System.exit(1);
 		} finally {
+			this.robot.leaveTown();
+
+			if (this.feed != null) {
+				this.feed.outcome(this.robot.id, this.outcome);
+			}
+
 			try {
 				if (this.socket != null) {
 					this.socket.close();
@@ -631,6 +1112,282 @@ class SalesWoman extends NetUtils implements Runnable {
 	}
 }
 
+/**
+ * Plays synthetic games in process before the server opens its socket, so the
+ * hot paths (reading messages, parsing commands, the game loop and the
+ * responses) are compiled by the JIT before the first real robot comes.
+ * 
+ * @author n
+ * 
+ */
+class Warmup {
+	public static final String OPTION = "warmup=";
+
+	private static final String NAME = "nesrotom ";
+	private static final long REPORT_NANOS = 1_000_000_000L;
+
+	/**
+	 * How many games to play, or zero when the warm-up is limited by time.
+	 */
+	private final long games;
+
+	/**
+	 * How long to play, or zero when the warm-up is limited by games.
+	 */
+	private final long nanos;
+
+	private final byte[][] scripts;
+
+	public Warmup(long games, long nanos) {
+		this.games = games;
+		this.nanos = nanos;
+
+		this.scripts = new byte[2][];
+
+		/* the robot goes around a square, so he never leaves the town */
+		List<String> lines = new ArrayList<String>();
+
+		for (int i = 0; i < 8; i += 1) {
+			lines.add(Warmup.NAME + "KROK");
+			lines.add(Warmup.NAME + "VLEVO");
+		}
+
+		lines.add(Warmup.NAME + "SKAKEJ");
+		lines.add(Warmup.NAME + "TOHLE JE MOC DLOUHA ZPRAVA PRO ROBOTA");
+		lines.add(Warmup.NAME + "ZVEDNI");
+		this.setScript(0, lines);
+
+		/* the tenth step breaks a processor and the next one the robot */
+		lines.clear();
+
+		for (int i = 0; i < 11; i += 1) {
+			lines.add(Warmup.NAME + "KROK");
+			lines.add(Warmup.NAME + "VLEVO");
+		}
+
+		this.setScript(1, lines);
+	}
+
+	private void setScript(int index, List<String> lines) {
+		StringBuilder stringBuilder = new StringBuilder();
+
+		for (String line : lines) {
+			stringBuilder.append(line).append("\r\n");
+		}
+
+		this.scripts[index] = stringBuilder.toString().getBytes();
+	}
+
+	/**
+	 * @param option
+	 *            'warmup=N' for N games or 'warmup=Nms' for N milliseconds
+	 * @return
+	 */
+	public static Warmup parse(String option) {
+		String value = option.substring(Warmup.OPTION.length());
+
+		if (value.endsWith("ms")) {
+			return new Warmup(0, Long.parseLong(value.substring(0,
+					value.length() - 2)) * 1_000_000L);
+		}
+
+		return new Warmup(Long.parseLong(value), 0);
+	}
+
+	/**
+	 * Plays one game from a script, the responses are thrown away.
+	 * 
+	 * @return number of messages the game has read, it may end before the
+	 *         script does
+	 */
+	public int play(int script) {
+		SalesWoman game = new SalesWoman(new ByteArrayInputStream(
+				this.scripts[script]), OutputStream.nullOutputStream());
+
+		game.run();
+
+		return game.messages;
+	}
+
+	public void run() {
+		CompilationMXBean jit = ManagementFactory.getCompilationMXBean();
+		boolean jitTime = jit != null
+				&& jit.isCompilationTimeMonitoringSupported();
+
+		long start = System.nanoTime();
+		long lastReport = start;
+		long played = 0;
+		long messages = 0;
+		long lastMessages = 0;
+
+		System.out.println("Warm-up has started.");
+
+		for (;;) {
+			long now = System.nanoTime();
+
+			if (this.games > 0 ? played >= this.games
+					: now - start >= this.nanos) {
+				break;
+			}
+
+			if (now - lastReport >= Warmup.REPORT_NANOS) {
+				System.out.println("Warm-up: games=" + played + ", messages/s="
+						+ (messages - lastMessages) * 1_000_000_000L
+						/ (now - lastReport) + ", jit="
+						+ (jitTime ? jit.getTotalCompilationTime() + " ms"
+								: "unknown"));
+				lastReport = now;
+				lastMessages = messages;
+			}
+
+			messages += this.play((int) (played & 1));
+			played += 1;
+		}
+
+		long time = Math.max(System.nanoTime() - start, 1);
+
+		System.out.println("Warm-up has ended:\n" + "  games = " + played
+				+ "\n  messages = " + messages + "\n  time = " + time
+				/ 1_000_000L + " ms\n  messages/s = " + messages
+				* 1_000_000_000L / time + "\n  jit = "
+				+ (jitTime ? jit.getTotalCompilationTime() + " ms" : "unknown")
+				+ "\n");
+
+		/* the real robots are counted from the first one again */
+		ServerRobot.resetIds();
+	}
+}
+
+/**
+ * Drives messages through the command loop of the SalesWoman in process and
+ * checks how many bytes the loop allocates per message.
+ * 
+ * @author n
+ * 
+ */
+class AllocationBudget {
+
+	/**
+	 * Allowed allocation of a message in the command loop. On JDK 17 it was
+	 * 434 bytes with C2, 530 without escape analysis (C1 only or the
+	 * interpreter) and 727 with uncompressed pointers as well, so the budget
+	 * holds on any JIT. The target is zero; lower it when the loop allocates
+	 * less.
+	 */
+	public static final long SALES_WOMAN_BYTES_PER_MESSAGE = 1024;
+
+	/**
+	 * Allowed allocation of a game without messages (the SalesWoman, her
+	 * robot and her streams), 34432 to 35072 bytes in the same settings.
+	 */
+	public static final long SALES_WOMAN_BYTES_PER_GAME = 49_152;
+
+	public static final int WARMUP_GAMES = 2_000;
+	public static final int MEASURED_GAMES = 200;
+
+	/**
+	 * The lowest of this many measurements counts, a compilation which
+	 * finishes during one does not.
+	 */
+	public static final int ROUNDS = 3;
+
+	/**
+	 * One game of Robot.MAX_MESSAGES messages. The robot goes around a square
+	 * and does not step more than nine times, so nothing breaks.
+	 */
+	public static byte[] game() {
+		StringBuilder stringBuilder = new StringBuilder();
+
+		for (int i = 0; i < Robot.MAX_MESSAGES; i += 1) {
+			if (i < 16) {
+				stringBuilder.append(i % 2 == 0 ? "nesrotom KROK\r\n"
+						: "nesrotom VLEVO\r\n");
+			} else if (i % 3 == 0) {
+				stringBuilder.append("nesrotom SKAKEJ\r\n");
+			} else {
+				stringBuilder.append("nesrotom VLEVO\r\n");
+			}
+		}
+
+		return stringBuilder.toString().getBytes();
+	}
+
+	/**
+	 * @return messages the game has read
+	 */
+	private static int play(byte[] game) {
+		SalesWoman salesWoman = new SalesWoman(new ByteArrayInputStream(game),
+				OutputStream.nullOutputStream());
+
+		salesWoman.run();
+
+		return salesWoman.messages;
+	}
+
+	/**
+	 * @return true if the budget holds
+	 */
+	public static boolean test() {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		byte[] game = AllocationBudget.game();
+
+		byte[] empty = new byte[0];
+
+		for (int i = 0; i < AllocationBudget.WARMUP_GAMES; i += 1) {
+			AllocationBudget.play(game);
+			AllocationBudget.play(empty);
+		}
+
+		long perGame = Long.MAX_VALUE;
+		long perMessage = Long.MAX_VALUE;
+
+		for (int round = 0; round < AllocationBudget.ROUNDS; round += 1) {
+			long before = threads.getThreadAllocatedBytes(threadId);
+
+			for (int i = 0; i < AllocationBudget.MEASURED_GAMES; i += 1) {
+				AllocationBudget.play(empty);
+			}
+
+			long gameBytes = (threads.getThreadAllocatedBytes(threadId) - before)
+					/ AllocationBudget.MEASURED_GAMES;
+
+			before = threads.getThreadAllocatedBytes(threadId);
+
+			for (int i = 0; i < AllocationBudget.MEASURED_GAMES; i += 1) {
+				if (AllocationBudget.play(game) != Robot.MAX_MESSAGES) {
+					System.err
+							.println("SalesWoman has not read the whole game!");
+					return false;
+				}
+			}
+
+			perMessage = Math.min(perMessage,
+					(threads.getThreadAllocatedBytes(threadId) - before
+							- gameBytes * AllocationBudget.MEASURED_GAMES)
+							/ ((long) AllocationBudget.MEASURED_GAMES * Robot.MAX_MESSAGES));
+			perGame = Math.min(perGame, gameBytes);
+		}
+
+		System.out.println("SalesWoman allocates " + perGame
+				+ " bytes per game, budget is "
+				+ AllocationBudget.SALES_WOMAN_BYTES_PER_GAME + ".");
+		System.out.println("SalesWoman allocates " + perMessage
+				+ " bytes per message, budget is "
+				+ AllocationBudget.SALES_WOMAN_BYTES_PER_MESSAGE + ".");
+
+		if (perGame > AllocationBudget.SALES_WOMAN_BYTES_PER_GAME
+				|| perMessage > AllocationBudget.SALES_WOMAN_BYTES_PER_MESSAGE) {
+			System.err
+					.println("SalesWoman has exceeded its allocation budget!");
+			return false;
+		}
+
+		return true;
+	}
+}
+
 class Server  {
 	private final int NUMBER_OF_THREADS = 2;
 
@@ -638,12 +1395,31 @@ class Server  {
 	private final ExecutorService pool;
 
 	public Server(int port) throws IOException {
+		this(port, null, null);
+	}
+
+	/**
+	 * @param port
+	 * @param town
+	 *            town shared by all robots or null, if every robot is alone
+	 * @param feed
+	 *            feed for spectators or null
+	 * @throws IOException
+	 */
+	public Server(int port, Town town, SpectatorFeed feed) throws IOException {
 		this.serverSocket = new ServerSocket(port);
-		this.pool = Executors.newFixedThreadPool(this.NUMBER_OF_THREADS);
+
+		if (town == null) {
+			this.pool = Executors.newFixedThreadPool(this.NUMBER_OF_THREADS);
+		} else {
+			/* robots in the town play at once, one thread for each */
+			this.pool = Executors.newCachedThreadPool();
+		}
 
 		try {
 			for (;;) {
-				pool.execute(new SalesWoman(serverSocket.accept()));
+				pool.execute(new SalesWoman(serverSocket.accept(), town,
+						feed));
 			}
 		} catch (IOException e) {
 			pool.shutdown();
@@ -656,12 +1432,22 @@ class Client extends NetUtils {
 
 	private static final String NONE_COMMAND = "NONE_COMMAND";
 
+	/**
+	 * Collisions in a row before the client gives up, two robots facing each
+	 * other would otherwise wait forever.
+	 */
+	public static final int MAX_COLLISIONS = 10;
+	public static final long COLLISION_BACKOFF_MILLIS = 10;
+	public static final long MAX_COLLISION_BACKOFF_MILLIS = 1_000;
+
 	private Socket echoSocket;
 	private String message;
 	private int port;
 	private String servername;
 	private ClientRobot robot;
 	private String lastCommand = NONE_COMMAND;
+	private int collisions;
+	private final Random random = new Random();
 
 	public boolean success;
 
@@ -688,6 +1474,8 @@ class Client extends NetUtils {
 				super.sendMessage(this.robot.name + " VLEVO");
 				break;
 			case 240:
+				this.collisions = 0;
+
 				if (this.robot.afterCrash) {
 					this.robot.afterCrash = false;
 					this.sendCommand(this.lastCommand);
@@ -699,6 +1487,16 @@ class Client extends NetUtils {
 			case 260:
 				System.out.println("Message: " + message);
 				return true;
+			case 540:
+				/* another robot is in the way, wait for him to go away */
+				if (!this.backOff()) {
+					System.err.println("The robot has collided "
+							+ this.collisions + " times in a row, giving up.");
+					return false;
+				}
+
+				this.sendCommand(this.lastCommand);
+				break;
 			case 580:
 				this.robot.afterCrash = true;
 				this.sendMessage(this.robot.name + " OPRAVIT "
@@ -742,6 +1540,31 @@ class Client extends NetUtils {
 		echoSocket.close();
 	}
 
+	/**
+	 * Waits a random time, up to twice as long after every collision.
+	 * 
+	 * @return false if the robot should give up
+	 */
+	private boolean backOff() {
+		this.collisions += 1;
+
+		if (this.collisions > Client.MAX_COLLISIONS) {
+			return false;
+		}
+
+		long limit = Math.min(Client.MAX_COLLISION_BACKOFF_MILLIS,
+				Client.COLLISION_BACKOFF_MILLIS << (this.collisions - 1));
+
+		try {
+			Thread.sleep(1 + (long) (this.random.nextDouble() * limit));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+
+		return true;
+	}
+
 	private String getProcessorID(String message) {
 		String[] tokens = message.split(" ");
 
@@ -766,6 +1589,7 @@ public class Robot {
 	public final static String RESPONSE_SUCCESS = "260 USPECH ";
 	public final static String RESPONSE_UNKNOWN_COMMAND = "500 NEZNAMY PRIKAZ";
 	public final static String RESPONSE_OUT_OF_THE_TOWN = "530 HAVARIE";
+	public final static String RESPONSE_COLLISION = "540 SRAZKA S ROBOTEM";
 	public final static String RESPONSE_NOT_ON_THE_MARK = "550 NELZE ZVEDNOUT ZNACKU";
 	public final static String RESPONSE_BAD_REPAIR = "571 PROCESOR FUNGUJE";
 	public final static String RESPONSE_NOT_FIXED_PROCCESOR = "572 ROBOT SE ROZPADL";
@@ -773,6 +1597,7 @@ public class Robot {
 	public final static int CODE_NAME = 210;
 	public final static int CODE_OK = 240;
 	public final static int CODE_SUCCESS = 260;
+	public final static int CODE_COLLISION = 540;
 
 	public static enum COMMANDS {
 		STEP, LEFT, LIFT, REPAIR, UNKNOWN
@@ -796,12 +1621,69 @@ public class Robot {
 	public static final int MAX_MESSAGE_LENGHT = 1_000_000_000;
 	public static final int MAX_MESSAGES = 1_000;
 
+	/**
+	 * Warms up the JIT (if asked) and starts the server, with a spectator
+	 * feed if it has a port.
+	 * 
+	 * @param spectatorPort
+	 *            port of the feed or -1
+	 */
+	private static void serve(int port, Town town, Warmup warmup,
+			int spectatorPort) throws IOException {
+		if (warmup != null) {
+			warmup.run();
+		}
+
+		SpectatorFeed feed = null;
+
+		if (spectatorPort >= 0) {
+			feed = new SpectatorFeed(spectatorPort);
+			System.out.println("Spectators connect to port " + spectatorPort
+					+ ".");
+		}
+
+		new Server(port, town, feed);
+	}
+
 	public static void main(String[] args) throws IOException {
+		Warmup warmup = null;
+		int spectatorPort = -1;
+		List<String> rest = new ArrayList<String>();
+
+		for (String arg : args) {
+			if (arg.startsWith(Warmup.OPTION)) {
+				warmup = Warmup.parse(arg);
+			} else if (arg.startsWith(SpectatorFeed.OPTION)) {
+				spectatorPort = Integer.parseInt(arg
+						.substring(SpectatorFeed.OPTION.length()));
+			} else {
+				rest.add(arg);
+			}
+		}
+
+		args = rest.toArray(new String[rest.size()]);
 
 		if (args.length == 0) {
 			System.err.println("Client: java robot.Robot <hostname> <port>");
 			System.err.println("Server: java robot.Robot <port>");
+			System.err.println("Shared town: java robot.Robot town [port]");
+			System.err.println("Self tests: java robot.Robot test");
+			System.err.println("Servers take spectators=<port> to open a "
+					+ "feed of the moves for spectators.");
+			System.err.println("Servers take warmup=<games> or "
+					+ "warmup=<milliseconds>ms to warm up the JIT.");
 			System.exit(1);
+		} else if (args[0].equals("town")) {
+			int port = Robot.LOCALHOST_PORT;
+
+			if (args.length > 1) {
+				port = Integer.parseInt(args[1]);
+			}
+
+			System.out.println("Starting a server with a shared town of "
+					+ Town.CAPACITY + " cells.\n");
+
+			Robot.serve(port, new Town(), warmup, spectatorPort);
 		} else if (args.length == 1) {
 			if (args[0].equals("baryk")) {
 				int success = 0;
@@ -837,6 +1719,14 @@ public class Robot {
 						+ " seconds\n");
 
 				ClientRobot.test_parseName();
+				return;
+			} else if (args[0].equals("test")) {
+				ClientRobot.test_parseName();
+
+				if (!AllocationBudget.test()) {
+					System.exit(1);
+				}
+
 				return;
 			} else if (args[0].equals("client")) {
 				System.out.println("Testing the client for localhost.\n");
@@ -852,7 +1742,7 @@ public class Robot {
 			} else if (args[0].equals("server")) {
 				System.out.println("Testing the server for localhost.\n");
 
-				Server server = new Server(Robot.LOCALHOST_PORT);
+				Robot.serve(Robot.LOCALHOST_PORT, null, warmup, spectatorPort);
 //
 //				Thread serverThread = new Thread(server);
 //				serverThread.start();
@@ -861,7 +1751,7 @@ public class Robot {
 			} else {
 				int port = Integer.parseInt(args[0]);
 				System.out.println("jo");
-				Server server = new Server(port);
+				Robot.serve(port, null, warmup, spectatorPort);
 			}
 		} else {
 			Client client = new Client(Integer.parseInt(args[1]), args[0]);
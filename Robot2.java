@@ -8,24 +8,82 @@ package robot;
 
 /******************************************************************************/
 
+import com.sun.management.ThreadMXBean;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.sql.Struct;
+import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Frequency;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.Recording;
+import jdk.jfr.SettingControl;
+import jdk.jfr.SettingDefinition;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
 
 /******************************************************************************/
 
@@ -115,6 +173,18 @@ class Utils {
 		// @formatter:on
 	}
 
+	/**
+	 * Extends a 16-bit sequence number to a 64-bit offset, the one which is
+	 * the nearest to the expected offset (serial-number arithmetic).
+	 * 
+	 * @param seq
+	 * @param expected
+	 * @return
+	 */
+	public static long unwrapSeq(short seq, long expected) {
+		return expected + (short) (seq - (short) expected);
+	}
+
 	/**************************************************************************/
 
 	public static void test() {
@@ -153,6 +223,21 @@ class Utils {
 
 		/**********************************************************************/
 
+		long[][] testSeqs = { { 0, 0 }, { 65_535, 65_280 }, { 65_536, 65_280 },
+				{ 65_790, 65_535 }, { 130_050, 131_070 }, { 1_000_000, 999_000 } };
+
+		for (long[] test : testSeqs) {
+			if (test[0] != unwrapSeq((short) test[0], test[1])) {
+				fail += 1;
+				System.err.println("seq->unwrap, where seq=" + test[0]
+						+ ", has failed!");
+			} else {
+				ok += 1;
+			}
+		}
+
+		/**********************************************************************/
+
 		System.out.println("Test has ended with: ok=" + ok + ",fails=" + fail);
 
 	}
@@ -160,143 +245,193 @@ class Utils {
 
 /******************************************************************************/
 
-class Packet {
-
-	public final static int HEADER_SIZE = 9;
-	public final static int MAX_DATA_LENGTH = 255;
+/**
+ * Leveled asynchronous trace of the UDP transfers.
+ * 
+ * A record has a fixed size (event, level, connId, seq, ack, flags, length
+ * and a timestamp) and is packed into three longs of a preallocated ring. The
+ * transfer only writes the longs, a background drainer formats and prints
+ * them. When the drainer can not keep up, new records are dropped and
+ * counted, the transfer never waits. Every level is a constant, fixed when
+ * the class is loaded, so the JIT drops a disabled level. DEBUG and TRACE are
+ * off unless --log=debug or --log=trace (-Drobot.log=...) asks for them,
+ * --log=off leaves only the errors.
+ */
+class Log {
+
+	public static final String PROPERTY = "robot.log";
+
+	public static final boolean ERROR = true;
+	public static final boolean INFO = !"off".equals(System
+			.getProperty(Log.PROPERTY));
+	public static final boolean TRACE = "trace".equals(System
+			.getProperty(Log.PROPERTY));
+	public static final boolean DEBUG = Log.TRACE
+			|| "debug".equals(System.getProperty(Log.PROPERTY));
+
+	public static final int LEVEL_ERROR = 0;
+	public static final int LEVEL_INFO = 1;
+	public static final int LEVEL_DEBUG = 2;
+	public static final int LEVEL_TRACE = 3;
+
+	public static final int EVENT_SEND = 1;
+	public static final int EVENT_RECV = 2;
+	public static final int EVENT_TIMEOUT = 3;
+	public static final int EVENT_SYN_TIMEOUT = 4;
+	public static final int EVENT_CONNECTED = 5;
+	public static final int EVENT_WRONG_CONN = 6;
+	public static final int EVENT_FIN = 7;
+	public static final int EVENT_IN_ORDER = 8;
+	public static final int EVENT_OUT_OF_ORDER = 9;
+	public static final int EVENT_DUPLICATE = 10;
+	public static final int EVENT_REASSEMBLED = 11;
+	public static final int EVENT_WRITE = 12;
+	public static final int EVENT_OUT_OF_WINDOW = 13;
+	public static final int EVENT_MALFORMED = 14;
+
+	private static final String[] LEVEL_NAMES = { "ERROR", "INFO ", "DEBUG",
+			"TRACE" };
+
+	private static final String[] EVENT_NAMES = { "?", "SEND", "RECV",
+			"TIMEOUT", "SYN_TIMEOUT", "CONNECTED", "WRONG_CONN", "FIN",
+			"IN_ORDER", "OUT_OF_ORDER", "DUPLICATE", "REASSEMBLED", "WRITE",
+			"OUT_OF_WINDOW", "MALFORMED" };
+
+	private static final int RECORD_SIZE = 3;
+	private static final int CAPACITY = 1 << 16;
+	private static final int MASK = Log.CAPACITY - 1;
+
+	private static final long PARK_NANOS = 1_000_000;
+	private static final long FLUSH_TIMEOUT_NANOS = 1_000_000_000L;
+
+	private static final long START = System.nanoTime();
+
+	private static final long[] records = new long[Log.CAPACITY
+			* Log.RECORD_SIZE];
+	private static final AtomicLongArray sequences = new AtomicLongArray(
+			Log.CAPACITY);
+	private static final AtomicLong head = new AtomicLong();
+	private static final AtomicLong dropped = new AtomicLong();
 
 	/**
-	 * Flag byte are zero bits.
+	 * The next record for the drainer, written only by the drainer.
 	 */
-	public final static byte FLAG_NONE = 0x00;
+	private static volatile long tail;
 
-	/**
-	 * Otevření nového spojení. Posílá klient i server (pouze) na začátku v
-	 * prvním paketu. V datové části musí být právě 1 byte s kódem příkazu.
-	 */
-	public final static byte FLAG_SYN = 0x04;
+	private static final PrintStream out = new PrintStream(
+			new BufferedOutputStream(System.out, 1 << 16), false);
+
+	static {
+		for (int i = 0; i < Log.CAPACITY; i += 1) {
+			Log.sequences.set(i, -1);
+		}
+
+		Thread drainer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Log.drain();
+			}
+		}, "log-drainer");
+
+		drainer.setDaemon(true);
+		drainer.start();
+	}
 
 	/**
-	 * Ukončení spojení. Posílá klient i server, pokud již nemají žádná další
-	 * data k odeslání. Paket s nastaveným příznakem FIN již nemůže obsahovat
-	 * žádná data. Ukončení spojení nelze odvolat. Oba směry spojení se
-	 * uzavírají zvlášť. Sekvenční číslo se po odeslání FIN již nesmí zvětšit.
+	 * Writes a record of a packet.
 	 */
-	public final static byte FLAG_FIN = 0x02;
+	public static void packet(int level, int event, Packet packet) {
+		Log.record(level, event, packet.connId, packet.seqNum, packet.ackNum,
+				packet.flags, packet.data == null ? 0 : packet.data.length);
+	}
 
 	/**
-	 * Zrušení spojení kvůli chybě. Posílá klient i server v případě detekování
-	 * logické chyby v hodnotách v hlavičce. Např. přijatý paket neobsahuje
-	 * příznak SYN a ID spojení není evidováno. Nebo je hodnota potvrzovacího
-	 * čísla menší, než byla v posledním přijatém paketu (klesá). Pozor na
-	 * přetečení sekvenčních a potvrzovacích čísel. Žádná z komunikujících stran
-	 * po odeslání paketu s příznakem RST již dále neukončuje spojení
-	 * standardním způsobem - spojení je přenosem paketu s příznakem RST
-	 * definitivně ukončeno.
+	 * Writes a record of a received datagram.
 	 */
-	public final static byte FLAG_RST = 0x01;
-
-	/**************************************************************************/
+	public static void packet(int level, int event, PacketView packet) {
+		if (packet.dataLength() < 0) {
+			/* not even a header, the length is the size of the datagram */
+			Log.record(level, event, 0, 0, 0, 0, packet.dataLength()
+					+ Packet.HEADER_SIZE);
+			return;
+		}
 
-	public int connId;
-	public short seqNum;
-	public short ackNum;
-	public byte flags;
-	public byte data[];
-	public long time;
+		Log.record(level, event, packet.connId(), packet.seqNum(),
+				packet.ackNum(), packet.flags(), packet.dataLength());
+	}
 
-	
-	
-	/**************************************************************************/
+	/**
+	 * Writes a record, or drops it if the ring is full.
+	 */
+	public static void record(int level, int event, int connId, int seq,
+			int ack, int flags, long length) {
+		long sequence;
 
-	public Packet(int connId, short seqNum, short ackNum, byte flags,
-			byte data[]) {
-		this.connId = connId;
-		this.seqNum = seqNum;
-		this.ackNum = ackNum;
-		this.flags = flags;
+		do {
+			sequence = Log.head.get();
 
-		if (data == null) {
-			this.data = new byte[0];
-		} else {
-			this.data = data;
-		}
-	}
+			if (sequence - Log.tail >= Log.CAPACITY) {
+				Log.dropped.incrementAndGet();
+				return;
+			}
+		} while (!Log.head.compareAndSet(sequence, sequence + 1));
 
-	public Packet(byte[] byteArray, int size) {
+		int slot = (int) (sequence & Log.MASK);
+		int index = slot * Log.RECORD_SIZE;
 
-		/* Covert 4x byte to int */
 		// @formatter:off
-		this.connId = (byteArray[0] << 24) & 0xFF000000 |
-				      (byteArray[1] << 16) & 0x00FF0000 |
-				      (byteArray[2] << 8)  & 0x0000FF00 |
-				       byteArray[3]        & 0x000000FF;
+		Log.records[index] = System.nanoTime() - Log.START;
+		Log.records[index + 1] = (long) connId << 32 |
+				                 (seq & 0xFFFFL) << 16 |
+				                 (ack & 0xFFFFL);
+		Log.records[index + 2] = (long) (event & 0xFF) << 56 |
+				                 (long) (flags & 0xFF) << 48 |
+				                 (long) (level & 0xFF) << 40 |
+				                 (length & 0xFFFFFFFFFFL);
 		// @formatter:on
 
-		/* Covert 2x byte to short */
-		this.seqNum = (short) ((byteArray[4] << 8) & 0xFF00 | byteArray[5] & 0x00FF);
-
-		/* Covert 2x byte to short */
-		this.ackNum = (short) ((byteArray[6] << 8) & 0xFF00 | byteArray[7] & 0x00FF);
-
-		this.flags = byteArray[8];
-
-		this.data = new byte[size - Packet.HEADER_SIZE];
-		System.arraycopy(byteArray, Packet.HEADER_SIZE, this.data, 0, size
-				- Packet.HEADER_SIZE);
+		Log.sequences.set(slot, sequence);
 	}
 
-	/**************************************************************************/
-
-	public byte[] getAsByteArray() {
-		byte[] toReturn = new byte[Packet.HEADER_SIZE + data.length];
-
-		/* Convert int to 4x byte. */
-		toReturn[0] = (byte) (this.connId >> 24);
-		toReturn[1] = (byte) (this.connId >> 16);
-		toReturn[2] = (byte) (this.connId >> 8);
-		toReturn[3] = (byte) this.connId;
-
-		/* Convert short to 2x byte. */
-		toReturn[4] = (byte) (this.seqNum >> 8);
-		toReturn[5] = (byte) this.seqNum;
-
-		/* Convert short to 2x byte. */
-		toReturn[6] = (byte) (this.ackNum >> 8);
-		toReturn[7] = (byte) this.ackNum;
-
-		toReturn[8] = (byte) this.flags;
+	private static void drain() {
+		StringBuilder sb = new StringBuilder();
 
-		// FIXME test this, print is in hexa
-		System.arraycopy(this.data, 0, toReturn, Packet.HEADER_SIZE,
-				this.data.length);
+		for (;;) {
+			long next = Log.tail;
+			int slot = (int) (next & Log.MASK);
 
-		if (Robot.DEBUG && false) {
-			System.out.println("asByteArray: ");
-			for (byte _byte : toReturn) {
-				System.out.print(String.format("%02X ", _byte));
+			if (Log.sequences.get(slot) != next) {
+				Log.out.flush();
+				LockSupport.parkNanos(Log.PARK_NANOS);
+				continue;
 			}
 
-			System.out.println("");
-		}
-		return toReturn;
-	}
+			int index = slot * Log.RECORD_SIZE;
+			Log.format(sb, Log.records[index], Log.records[index + 1],
+					Log.records[index + 2]);
+			Log.out.println(sb);
 
-	public int getTotalSize() {
-		return Packet.HEADER_SIZE + this.data.length;
+			Log.tail = next + 1;
+		}
 	}
 
-	public String toString() {
-		StringBuilder sb = new StringBuilder();
-
-		sb.append("connId=" + Integer.toHexString(this.connId));
-
-		sb.append(",seqNum=" + this.seqNum);
-
-		sb.append(",ackNum=" + this.ackNum);
-
+	private static void format(StringBuilder sb, long time, long ids,
+			long rest) {
+		int event = (int) (rest >>> 56);
+		int flags = (int) (rest >>> 48) & 0xFF;
+		int level = (int) (rest >>> 40) & 0xFF;
+
+		sb.setLength(0);
+		sb.append('[').append(time / 1_000).append(" us] ");
+		sb.append(Log.LEVEL_NAMES[level]).append(' ');
+		sb.append(event < Log.EVENT_NAMES.length ? Log.EVENT_NAMES[event]
+				: "?");
+		sb.append(" connId=").append(Integer.toHexString((int) (ids >>> 32)));
+		sb.append(",seq=").append((short) (ids >>> 16));
+		sb.append(",ack=").append((short) ids);
 		sb.append(",flags=");
-		switch (this.flags) {
+
+		switch (flags) {
 		case Packet.FLAG_FIN:
 			sb.append("FIN");
 			break;
@@ -310,159 +445,3374 @@ class Packet {
 			sb.append("NONE");
 			break;
 		default:
-			System.err.println("Unknown flag. Exiting.");
-			System.exit(1);
+			sb.append(flags);
 		}
 
-		if (this.data == null) {
-			sb.append(",data=null");
-		} else {
-			sb.append(",data_len=" + this.data.length);
-		}
+		sb.append(",len=").append(rest & 0xFFFFFFFFFFL);
+	}
 
-		// sb.append(",data='");
+	/**
+	 * Waits (for a while) until the drainer prints everything.
+	 */
+	public static void flush() {
+		long deadline = System.nanoTime() + Log.FLUSH_TIMEOUT_NANOS;
 
-		// for (byte _byte : this.data) {
-		// sb.append(String.format("%02X ", _byte));
-		// }
+		while (Log.tail < Log.head.get() && System.nanoTime() < deadline) {
+			LockSupport.parkNanos(Log.PARK_NANOS);
+		}
 
-		// if (this.data.length > 2) {
-		// sb.append(String.format("%02X ", this.data[0]));
-		// sb.append(" .. ");
-		// sb.append(String.format("%02X ", this.data[this.data.length - 1]));
-		// }
-		//
-		// sb.append("'");
+		if (Log.dropped.get() > 0) {
+			Log.out.println("Log has dropped " + Log.dropped.get()
+					+ " records.");
+		}
 
-		return sb.toString();
+		Log.out.flush();
 	}
+}
 
-	public boolean isSyn() {
-		if (this.flags == Packet.FLAG_SYN) {
-			return true;
-		}
+/******************************************************************************/
 
-		return false;
-	}
+/**
+ * Flight Recorder events of the transfers. The frequent ones (every ACK,
+ * every duplicate) are off unless a recording enables them, the gaps are
+ * recorded from 'minGap' bytes up, so that a continuous recording stays
+ * cheap.
+ */
+@Name("robot.Handshake")
+@Label("Handshake")
+@Category({ "Robot", "Transfer" })
+@Description("From the first SYN to the answer (or giving up)")
+@StackTrace(false)
+class HandshakeEvent extends Event {
+
+	@Label("Connection")
+	public int connId;
 
-	public boolean isData() {
-		if (this.flags == Packet.FLAG_NONE && this.data != null
-				&& this.data.length > 0) {
-			return true;
-		}
+	@Label("Command")
+	public byte command;
 
-		return false;
-	}
+	@Label("Attempts")
+	public int attempts;
 
-	public boolean isFin() {
-		if (this.flags == Packet.FLAG_FIN) {
-			return true;
-		}
+	@Label("Connected")
+	public boolean connected;
 
-		return false;
-	}
+	@Label("Opened by Data")
+	public boolean early;
+}
+
+/******************************************************************************/
 
+@Name("robot.AckSent")
+@Label("ACK Sent")
+@Category({ "Robot", "Transfer" })
+@Enabled(false)
+@StackTrace(false)
+class AckSentEvent extends Event {
+
+	public static final String IN_ORDER = "in-order";
+	public static final String DELAYED = "delayed";
+	public static final String GAP = "gap";
+	public static final String FILL = "fill";
+	public static final String DUPLICATE = "duplicate";
+	public static final String TIMER = "timer";
+	public static final String BATCH = "batch";
+
+	@Label("Connection")
+	public int connId;
+
+	@Label("Acknowledged")
+	@DataAmount(DataAmount.BYTES)
+	public long acknowledged;
+
+	@Label("Reason")
+	public String reason;
 }
 
 /******************************************************************************/
 
-class UDP {
-	/**
-	 * 
-	 */
-	public final static int TIMEOUT = 100;
+/**
+ * The 'minGap' setting of OutOfOrderEvent, in bytes; the smallest value of
+ * the recordings wins, so that each gets the gaps it has asked for.
+ */
+class GapThreshold extends SettingControl {
 
-	public int port;
-	public InetAddress address;
-	public String addressName;
-	public DatagramSocket socket;
+	public static final String DEFAULT = "1020";
 
-	public UDP(String serverAddress, int port) {
-		try {
-			socket = new DatagramSocket();
-		} catch (SocketException e) {
-			System.err.println("Creation of DatagramSocket failed.");
-			e.printStackTrace();
-			System.exit(1);
-		}
+	private long bytes = Long.parseLong(GapThreshold.DEFAULT);
 
-		try {
-			socket.setSoTimeout(UDP.TIMEOUT);
-		} catch (SocketException e) {
-			e.printStackTrace();
-		}
+	@Override
+	public String combine(Set<String> values) {
+		long min = Long.MAX_VALUE;
 
-		try {
-			address = InetAddress.getByName(serverAddress);
-		} catch (UnknownHostException e) {
-			System.err.println("Unknown address of the server.");
-			e.printStackTrace();
-			System.exit(1);
+		for (String value : values) {
+			min = Math.min(min, Long.parseLong(value));
 		}
 
-		this.port = port;
+		return values.isEmpty() ? GapThreshold.DEFAULT : Long.toString(min);
+	}
 
-		this.socket.connect(this.address, this.port);
+	@Override
+	public void setValue(String value) {
+		this.bytes = Long.parseLong(value);
 	}
 
-	public void send(Packet packet) {
+	@Override
+	public String getValue() {
+		return Long.toString(this.bytes);
+	}
 
-		System.out.println("sending packet: " + packet);
+	public long bytes() {
+		return this.bytes;
+	}
+}
 
-		// System.out.println("asbytearray:" + packet.getAsByteArray());
+/******************************************************************************/
 
-		// TODO:
-		// packet.time = System.currentTimeMillis();
+@Name("robot.OutOfOrder")
+@Label("Out-of-Order Arrival")
+@Category({ "Robot", "Transfer" })
+@Description("Data ahead of the first missing byte, with the size of the gap")
+@StackTrace(false)
+class OutOfOrderEvent extends Event {
 
-		if (Robot.DEBUG) {
-			/* IMHO this would be a pain in the ass */
-			if (packet.getAsByteArray().length != packet.getTotalSize()) {
-				System.err
-						.println("FATAL ERROR: packet.getAsByteArray().length "
-								+ "!= packet.getTotalSize()");
-				System.exit(1);
-			}
-		}
+	@Label("Connection")
+	public int connId;
 
-		DatagramPacket datagramPacket = new DatagramPacket(
-				packet.getAsByteArray(), packet.getTotalSize(), this.address,
-				this.port);
+	@Label("Offset")
+	public long offset;
 
-		try {
-			socket.send(datagramPacket);
-		} catch (IOException ioe) {
-			ioe.printStackTrace();
-		}
+	@Label("Gap")
+	@DataAmount(DataAmount.BYTES)
+	public long gap;
+
+	@Label("Minimal Gap")
+	@Description("Gaps of fewer bytes are not recorded")
+	@SettingDefinition
+	protected boolean minGap(GapThreshold threshold) {
+		return this.gap >= threshold.bytes();
 	}
+}
 
-	public Packet recv() throws SocketTimeoutException {
-		byte[] byteArray = new byte[Packet.HEADER_SIZE + Packet.MAX_DATA_LENGTH
-				+ 1];
+/******************************************************************************/
 
-		DatagramPacket datagramPacket = new DatagramPacket(byteArray,
-				Packet.HEADER_SIZE + Packet.MAX_DATA_LENGTH);
+@Name("robot.Duplicate")
+@Label("Duplicate Arrival")
+@Category({ "Robot", "Transfer" })
+@Enabled(false)
+@StackTrace(false)
+class DuplicateEvent extends Event {
 
-		try {
-			this.socket.receive(datagramPacket);
-		} catch (SocketTimeoutException e) {
-			throw e;
-		} catch (IOException e) {
-			System.out.println("System receive failed.");
-			e.printStackTrace();
-			System.exit(1);
-		}
+	@Label("Connection")
+	public int connId;
 
-		return new Packet(datagramPacket.getData(), datagramPacket.getLength());
-	}
+	@Label("Sequence Number")
+	public int seq;
 }
 
 /******************************************************************************/
 
-class Download {
+@Name("robot.Timeout")
+@Label("Timeout")
+@Category({ "Robot", "Transfer" })
+@Description("A SYN repeated or an ACK repeated because nothing came")
+@StackTrace(false)
+class TimeoutEvent extends Event {
 
-	/**************************************************************************/
+	@Label("Connection")
+	public int connId;
 
-	DatagramSocket socket;
+	@Label("Kind")
+	public String kind;
+
+	@Label("Retransmission Timeout")
+	@Timespan(Timespan.NANOSECONDS)
+	public long rto;
+}
+
+/******************************************************************************/
+
+/**
+ * Every second, how full the reassembly window of each running download
+ * is.
+ */
+@Name("robot.WindowOccupancy")
+@Label("Reassembly Window Occupancy")
+@Category({ "Robot", "Transfer" })
+@Period("1 s")
+@StackTrace(false)
+class WindowOccupancyEvent extends Event {
+
+	/**
+	 * The downloads between start() and close().
+	 */
+	public static final Set<Download> ACTIVE = ConcurrentHashMap.newKeySet();
+
+	static {
+		FlightRecorder.addPeriodicEvent(WindowOccupancyEvent.class,
+				new Runnable() {
+					@Override
+					public void run() {
+						for (Download download : WindowOccupancyEvent.ACTIVE) {
+							download.recordOccupancy();
+						}
+					}
+				});
+	}
+
+	@Label("Connection")
+	public int connId;
+
+	@Label("Segments Held")
+	public int occupancy;
+
+	@Label("Capacity")
+	public int capacity;
+
+	@Label("Received")
+	@DataAmount(DataAmount.BYTES)
+	public long received;
+}
+
+/******************************************************************************/
+
+@Name("robot.Transfer")
+@Label("Transfer")
+@Category({ "Robot", "Transfer" })
+@Description("A whole download, from the SYN to the close")
+@StackTrace(false)
+class TransferEvent extends Event {
+
+	@Label("Connection")
+	public int connId;
+
+	@Label("Bytes")
+	@DataAmount(DataAmount.BYTES)
+	public long bytes;
+
+	@Label("Goodput")
+	@DataAmount(DataAmount.BYTES)
+	@Frequency
+	public long goodput;
+
+	@Label("ACKs")
+	public long acks;
+
+	@Label("Timer ACKs")
+	public long timerAcks;
+
+	@Label("Failed")
+	public boolean failed;
+}
+
+/******************************************************************************/
+
+@Name("robot.SocketDrops")
+@Label("Socket Drops")
+@Category({ "Robot", "UDP" })
+@Description("Datagrams the kernel has dropped since the last sample")
+@StackTrace(false)
+class SocketDropsEvent extends Event {
+
+	@Label("Port")
+	public int port;
+
+	@Label("Dropped")
+	public long dropped;
+
+	@Label("Queue")
+	@DataAmount(DataAmount.BYTES)
+	public long queue;
+}
+
+/******************************************************************************/
+
+/**
+ * Growable store of bytes kept in chunks of primitive arrays. Bytes are
+ * appended in bulk and written out in large writes, nothing is boxed and
+ * nothing is copied when the store grows.
+ */
+class ByteStore {
+
+	public static final int CHUNK_SIZE = 1 << 16;
+
+	private byte[][] chunks;
+	private int chunkCount;
+	private long size;
+
+	public ByteStore() {
+		this.chunks = new byte[16][];
+	}
+
+	public long size() {
+		return this.size;
+	}
+
+	public void append(byte[] src, int offset, int length) {
+		while (length > 0) {
+			int inChunk = (int) (this.size % ByteStore.CHUNK_SIZE);
+
+			if (inChunk == 0
+					&& this.size / ByteStore.CHUNK_SIZE == this.chunkCount) {
+				this.addChunk();
+			}
+
+			int toCopy = Math.min(length, ByteStore.CHUNK_SIZE - inChunk);
+
+			System.arraycopy(src, offset,
+					this.chunks[(int) (this.size / ByteStore.CHUNK_SIZE)],
+					inChunk, toCopy);
+
+			this.size += toCopy;
+			offset += toCopy;
+			length -= toCopy;
+		}
+	}
+
+	private void addChunk() {
+		if (this.chunkCount == this.chunks.length) {
+			byte[][] bigger = new byte[this.chunks.length * 2][];
+			System.arraycopy(this.chunks, 0, bigger, 0, this.chunkCount);
+			this.chunks = bigger;
+		}
+
+		this.chunks[this.chunkCount] = new byte[ByteStore.CHUNK_SIZE];
+		this.chunkCount += 1;
+	}
+
+	/**
+	 * Writes the whole store, one write for every chunk.
+	 * 
+	 * @param channel
+	 * @throws IOException
+	 */
+	public void writeTo(FileChannel channel) throws IOException {
+		long left = this.size;
+
+		for (int i = 0; left > 0; i += 1) {
+			int length = (int) Math.min(left, ByteStore.CHUNK_SIZE);
+			ByteBuffer buffer = ByteBuffer.wrap(this.chunks[i], 0, length);
+
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+
+			left -= length;
+		}
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * Set of byte ranges [start, end) which have arrived. Ranges which touch are
+ * merged, so there is one range per gap in the window.
+ */
+class RangeSet {
+
+	private long[] starts;
+	private long[] ends;
+	private int count;
+
+	public RangeSet() {
+		this.starts = new long[8];
+		this.ends = new long[8];
+	}
+
+	public int count() {
+		return this.count;
+	}
+
+	public long start(int i) {
+		return this.starts[i];
+	}
+
+	public long end(int i) {
+		return this.ends[i];
+	}
+
+	/**
+	 * @return true if the whole range [start, end) is in the set
+	 */
+	public boolean contains(long start, long end) {
+		for (int i = 0; i < this.count; i += 1) {
+			if (this.starts[i] <= start && end <= this.ends[i]) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	public void add(long start, long end) {
+		int i = 0;
+
+		/* first range which ends at or after the new start */
+		while (i < this.count && this.ends[i] < start) {
+			i += 1;
+		}
+
+		/* merge every range which touches the new one */
+		int j = i;
+
+		while (j < this.count && this.starts[j] <= end) {
+			start = Math.min(start, this.starts[j]);
+			end = Math.max(end, this.ends[j]);
+			j += 1;
+		}
+
+		int removed = j - i;
+
+		if (removed == 0) {
+			if (this.count == this.starts.length) {
+				this.starts = Arrays.copyOf(this.starts, this.count * 2);
+				this.ends = Arrays.copyOf(this.ends, this.count * 2);
+			}
+
+			System.arraycopy(this.starts, i, this.starts, i + 1, this.count
+					- i);
+			System.arraycopy(this.ends, i, this.ends, i + 1, this.count - i);
+			this.count += 1;
+		} else if (removed > 1) {
+			System.arraycopy(this.starts, j, this.starts, i + 1, this.count
+					- j);
+			System.arraycopy(this.ends, j, this.ends, i + 1, this.count - j);
+			this.count -= removed - 1;
+		}
+
+		this.starts[i] = start;
+		this.ends[i] = end;
+	}
+
+	/**
+	 * @return the end of the range which starts at zero
+	 */
+	public long contiguous() {
+		if (this.count > 0 && this.starts[0] == 0) {
+			return this.ends[0];
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Ranges stay sorted and disjoint: touching ones merge, the arrays grow
+	 * past their first size.
+	 */
+	public static boolean test() {
+		RangeSet set = new RangeSet();
+		int fails = 0;
+
+		set.add(10, 20);
+		set.add(30, 40);
+		set.add(0, 5);
+
+		if (set.count() != 3 || set.start(0) != 0 || set.start(1) != 10
+				|| set.start(2) != 30 || set.contiguous() != 5) {
+			fails += 1;
+		}
+
+		/* fills the gap to both neighbours, then bridges to the last */
+		set.add(5, 10);
+
+		if (set.count() != 2 || set.end(0) != 20 || set.contiguous() != 20) {
+			fails += 1;
+		}
+
+		set.add(15, 35);
+
+		if (set.count() != 1 || set.start(0) != 0 || set.end(0) != 40) {
+			fails += 1;
+		}
+
+		if (!set.contains(0, 40) || set.contains(39, 41)
+				|| set.contains(40, 41)) {
+			fails += 1;
+		}
+
+		/* ends which meet merge */
+		set.add(40, 50);
+
+		if (set.count() != 1 || set.contiguous() != 50) {
+			fails += 1;
+		}
+
+		RangeSet many = new RangeSet();
+
+		for (int i = 19; i >= 0; i -= 1) {
+			many.add(1000 + i * 10, 1000 + i * 10 + 5);
+		}
+
+		if (many.count() != 20 || many.contiguous() != 0) {
+			fails += 1;
+		}
+
+		for (int i = 0; i < many.count(); i += 1) {
+			if (many.start(i) != 1000 + i * 10
+					|| many.end(i) != 1000 + i * 10 + 5) {
+				fails += 1;
+			}
+		}
+
+		/* one range over all of them swallows them */
+		many.add(995, 1300);
+
+		if (many.count() != 1 || many.start(0) != 995 || many.end(0) != 1300) {
+			fails += 1;
+		}
+
+		System.out.println("RangeSet: fails=" + fails);
+
+		return fails == 0;
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * Fixed-capacity window for the data which came out of order.
+ * 
+ * The sender cuts the stream into MAX_DATA_LENGTH segments (the last one may
+ * be shorter), so a segment is stored in the slot given by its offset modulo
+ * the window size. Which slots are full is kept in a bitmap. Nothing is
+ * allocated after the window is created, no matter how long the transfer is.
+ */
+class ReassemblyWindow {
+
+	public static final int IN_ORDER = 0;
+	public static final int OUT_OF_ORDER = 1;
+	public static final int DUPLICATE = 2;
+	public static final int OUT_OF_WINDOW = 3;
+
+	private final int mask;
+	private final byte[][] slots;
+	private final int[] lengths;
+	private final long[] present;
+
+	/**
+	 * Offset of the next byte which is expected in order.
+	 */
+	private long base;
+
+	/**
+	 * @param capacity
+	 *            number of segments, a power of two
+	 */
+	public ReassemblyWindow(int capacity) {
+		this.mask = capacity - 1;
+		this.slots = new byte[capacity][Packet.MAX_DATA_LENGTH];
+		this.lengths = new int[capacity];
+		this.present = new long[(capacity + 63) / 64];
+	}
+
+	public long base() {
+		return this.base;
+	}
+
+	private int slot(long offset) {
+		return (int) (offset / Packet.MAX_DATA_LENGTH) & this.mask;
+	}
+
+	private boolean isPresent(int slot) {
+		return (this.present[slot >>> 6] & (1L << slot)) != 0;
+	}
+
+	/**
+	 * @return number of full slots
+	 */
+	public int occupancy() {
+		int count = 0;
+
+		for (long word : this.present) {
+			count += Long.bitCount(word);
+		}
+
+		return count;
+	}
+
+	public int classify(long offset, int length) {
+		if (offset == this.base) {
+			return ReassemblyWindow.IN_ORDER;
+		}
+
+		if (offset < this.base) {
+			return ReassemblyWindow.DUPLICATE;
+		}
+
+		if (offset % Packet.MAX_DATA_LENGTH != 0
+				|| (offset - this.base) / Packet.MAX_DATA_LENGTH > this.mask) {
+			return ReassemblyWindow.OUT_OF_WINDOW;
+		}
+
+		if (this.isPresent(this.slot(offset))) {
+			return ReassemblyWindow.DUPLICATE;
+		}
+
+		return ReassemblyWindow.OUT_OF_ORDER;
+	}
+
+	/**
+	 * Keeps a segment which came out of order.
+	 */
+	public void store(long offset, byte[] data, int off, int length) {
+		int slot = this.slot(offset);
+
+		System.arraycopy(data, off, this.slots[slot], 0, length);
+		this.lengths[slot] = length;
+		this.present[slot >>> 6] |= 1L << slot;
+	}
+
+	/**
+	 * Moves the window after the segment at the base has been used.
+	 */
+	public void advance(int length) {
+		this.base += length;
+	}
+
+	/**
+	 * @return true if the segment at the base has been stored
+	 */
+	public boolean ready() {
+		return this.base % Packet.MAX_DATA_LENGTH == 0
+				&& this.isPresent(this.slot(this.base));
+	}
+
+	public byte[] readyData() {
+		return this.slots[this.slot(this.base)];
+	}
+
+	public int readyLength() {
+		return this.lengths[this.slot(this.base)];
+	}
+
+	/**
+	 * Frees the ready segment and moves the window after it.
+	 */
+	public void release() {
+		int slot = this.slot(this.base);
+
+		this.present[slot >>> 6] &= ~(1L << slot);
+		this.base += this.lengths[slot];
+	}
+
+	/**
+	 * The classes of the offsets at the edges of the window, the order of the
+	 * released segments and the reuse of the slots over many turns.
+	 */
+	public static boolean test() {
+		final int l = Packet.MAX_DATA_LENGTH;
+		ReassemblyWindow window = new ReassemblyWindow(4);
+		byte[] data = new byte[l];
+		int fails = 0;
+
+		if (window.classify(0, l) != ReassemblyWindow.IN_ORDER
+				|| window.classify(3 * l, l) != ReassemblyWindow.OUT_OF_ORDER
+				|| window.classify(4 * l, l) != ReassemblyWindow.OUT_OF_WINDOW
+				|| window.classify(l + 1, l)
+						!= ReassemblyWindow.OUT_OF_WINDOW) {
+			fails += 1;
+		}
+
+		for (int segment = 3; segment >= 1; segment -= 1) {
+			data[0] = (byte) segment;
+			window.store((long) segment * l, data, 0, l);
+		}
+
+		if (window.classify(2 * l, l) != ReassemblyWindow.DUPLICATE
+				|| window.occupancy() != 3 || window.ready()) {
+			fails += 1;
+		}
+
+		/* the missing first segment comes, the others follow in order */
+		window.advance(l);
+
+		for (int segment = 1; segment <= 3; segment += 1) {
+			if (!window.ready() || window.readyData()[0] != segment
+					|| window.readyLength() != l) {
+				fails += 1;
+			}
+
+			window.release();
+		}
+
+		if (window.base() != 4 * l || window.ready()
+				|| window.occupancy() != 0
+				|| window.classify(3 * l, l) != ReassemblyWindow.DUPLICATE
+				|| window.classify(7 * l, l) != ReassemblyWindow.OUT_OF_ORDER
+				|| window.classify(8 * l, l)
+						!= ReassemblyWindow.OUT_OF_WINDOW) {
+			fails += 1;
+		}
+
+		/* a short last segment leaves the base between slots */
+		window.store(5 * l, data, 0, 100);
+		window.advance(l);
+		window.release();
+
+		if (window.base() != 5 * l + 100 || window.ready()) {
+			fails += 1;
+		}
+
+		/* every slot is used many times, the last of each turn first */
+		ReassemblyWindow ring = new ReassemblyWindow(4);
+
+		for (int turn = 0; turn < 1000; turn += 1) {
+			long base = (long) turn * 4 * l;
+
+			for (int segment = 3; segment >= 1; segment -= 1) {
+				data[0] = (byte) (turn + segment);
+				ring.store(base + (long) segment * l, data, 0, l);
+			}
+
+			if (ring.classify(base, l) != ReassemblyWindow.IN_ORDER) {
+				fails += 1;
+			}
+
+			ring.advance(l);
+
+			for (int segment = 1; ring.ready(); segment += 1) {
+				if (ring.readyData()[0] != (byte) (turn + segment)) {
+					fails += 1;
+				}
+
+				ring.release();
+			}
+		}
+
+		if (ring.base() != 4000L * l || ring.occupancy() != 0) {
+			fails += 1;
+		}
+
+		System.out.println("ReassemblyWindow: fails=" + fails);
+
+		return fails == 0;
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * The bytes of a download in order, as soon as they are contiguous. The
+ * network thread writes, one reader reads (blocking). The buffer is bounded:
+ * the Download does not accept (and so does not acknowledge) data which would
+ * not fit, so a slow reader holds the sender back.
+ */
+class DownloadStream extends InputStream {
+
+	public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+	private final byte[] ring;
+
+	/**
+	 * Bytes written and read since the start.
+	 */
+	private long written;
+	private long read;
+
+	private boolean finished;
+	private IOException failure;
+
+	/**
+	 * Data packets refused because the buffer was full.
+	 */
+	public long refused;
+	public long maxBuffered;
+
+	public DownloadStream(int capacity) {
+		this.ring = new byte[Math.max(capacity, Packet.MAX_DATA_LENGTH)];
+	}
+
+	/**
+	 * @return the offset up to which data fit into the buffer
+	 */
+	public synchronized long limit() {
+		return this.read + this.ring.length;
+	}
+
+	/**
+	 * Called by the network thread, the data must fit (below limit()).
+	 */
+	public synchronized void write(byte[] data, int off, int length) {
+		int position = (int) (this.written % this.ring.length);
+		int first = Math.min(length, this.ring.length - position);
+
+		System.arraycopy(data, off, this.ring, position, first);
+		System.arraycopy(data, off + first, this.ring, 0, length - first);
+
+		this.written += length;
+		this.maxBuffered = Math.max(this.maxBuffered, this.written - this.read);
+		this.notifyAll();
+	}
+
+	public synchronized void finish() {
+		this.finished = true;
+		this.notifyAll();
+	}
+
+	public synchronized void fail(IOException failure) {
+		this.failure = failure;
+		this.notifyAll();
+	}
+
+	@Override
+	public synchronized int available() {
+		return (int) (this.written - this.read);
+	}
+
+	/**
+	 * Waits until there are data to read (the lock is held).
+	 * 
+	 * @return false at the end of the download
+	 */
+	private boolean await() throws IOException {
+		while (this.written == this.read) {
+			if (this.failure != null) {
+				throw this.failure;
+			}
+
+			if (this.finished) {
+				return false;
+			}
+
+			try {
+				this.wait();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}
+
+		return true;
+	}
+
+	@Override
+	public synchronized int read() throws IOException {
+		if (!this.await()) {
+			return -1;
+		}
+
+		int value = this.ring[(int) (this.read % this.ring.length)] & 0xFF;
+
+		this.read += 1;
+
+		return value;
+	}
+
+	@Override
+	public synchronized int read(byte[] buffer, int off, int length)
+			throws IOException {
+		if (!this.await()) {
+			return -1;
+		}
+
+		int count = (int) Math.min(length, this.written - this.read);
+		int position = (int) (this.read % this.ring.length);
+		int first = Math.min(count, this.ring.length - position);
+
+		System.arraycopy(this.ring, position, buffer, off, first);
+		System.arraycopy(this.ring, 0, buffer, off + first, count - first);
+
+		this.read += count;
+
+		return count;
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * Second stage of a download: a thread which writes the bytes in order to the
+ * file. The network thread copies them into preallocated slots of a
+ * single-producer/single-consumer ring and goes on; the writer takes all the
+ * published slots at once and writes them with one gathering write. A slow
+ * disk fills the ring, then the Download refuses data (see limit()) instead
+ * of waiting.
+ */
+class WriterStage implements Runnable {
+
+	public static final int SLOTS = 16;
+	public static final int SLOT_SIZE = 16 * 1024;
+
+	/**
+	 * How long the writer sleeps when there is nothing to write.
+	 */
+	private static final long PARK_NANOS = 1_000_000L;
+
+	private final FileChannel channel;
+	private final byte[][] slots = new byte[WriterStage.SLOTS][WriterStage.SLOT_SIZE];
+	private final ByteBuffer[] views = new ByteBuffer[WriterStage.SLOTS];
+	private final ByteBuffer[] batch = new ByteBuffer[WriterStage.SLOTS];
+	private final int[] lengths = new int[WriterStage.SLOTS];
+	private final long[] publishTimes = new long[WriterStage.SLOTS];
+
+	/**
+	 * Slots published by the network thread and written by the writer.
+	 */
+	private final AtomicLong published = new AtomicLong();
+	private final AtomicLong consumed = new AtomicLong();
+
+	/**
+	 * Bytes written to the file.
+	 */
+	private final AtomicLong written = new AtomicLong();
+
+	/**
+	 * Bytes in the slot which is being filled (network thread only).
+	 */
+	private int fill;
+
+	private volatile boolean finishing;
+	private final Thread thread;
+	private final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+	/* metrics, of the writer thread */
+	public long batches;
+	public long slotsWritten;
+	public long maxDepth;
+	private long depthSum;
+	public long maxLatency;
+	private long latencySum;
+
+	public WriterStage(String fileName) throws IOException {
+		this.channel = FileChannel.open(Paths.get(fileName),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+
+		for (int i = 0; i < WriterStage.SLOTS; i += 1) {
+			this.views[i] = ByteBuffer.wrap(this.slots[i]);
+		}
+
+		this.thread = new Thread(this, "writer-" + fileName);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * @return the offset up to which data fit into the ring
+	 */
+	public long limit() {
+		return this.written.get() + (long) (WriterStage.SLOTS - 1)
+				* WriterStage.SLOT_SIZE;
+	}
+
+	/**
+	 * Called by the network thread, the data must fit (below limit()).
+	 */
+	public void write(byte[] data, int off, int length) {
+		while (length > 0) {
+			int slot = (int) (this.published.get() % WriterStage.SLOTS);
+			int count = Math.min(length, WriterStage.SLOT_SIZE - this.fill);
+
+			System.arraycopy(data, off, this.slots[slot], this.fill, count);
+			this.fill += count;
+			off += count;
+			length -= count;
+
+			if (this.fill == WriterStage.SLOT_SIZE) {
+				this.publish();
+			}
+		}
+	}
+
+	private void publish() {
+		long sequence = this.published.get();
+		int slot = (int) (sequence % WriterStage.SLOTS);
+
+		this.lengths[slot] = this.fill;
+		this.publishTimes[slot] = System.nanoTime();
+		this.fill = 0;
+		this.published.lazySet(sequence + 1);
+
+		LockSupport.unpark(this.thread);
+	}
+
+	/**
+	 * Publishes the last slot, the file is closed when all is written.
+	 */
+	public CompletableFuture<Void> finish() {
+		if (this.fill > 0) {
+			this.publish();
+		}
+
+		this.finishing = true;
+		LockSupport.unpark(this.thread);
+
+		return this.done;
+	}
+
+	@Override
+	public void run() {
+		try {
+			for (;;) {
+				boolean finishing = this.finishing;
+				long consumed = this.consumed.get();
+				long published = this.published.get();
+
+				if (published == consumed) {
+					if (finishing) {
+						this.channel.close();
+						this.done.complete(null);
+						return;
+					}
+
+					LockSupport.parkNanos(WriterStage.PARK_NANOS);
+					continue;
+				}
+
+				this.writeBatch(consumed, published);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			this.done.completeExceptionally(e);
+		}
+	}
+
+	private void writeBatch(long consumed, long published) throws IOException {
+		int count = (int) (published - consumed);
+		long bytes = 0;
+
+		for (int i = 0; i < count; i += 1) {
+			int slot = (int) ((consumed + i) % WriterStage.SLOTS);
+
+			this.views[slot].clear().limit(this.lengths[slot]);
+			this.batch[i] = this.views[slot];
+			bytes += this.lengths[slot];
+		}
+
+		for (long left = bytes; left > 0;) {
+			left -= this.channel.write(this.batch, 0, count);
+		}
+
+		long now = System.nanoTime();
+
+		for (int i = 0; i < count; i += 1) {
+			long latency = now
+					- this.publishTimes[(int) ((consumed + i) % WriterStage.SLOTS)];
+
+			this.latencySum += latency;
+			this.maxLatency = Math.max(this.maxLatency, latency);
+		}
+
+		this.batches += 1;
+		this.slotsWritten += count;
+		this.depthSum += count;
+		this.maxDepth = Math.max(this.maxDepth, count);
+
+		this.written.addAndGet(bytes);
+		this.consumed.lazySet(published);
+	}
+
+	@Override
+	public String toString() {
+		long batches = Math.max(1, this.batches);
+		long slots = Math.max(1, this.slotsWritten);
+
+		return "Writer: bytes=" + this.written.get() + ", batches="
+				+ this.batches + ", queue depth avg="
+				+ this.depthSum / batches + " max=" + this.maxDepth
+				+ " slots, latency avg=" + this.latencySum / slots / 1_000
+				+ " us max=" + this.maxLatency / 1_000 + " us";
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * Writes every data packet straight to its final offset in the file. Nothing
+ * is reassembled in memory, only the arrived ranges are remembered.
+ */
+class PositionalSink {
+
+	private final FileChannel channel;
+	private final RangeSet ranges;
+
+	public PositionalSink(String fileName) throws IOException {
+		this(fileName, false);
+	}
+
+	/**
+	 * @param keep
+	 *            keep what the file holds (a resumed download)
+	 */
+	public PositionalSink(String fileName, boolean keep) throws IOException {
+		if (keep) {
+			this.channel = FileChannel.open(Paths.get(fileName),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		} else {
+			this.channel = FileChannel.open(Paths.get(fileName),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+		}
+
+		this.ranges = new RangeSet();
+	}
+
+	/**
+	 * The range is in the file already (from an earlier run).
+	 */
+	public void markHeld(long start, long end) {
+		this.ranges.add(start, end);
+	}
+
+	/**
+	 * Cuts off what an older, longer file has left behind.
+	 */
+	public void truncate(long size) throws IOException {
+		this.channel.truncate(size);
+	}
+
+	/**
+	 * @return false if the data have been here already
+	 * @throws IOException
+	 */
+	public boolean write(long offset, byte[] data, int off, int length)
+			throws IOException {
+		if (this.ranges.contains(offset, offset + length)) {
+			return false;
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(data, off, length);
+		long position = offset;
+
+		while (buffer.hasRemaining()) {
+			position += this.channel.write(buffer, position);
+		}
+
+		this.ranges.add(offset, offset + length);
+		return true;
+	}
+
+	/**
+	 * @return how many bytes from the start of the file have arrived
+	 */
+	public long contiguous() {
+		return this.ranges.contiguous();
+	}
+
+	public void close() throws IOException {
+		this.channel.close();
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * Sidecar of a resumable download (<file>.journal): which segments of the
+ * file are on disk and their CRC32, and the identity of the firmware (its size
+ * and CRC32, as the server hands them out in the answer to the SYN). A
+ * restarted download takes the segments back when the server has the same
+ * firmware, and the file is checked against the segments and the CRC32 of the
+ * firmware at the end.
+ * 
+ * The journal is replaced atomically. The data are not forced to the disk, a
+ * crash of the process leaves them in the page cache.
+ */
+class ResumeJournal {
+
+	public static final int MAGIC = 0x4B524A32;
+
+	/**
+	 * How often the journal is saved during a download, in nanoseconds.
+	 */
+	public static final long SAVE_PERIOD = 200_000_000L;
+
+	private final Path path;
+	private final CRC32 crc = new CRC32();
+
+	private long[] held = new long[16];
+	private int[] crcs = new int[1024];
+	private long end;
+
+	/**
+	 * Size and CRC32 of the firmware, the size is -1 when it is not known.
+	 */
+	private long size = -1;
+	private int digest;
+
+	/**
+	 * The answer to the SYN has decided about the old segments.
+	 */
+	private boolean settled;
+	private boolean dirty;
+	private long nextSave;
+
+	/**
+	 * Segments taken over from the earlier run.
+	 */
+	public int resumedSegments;
+
+	public ResumeJournal(String fileName) {
+		this.path = Paths.get(fileName + ".journal");
+
+		if (Files.exists(this.path)) {
+			try {
+				this.load();
+			} catch (IOException | RuntimeException e) {
+				System.err.println("Ignoring a broken journal " + this.path);
+				this.clear();
+			}
+		}
+	}
+
+	private void load() throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(this.path));
+
+		if (buffer.getInt() != ResumeJournal.MAGIC) {
+			throw new IOException("not a journal");
+		}
+
+		this.size = buffer.getLong();
+		this.digest = buffer.getInt();
+		this.end = buffer.getLong();
+
+		int segments = buffer.getInt();
+
+		this.crcs = new int[Math.max(segments, 1024)];
+		this.held = new long[(this.crcs.length + 63) / 64];
+
+		for (int i = 0; i < (segments + 63) / 64; i += 1) {
+			this.held[i] = buffer.getLong();
+		}
+
+		for (int i = 0; i < segments; i += 1) {
+			this.crcs[i] = buffer.getInt();
+		}
+	}
+
+	private void clear() {
+		Arrays.fill(this.held, 0);
+		this.end = 0;
+		this.size = -1;
+	}
+
+	private static int segment(long offset) {
+		return (int) (offset / Packet.MAX_DATA_LENGTH);
+	}
+
+	private boolean isHeld(int segment) {
+		return segment / 64 < this.held.length
+				&& (this.held[segment / 64] & 1L << segment) != 0;
+	}
+
+	private int checksum(byte[] data, int off, int length) {
+		this.crc.reset();
+		this.crc.update(data, off, length);
+
+		return (int) this.crc.getValue();
+	}
+
+	/**
+	 * Decides about the segments of the earlier run when the connection is
+	 * open, and marks the ones which stay in the sink.
+	 * 
+	 * @param size
+	 *            size of the firmware, -1 if the server has not told it
+	 * @param digest
+	 *            CRC32 of the firmware
+	 * @return false if nothing is taken over
+	 */
+	public boolean settle(long size, int digest, PositionalSink sink) {
+		if (this.settled) {
+			return this.resumedSegments > 0;
+		}
+
+		this.settled = true;
+
+		if (size < 0 || size != this.size || digest != this.digest
+				|| this.end > size) {
+			/* another firmware, or one nobody can tell, nothing is taken over */
+			this.clear();
+			this.size = size;
+			this.digest = digest;
+			return false;
+		}
+
+		for (int segment = 0; (long) segment * Packet.MAX_DATA_LENGTH < this.end; segment += 1) {
+			if (this.isHeld(segment)) {
+				long start = (long) segment * Packet.MAX_DATA_LENGTH;
+
+				sink.markHeld(start,
+						Math.min(start + Packet.MAX_DATA_LENGTH, this.end));
+				this.resumedSegments += 1;
+			}
+		}
+
+		return this.resumedSegments > 0;
+	}
+
+	public boolean isSettled() {
+		return this.settled;
+	}
+
+	/**
+	 * The segment has been written to the file.
+	 */
+	public void record(long offset, byte[] data, int off, int length) {
+		int segment = ResumeJournal.segment(offset);
+
+		while (segment >= this.crcs.length) {
+			this.crcs = Arrays.copyOf(this.crcs, this.crcs.length * 2);
+			this.held = Arrays.copyOf(this.held, (this.crcs.length + 63) / 64);
+		}
+
+		this.crcs[segment] = this.checksum(data, off, length);
+		this.held[segment / 64] |= 1L << segment;
+		this.end = Math.max(this.end, offset + length);
+		this.dirty = true;
+	}
+
+	public void saveIfDue(long now) {
+		if (this.settled && this.dirty && now >= this.nextSave) {
+			this.save();
+			this.nextSave = now + ResumeJournal.SAVE_PERIOD;
+		}
+	}
+
+	public void save() {
+		int segments = (int) ((this.end + Packet.MAX_DATA_LENGTH - 1) / Packet.MAX_DATA_LENGTH);
+		ByteBuffer buffer = ByteBuffer.allocate(4 + 8 + 4 + 8 + 4
+				+ (segments + 63) / 64 * 8 + segments * 4);
+
+		buffer.putInt(ResumeJournal.MAGIC).putLong(this.size)
+				.putInt(this.digest).putLong(this.end).putInt(segments);
+
+		for (int i = 0; i < (segments + 63) / 64; i += 1) {
+			buffer.putLong(this.held[i]);
+		}
+
+		for (int i = 0; i < segments; i += 1) {
+			buffer.putInt(this.crcs[i]);
+		}
+
+		Path tmp = Paths.get(this.path + ".tmp");
+
+		try {
+			Files.write(tmp, buffer.array());
+			Files.move(tmp, this.path,
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			this.dirty = false;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Checks every segment of the file of 'size' bytes against its CRC32 and
+	 * the whole file against the CRC32 of the firmware, when the server has
+	 * told it. Segments which do not match are forgotten, so the next run
+	 * fetches them again; all of them when only the whole does not match.
+	 * 
+	 * @return how many segments are missing or do not match
+	 */
+	public int verify(String fileName, long size) throws IOException {
+		int bad = 0;
+		byte[] segment = new byte[Packet.MAX_DATA_LENGTH];
+		CRC32 whole = new CRC32();
+
+		try (FileChannel channel = FileChannel.open(Paths.get(fileName),
+				StandardOpenOption.READ)) {
+			for (long offset = 0; offset < size; offset += Packet.MAX_DATA_LENGTH) {
+				int index = ResumeJournal.segment(offset);
+				int length = (int) Math.min(Packet.MAX_DATA_LENGTH, size
+						- offset);
+				ByteBuffer buffer = ByteBuffer.wrap(segment, 0, length);
+
+				while (buffer.hasRemaining()
+						&& channel.read(buffer, offset + buffer.position()) >= 0) {
+				}
+
+				whole.update(segment, 0, length);
+
+				if (!this.isHeld(index)
+						|| this.checksum(segment, 0, length) != this.crcs[index]) {
+					if (index / 64 < this.held.length) {
+						this.held[index / 64] &= ~(1L << index);
+					}
+
+					bad += 1;
+				}
+			}
+		}
+
+		if (this.size >= 0 && bad == 0
+				&& (size != this.size || (int) whole.getValue() != this.digest)) {
+			Arrays.fill(this.held, 0);
+			this.end = 0;
+			bad = (int) ((size + Packet.MAX_DATA_LENGTH - 1) / Packet.MAX_DATA_LENGTH);
+		}
+
+		return bad;
+	}
+
+	/**
+	 * The download is complete and verified, the journal is not needed.
+	 */
+	public void delete() {
+		try {
+			Files.deleteIfExists(this.path);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Keeps segments past the first size of its arrays and across the words
+	 * of the bitmap, takes them over only for the same firmware and forgets
+	 * those the file does not match, all of them when only the whole does
+	 * not.
+	 * 
+	 * @return how many checks have failed
+	 */
+	private static int testSegments(Path dir) throws IOException {
+		final int l = Packet.MAX_DATA_LENGTH;
+		String output = dir.resolve("segments.out").toString();
+		Path journalPath = Paths.get(output + ".journal");
+		int[] segments = { 0, 1, 63, 64, 1500 };
+		long size = 1501L * l - 100;
+		byte[] data = new byte[l];
+		int fails = 0;
+
+		ResumeJournal journal = new ResumeJournal(output);
+
+		journal.settle(size, 42, null);
+
+		for (int segment : segments) {
+			Arrays.fill(data, (byte) segment);
+			journal.record((long) segment * l, data, 0,
+					segment == 1500 ? l - 100 : l);
+		}
+
+		journal.save();
+
+		PositionalSink sink = new PositionalSink(output, true);
+		ResumeJournal same = new ResumeJournal(output);
+
+		if (!same.settle(size, 42, sink)
+				|| same.resumedSegments != segments.length
+				|| sink.contiguous() != 2L * l) {
+			fails += 1;
+		}
+
+		sink.close();
+
+		if (new ResumeJournal(output).settle(size, 43, null)
+				|| new ResumeJournal(output).settle(size + l, 42, null)
+				|| new ResumeJournal(output).settle(-1, 42, null)) {
+			fails += 1;
+		}
+
+		/* a file of three segments, the last one short */
+		byte[] image = new byte[3 * l - 100];
+
+		new Random(33).nextBytes(image);
+
+		CRC32 crc = new CRC32();
+
+		crc.update(image, 0, image.length);
+
+		int digest = (int) crc.getValue();
+
+		for (int run = 0; run < 2; run += 1) {
+			Files.write(Paths.get(output), image);
+			Files.deleteIfExists(journalPath);
+			journal = new ResumeJournal(output);
+			journal.settle(image.length, run == 0 ? digest : ~digest, null);
+
+			for (int offset = 0; offset < image.length; offset += l) {
+				journal.record(offset, image, offset,
+						Math.min(l, image.length - offset));
+			}
+
+			/* a good file, then one whose whole is not the firmware */
+			if (journal.verify(output, image.length) != (run == 0 ? 0 : 3)) {
+				fails += 1;
+			}
+		}
+
+		journal = new ResumeJournal(output);
+		journal.settle(image.length, digest, null);
+
+		for (int offset = 0; offset < image.length; offset += l) {
+			journal.record(offset, image, offset,
+					Math.min(l, image.length - offset));
+		}
+
+		image[l + 1] ^= 1;
+		Files.write(Paths.get(output), image);
+
+		if (journal.verify(output, image.length) != 1) {
+			fails += 1;
+		}
+
+		/* the bad segment is forgotten, good data do not bring it back */
+		image[l + 1] ^= 1;
+		Files.write(Paths.get(output), image);
+
+		if (journal.verify(output, image.length) != 1) {
+			fails += 1;
+		}
+
+		Files.write(journalPath, new byte[] { 1, 2, 3 });
+
+		if (new ResumeJournal(output).settle(image.length, digest, null)) {
+			fails += 1;
+		}
+
+		Files.delete(journalPath);
+		Files.delete(Paths.get(output));
+
+		return fails;
+	}
+
+	/**
+	 * Checks the journal alone (testSegments()), then downloads a firmware
+	 * from a FirmwareServer of this process three times: without a journal,
+	 * with the journal of its first half and with the journal of another
+	 * firmware. The second must cost the server fewer segments, the third is
+	 * fetched whole; every file must be the firmware.
+	 * 
+	 * @return true if all has passed
+	 */
+	public static boolean test() {
+		int fails = 0;
+		Options options = new Options();
+		byte[] image = new byte[100_000];
+
+		new Random(41).nextBytes(image);
+
+		CRC32 crc = new CRC32();
+
+		crc.update(image, 0, image.length);
+
+		int digest = (int) crc.getValue();
+
+		try {
+			Path dir = Files.createTempDirectory("resume");
+			Path firmware = dir.resolve("firmware.bin");
+			String output = dir.resolve("firmware.out").toString();
+
+			Files.write(firmware, image);
+			fails += ResumeJournal.testSegments(dir);
+
+			options.shards = 1;
+			options.resume = true;
+
+			final FirmwareServer server = new FirmwareServer(0,
+					firmware.toString(), options);
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						server.run();
+					} catch (IOException e) {
+						/* the test fails on the missing segments */
+					}
+				}
+			}, "resume-test");
+
+			thread.setDaemon(true);
+			thread.start();
+
+			long[] sent = new long[3];
+			int half = image.length / 2 / Packet.MAX_DATA_LENGTH;
+
+			for (int run = 0; run < sent.length; run += 1) {
+				Files.deleteIfExists(Paths.get(output));
+
+				if (run > 0) {
+					/* what an earlier run killed halfway has left */
+					ResumeJournal journal = new ResumeJournal(output);
+
+					journal.settle(image.length, run == 1 ? digest
+							: ~digest, null);
+
+					for (int segment = 0; segment < half; segment += 1) {
+						journal.record((long) segment
+								* Packet.MAX_DATA_LENGTH, image, segment
+								* Packet.MAX_DATA_LENGTH,
+								Packet.MAX_DATA_LENGTH);
+					}
+
+					journal.save();
+					Files.write(Paths.get(output),
+							Arrays.copyOf(image, half
+									* Packet.MAX_DATA_LENGTH));
+				}
+
+				long before = server.segments();
+				UDP udp = new UDP("127.0.0.1", server.port(), options);
+				Download download = new Download(udp, false, output, options);
+
+				download.run(udp);
+				sent[run] = server.segments() - before;
+
+				if (download.result().isCompletedExceptionally()
+						|| !Arrays.equals(image, Files
+								.readAllBytes(Paths.get(output)))
+						|| Files.exists(Paths.get(output + ".journal"))) {
+					fails += 1;
+				}
+			}
+
+			/*
+			 * the held half is skipped, a few windows cross it; the other
+			 * firmware is sent whole (the first run may have retransmitted)
+			 */
+			int segments = (image.length + Packet.MAX_DATA_LENGTH - 1)
+					/ Packet.MAX_DATA_LENGTH;
+
+			if (sent[1] > segments - half / 2 || sent[2] < segments) {
+				fails += 1;
+			}
+
+			System.out.println("ResumeJournal: segments sent=" + sent[0]
+					+ ", resumed=" + sent[1] + ", other firmware=" + sent[2]);
+
+			Files.deleteIfExists(Paths.get(output));
+			Files.delete(firmware);
+			Files.delete(dir);
+		} catch (IOException e) {
+			e.printStackTrace();
+			fails += 1;
+		}
+
+		System.out.println("ResumeJournal: fails=" + fails);
+
+		return fails == 0;
+	}
+}
+
+/******************************************************************************/
+
+class Packet {
+
+	public final static int HEADER_SIZE = 9;
+	public final static int MAX_DATA_LENGTH = 255;
+
+	/**
+	 * Flag byte are zero bits.
+	 */
+	public final static byte FLAG_NONE = 0x00;
+
+	/**
+	 * Otevření nového spojení. Posílá klient i server (pouze) na začátku v
+	 * prvním paketu. V datové části musí být právě 1 byte s kódem příkazu.
+	 */
+	public final static byte FLAG_SYN = 0x04;
+
+	/**
+	 * Ukončení spojení. Posílá klient i server, pokud již nemají žádná další
+	 * data k odeslání. Paket s nastaveným příznakem FIN již nemůže obsahovat
+	 * žádná data. Ukončení spojení nelze odvolat. Oba směry spojení se
+	 * uzavírají zvlášť. Sekvenční číslo se po odeslání FIN již nesmí zvětšit.
+	 */
+	public final static byte FLAG_FIN = 0x02;
+
+	/**
+	 * Zrušení spojení kvůli chybě. Posílá klient i server v případě detekování
+	 * logické chyby v hodnotách v hlavičce. Např. přijatý paket neobsahuje
+	 * příznak SYN a ID spojení není evidováno. Nebo je hodnota potvrzovacího
+	 * čísla menší, než byla v posledním přijatém paketu (klesá). Pozor na
+	 * přetečení sekvenčních a potvrzovacích čísel. Žádná z komunikujících stran
+	 * po odeslání paketu s příznakem RST již dále neukončuje spojení
+	 * standardním způsobem - spojení je přenosem paketu s příznakem RST
+	 * definitivně ukončeno.
+	 */
+	public final static byte FLAG_RST = 0x01;
+
+	/**************************************************************************/
+
+	public int connId;
+	public short seqNum;
+	public short ackNum;
+	public byte flags;
+	public byte data[];
+	public long time;
+
+	
+	
+	/**************************************************************************/
+
+	public Packet(int connId, short seqNum, short ackNum, byte flags,
+			byte data[]) {
+		this.connId = connId;
+		this.seqNum = seqNum;
+		this.ackNum = ackNum;
+		this.flags = flags;
+
+		if (data == null) {
+			this.data = new byte[0];
+		} else {
+			this.data = data;
+		}
+	}
+
+	/**
+	 * @return true if a datagram of the size can be a packet, a header and
+	 *         at most MAX_DATA_LENGTH bytes of data
+	 */
+	public static boolean isValidSize(int size) {
+		return size >= Packet.HEADER_SIZE
+				&& size <= Packet.HEADER_SIZE + Packet.MAX_DATA_LENGTH;
+	}
+
+	public Packet(byte[] byteArray, int size) {
+		if (!Packet.isValidSize(size)) {
+			throw new IllegalArgumentException("A datagram of " + size
+					+ " bytes is not a packet.");
+		}
+
+		/* Covert 4x byte to int */
+		// @formatter:off
+		this.connId = (byteArray[0] << 24) & 0xFF000000 |
+				      (byteArray[1] << 16) & 0x00FF0000 |
+				      (byteArray[2] << 8)  & 0x0000FF00 |
+				       byteArray[3]        & 0x000000FF;
+		// @formatter:on
+
+		/* Covert 2x byte to short */
+		this.seqNum = (short) ((byteArray[4] << 8) & 0xFF00 | byteArray[5] & 0x00FF);
+
+		/* Covert 2x byte to short */
+		this.ackNum = (short) ((byteArray[6] << 8) & 0xFF00 | byteArray[7] & 0x00FF);
+
+		this.flags = byteArray[8];
+
+		this.data = new byte[size - Packet.HEADER_SIZE];
+		System.arraycopy(byteArray, Packet.HEADER_SIZE, this.data, 0, size
+				- Packet.HEADER_SIZE);
+	}
+
+	/**************************************************************************/
+
+	public byte[] getAsByteArray() {
+		byte[] toReturn = new byte[Packet.HEADER_SIZE + data.length];
+
+		/* Convert int to 4x byte. */
+		toReturn[0] = (byte) (this.connId >> 24);
+		toReturn[1] = (byte) (this.connId >> 16);
+		toReturn[2] = (byte) (this.connId >> 8);
+		toReturn[3] = (byte) this.connId;
+
+		/* Convert short to 2x byte. */
+		toReturn[4] = (byte) (this.seqNum >> 8);
+		toReturn[5] = (byte) this.seqNum;
+
+		/* Convert short to 2x byte. */
+		toReturn[6] = (byte) (this.ackNum >> 8);
+		toReturn[7] = (byte) this.ackNum;
+
+		toReturn[8] = (byte) this.flags;
+
+		// FIXME test this, print is in hexa
+		System.arraycopy(this.data, 0, toReturn, Packet.HEADER_SIZE,
+				this.data.length);
+
+		if (Robot.DEBUG && false) {
+			System.out.println("asByteArray: ");
+			for (byte _byte : toReturn) {
+				System.out.print(String.format("%02X ", _byte));
+			}
+
+			System.out.println("");
+		}
+		return toReturn;
+	}
+
+	public int getTotalSize() {
+		return Packet.HEADER_SIZE + this.data.length;
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("connId=" + Integer.toHexString(this.connId));
+
+		sb.append(",seqNum=" + this.seqNum);
+
+		sb.append(",ackNum=" + this.ackNum);
+
+		sb.append(",flags=");
+		switch (this.flags) {
+		case Packet.FLAG_FIN:
+			sb.append("FIN");
+			break;
+		case Packet.FLAG_RST:
+			sb.append("RST");
+			break;
+		case Packet.FLAG_SYN:
+			sb.append("SYN");
+			break;
+		case Packet.FLAG_NONE:
+			sb.append("NONE");
+			break;
+		default:
+			System.err.println("Unknown flag. Exiting.");
+			System.exit(1);
+		}
+
+		if (this.data == null) {
+			sb.append(",data=null");
+		} else {
+			sb.append(",data_len=" + this.data.length);
+		}
+
+		// sb.append(",data='");
+
+		// for (byte _byte : this.data) {
+		// sb.append(String.format("%02X ", _byte));
+		// }
+
+		// if (this.data.length > 2) {
+		// sb.append(String.format("%02X ", this.data[0]));
+		// sb.append(" .. ");
+		// sb.append(String.format("%02X ", this.data[this.data.length - 1]));
+		// }
+		//
+		// sb.append("'");
+
+		return sb.toString();
+	}
+
+	public boolean isSyn() {
+		if (this.flags == Packet.FLAG_SYN) {
+			return true;
+		}
+
+		return false;
+	}
+
+	public boolean isData() {
+		if (this.flags == Packet.FLAG_NONE && this.data != null
+				&& this.data.length > 0) {
+			return true;
+		}
+
+		return false;
+	}
+
+	public boolean isFin() {
+		if (this.flags == Packet.FLAG_FIN) {
+			return true;
+		}
+
+		return false;
+	}
+
+}
+
+/******************************************************************************/
+
+/**
+ * Flyweight over a datagram in a ByteBuffer, the header fields are read and
+ * written in place (big-endian VarHandles), the data stay in the buffer. One
+ * view is wrapped around buffer after buffer, nothing is allocated.
+ */
+class PacketView {
+
+	private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(
+			int[].class, ByteOrder.BIG_ENDIAN);
+	private static final VarHandle SHORT = MethodHandles
+			.byteBufferViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+
+	private static final int CONN_ID = 0;
+	private static final int SEQ_NUM = 4;
+	private static final int ACK_NUM = 6;
+	private static final int FLAGS = 8;
+
+	private ByteBuffer buffer;
+	private int length;
+
+	/**
+	 * @param buffer
+	 *            heap buffer with the datagram at index 0
+	 * @param length
+	 *            size of the datagram
+	 */
+	public PacketView wrap(ByteBuffer buffer, int length) {
+		this.buffer = buffer;
+		this.length = length;
+
+		return this;
+	}
+
+	public ByteBuffer buffer() {
+		return this.buffer;
+	}
+
+	public int connId() {
+		return (int) PacketView.INT.get(this.buffer, PacketView.CONN_ID);
+	}
+
+	public short seqNum() {
+		return (short) PacketView.SHORT.get(this.buffer, PacketView.SEQ_NUM);
+	}
+
+	public short ackNum() {
+		return (short) PacketView.SHORT.get(this.buffer, PacketView.ACK_NUM);
+	}
+
+	public byte flags() {
+		return this.buffer.get(PacketView.FLAGS);
+	}
+
+	public int dataLength() {
+		return this.length - Packet.HEADER_SIZE;
+	}
+
+	public byte data(int i) {
+		return this.buffer.get(Packet.HEADER_SIZE + i);
+	}
+
+	/**
+	 * @return the array with the data, they start at dataOffset()
+	 */
+	public byte[] array() {
+		return this.buffer.array();
+	}
+
+	public int dataOffset() {
+		return this.buffer.arrayOffset() + Packet.HEADER_SIZE;
+	}
+
+	/**
+	 * @return false if the datagram is shorter than a header or carries more
+	 *         than MAX_DATA_LENGTH bytes, it is none of the kinds below then
+	 */
+	public boolean isValid() {
+		return Packet.isValidSize(this.length);
+	}
+
+	public boolean isSyn() {
+		return this.isValid() && this.flags() == Packet.FLAG_SYN;
+	}
+
+	public boolean isData() {
+		return this.isValid() && this.flags() == Packet.FLAG_NONE
+				&& this.dataLength() > 0;
+	}
+
+	public boolean isFin() {
+		return this.isValid() && this.flags() == Packet.FLAG_FIN;
+	}
+
+	public boolean isRst() {
+		return this.isValid() && this.flags() == Packet.FLAG_RST;
+	}
+
+	/**
+	 * Datagrams which are not packets (too short, too long) must not get
+	 * into the Download, the valid ones around them still arrive.
+	 * 
+	 * @return true if all has passed
+	 */
+	public static boolean test() {
+		int fails = 0;
+
+		int[] sizes = { 0, Packet.HEADER_SIZE - 1, Packet.HEADER_SIZE,
+				Packet.HEADER_SIZE + Packet.MAX_DATA_LENGTH,
+				Packet.HEADER_SIZE + Packet.MAX_DATA_LENGTH + 1,
+				BufferPool.DATAGRAM_SIZE };
+		boolean[] valid = { false, false, true, true, false, false };
+		PacketView view = new PacketView();
+		ByteBuffer buffer = ByteBuffer.allocate(BufferPool.DATAGRAM_SIZE);
+
+		for (int i = 0; i < sizes.length; i += 1) {
+			view.wrap(buffer, sizes[i]);
+
+			if (view.isValid() != valid[i] || (!valid[i] && view.isData())) {
+				fails += 1;
+			}
+		}
+
+		int connId = 0x5150;
+		ByteBuffer syn = PacketView.encode(new Packet(connId, (short) 0,
+				(short) 0, Packet.FLAG_SYN, new byte[] { Robot.SIGN_DOWNLOAD }));
+		ByteBuffer oversized = ByteBuffer.allocate(BufferPool.DATAGRAM_SIZE);
+		ByteBuffer runt = ByteBuffer.allocate(BufferPool.DATAGRAM_SIZE);
+
+		/* 256 bytes of data, out of order at seq 510 */
+		PacketView.encode(oversized, connId, (short) 510, (short) 0,
+				Packet.FLAG_NONE);
+		PacketView.encode(runt, connId, (short) 0, (short) 0,
+				Packet.FLAG_NONE);
+
+		Download download = new Download(new LoopbackUDP());
+
+		try {
+			download.start(System.nanoTime());
+			download.receive(view.wrap(syn, syn.limit()));
+			download.receive(view.wrap(oversized, oversized.capacity()));
+			download.receive(view.wrap(runt, Packet.HEADER_SIZE - 1));
+
+			for (ByteBuffer packet : AllocationBudget.transfer(connId, 4)) {
+				download.receive(view.wrap(packet, packet.limit()));
+			}
+
+			if (download.received() != 4 * Packet.MAX_DATA_LENGTH) {
+				fails += 1;
+			}
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			fails += 1;
+		}
+
+		WindowOccupancyEvent.ACTIVE.remove(download);
+
+		try {
+			new Packet(oversized.array(), oversized.capacity());
+			fails += 1;
+		} catch (IllegalArgumentException e) {
+			/* expected */
+		}
+
+		System.out.println("PacketView: fails=" + fails);
+
+		return fails == 0;
+	}
+
+	/**
+	 * Writes the header at index 0 of the buffer, its position and limit are
+	 * not touched.
+	 */
+	public static void encode(ByteBuffer buffer, int connId, short seqNum,
+			short ackNum, byte flags) {
+		PacketView.INT.set(buffer, PacketView.CONN_ID, connId);
+		PacketView.SHORT.set(buffer, PacketView.SEQ_NUM, seqNum);
+		PacketView.SHORT.set(buffer, PacketView.ACK_NUM, ackNum);
+		buffer.put(PacketView.FLAGS, flags);
+	}
+
+	/**
+	 * @return a datagram with the packet, for tests
+	 */
+	public static ByteBuffer encode(Packet packet) {
+		ByteBuffer buffer = ByteBuffer.allocate(packet.getTotalSize());
+
+		PacketView.encode(buffer, packet.connId, packet.seqNum,
+				packet.ackNum, packet.flags);
+		buffer.position(Packet.HEADER_SIZE);
+		buffer.put(packet.data);
+		buffer.clear();
+
+		return buffer;
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * Receive buffers which are used again. When the pool is dry a new buffer is
+ * allocated and counted.
+ */
+class BufferPool {
+
+	/**
+	 * A datagram one byte longer than the protocol allows is recognised.
+	 */
+	public static final int DATAGRAM_SIZE = Packet.HEADER_SIZE
+			+ Packet.MAX_DATA_LENGTH + 1;
+
+	private final ByteBuffer[] free;
+	private int count;
+
+	public long misses;
+
+	public BufferPool(int buffers) {
+		this.free = new ByteBuffer[buffers];
+
+		for (int i = 0; i < buffers; i += 1) {
+			this.free[i] = ByteBuffer.allocate(BufferPool.DATAGRAM_SIZE);
+		}
+
+		this.count = buffers;
+	}
+
+	public ByteBuffer acquire() {
+		if (this.count == 0) {
+			this.misses += 1;
+			return ByteBuffer.allocate(BufferPool.DATAGRAM_SIZE);
+		}
+
+		this.count -= 1;
+		ByteBuffer buffer = this.free[this.count];
+		this.free[this.count] = null;
+		buffer.clear();
+
+		return buffer;
+	}
+
+	public void release(ByteBuffer buffer) {
+		if (this.count < this.free.length) {
+			this.free[this.count] = buffer;
+			this.count += 1;
+		}
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * What the kernel says about a UDP socket (/proc/net/udp on Linux): the
+ * datagrams it has dropped because the receive buffer was full, and how many
+ * bytes wait in the receive queue. Elsewhere nothing is reported.
+ */
+class SocketStats {
+
+	private static final String[] TABLES = { "/proc/net/udp",
+			"/proc/net/udp6" };
+	private static final EventType DROP_EVENTS = EventType
+			.getEventType(SocketDropsEvent.class);
+
+	private final int localPort;
+	private boolean available;
+	private long firstDrops = -1;
+	private long drops;
+	private long queue;
+
+	public long maxQueue;
+	public long samples;
+
+	public SocketStats(int localPort) {
+		this.localPort = localPort;
+		this.sample();
+	}
+
+	/**
+	 * Reads the counters of the socket once more.
+	 */
+	public void sample() {
+		for (String table : SocketStats.TABLES) {
+			try (BufferedReader reader = Files
+					.newBufferedReader(Paths.get(table))) {
+				String line = reader.readLine();
+
+				while ((line = reader.readLine()) != null) {
+					if (this.parse(line.trim().split("\\s+"))) {
+						return;
+					}
+				}
+			} catch (IOException | RuntimeException e) {
+				/* no such table here */
+			}
+		}
+	}
+
+	private boolean parse(String[] fields) {
+		String local = fields[1];
+		int port = Integer.parseInt(local.substring(local.indexOf(':') + 1),
+				16);
+
+		if (port != this.localPort) {
+			return false;
+		}
+
+		String queues = fields[4];
+
+		this.queue = Long.parseLong(queues.substring(queues.indexOf(':') + 1),
+				16);
+		long before = this.drops;
+
+		this.drops = Long.parseLong(fields[fields.length - 1]);
+
+		if (this.firstDrops < 0) {
+			this.firstDrops = this.drops;
+		} else if (this.drops > before && SocketStats.DROP_EVENTS.isEnabled()) {
+			SocketDropsEvent event = new SocketDropsEvent();
+
+			event.port = this.localPort;
+			event.dropped = this.drops - before;
+			event.queue = this.queue;
+			event.commit();
+		}
+
+		this.maxQueue = Math.max(this.maxQueue, this.queue);
+		this.samples += 1;
+		this.available = true;
+
+		return true;
+	}
+
+	/**
+	 * @return datagrams dropped since the first sample
+	 */
+	public long drops() {
+		return this.drops - this.firstDrops;
+	}
+
+	@Override
+	public String toString() {
+		if (!this.available) {
+			return "kernel stats unavailable";
+		}
+
+		return "kernel drops=" + this.drops() + ", queue=" + this.queue
+				+ " B (max " + this.maxQueue + " B in " + this.samples
+				+ " samples)";
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * Sends the packets of one transfer. Who receives the answers depends on the
+ * transport: a UDP receives them itself (drive()), the TransferEngine
+ * receives those of all its ChannelUDPs.
+ */
+abstract class Transport {
+
+	public abstract void send(Packet packet);
+
+	/**
+	 * Sends a header and the payload (position to limit, or null).
+	 */
+	public abstract void sendSegment(int connId, short seqNum, short ackNum,
+			byte flags, ByteBuffer payload);
+}
+
+/******************************************************************************/
+
+class UDP extends Transport {
+	/**
+	 * 
+	 */
+	public final static int TIMEOUT = 100;
+
+	/**
+	 * Most datagrams drained at one wakeup in the batch mode.
+	 */
+	public final static int BATCH_SIZE = 64;
+
+	/**
+	 * How often the kernel counters are read in the batch mode.
+	 */
+	public final static long STATS_PERIOD = 100_000_000L;
+
+	public int port;
+	public InetAddress address;
+	public String addressName;
+	public DatagramSocket socket;
+
+	/**
+	 * The channel of the socket, for gathering writes.
+	 */
+	public DatagramChannel channel;
+
+	/**
+	 * Reused header and header + payload for sendSegment().
+	 */
+	private final ByteBuffer header = ByteBuffer
+			.allocateDirect(Packet.HEADER_SIZE);
+	private final ByteBuffer[] segment = new ByteBuffer[2];
+
+	/**
+	 * Whole packets are encoded here by send().
+	 */
+	private final ByteBuffer sendBuffer = ByteBuffer
+			.allocateDirect(Packet.HEADER_SIZE + Packet.MAX_DATA_LENGTH);
+
+	protected final BufferPool pool = new BufferPool(UDP.BATCH_SIZE);
+	private final PacketView view = new PacketView();
+	private final PacketView[] batch = new PacketView[UDP.BATCH_SIZE];
+
+	/**
+	 * Drain the socket in batches (driveBatch()).
+	 */
+	public boolean batchMode;
+
+	public long batches;
+	public long batchedDatagrams;
+	public int maxBatch;
+
+	/**
+	 * Where every datagram sent and received is recorded, or null.
+	 */
+	public static TraceWriter trace;
+	private final DatagramPacket datagram = new DatagramPacket(new byte[0], 0);
+
+	/**
+	 * Transport without a socket, for subclasses which drive the protocol in
+	 * process.
+	 */
+	protected UDP() {
+	}
+
+	public UDP(String serverAddress, int port) {
+		this(serverAddress, port, new Options());
+	}
+
+	/**
+	 * Takes the buffer sizes and the batch mode from the options.
+	 */
+	public UDP(String serverAddress, int port, Options options) {
+		try {
+			channel = DatagramChannel.open();
+			socket = channel.socket();
+		} catch (IOException e) {
+			System.err.println("Creation of DatagramSocket failed.");
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		try {
+			socket.setSoTimeout(UDP.TIMEOUT);
+		} catch (SocketException e) {
+			e.printStackTrace();
+		}
+
+		try {
+			address = InetAddress.getByName(serverAddress);
+		} catch (UnknownHostException e) {
+			System.err.println("Unknown address of the server.");
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		this.port = port;
+
+		this.socket.connect(this.address, this.port);
+		UDP.setBufferSizes(this.channel, options.rcvbuf, options.sndbuf);
+		this.batchMode = options.batch;
+	}
+
+	/**
+	 * Sets SO_RCVBUF and SO_SNDBUF, zero keeps the default of the system.
+	 */
+	public static void setBufferSizes(DatagramChannel channel, int rcvbuf,
+			int sndbuf) {
+		try {
+			if (rcvbuf > 0) {
+				channel.setOption(StandardSocketOptions.SO_RCVBUF, rcvbuf);
+			}
+
+			if (sndbuf > 0) {
+				channel.setOption(StandardSocketOptions.SO_SNDBUF, sndbuf);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return the buffer sizes the kernel has granted
+	 */
+	public static String bufferSizes(DatagramChannel channel) {
+		try {
+			return "rcvbuf="
+					+ channel.getOption(StandardSocketOptions.SO_RCVBUF)
+					+ " B, sndbuf="
+					+ channel.getOption(StandardSocketOptions.SO_SNDBUF)
+					+ " B";
+		} catch (IOException e) {
+			return "rcvbuf=?, sndbuf=?";
+		}
+	}
+
+	/**
+	 * @param timeout
+	 *            how long recv() waits, in milliseconds
+	 */
+	public void setTimeout(int timeout) {
+		try {
+			this.socket.setSoTimeout(timeout);
+		} catch (SocketException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void send(Packet packet) {
+		if (Log.TRACE) {
+			Log.packet(Log.LEVEL_TRACE, Log.EVENT_SEND, packet);
+		}
+
+		this.sendBuffer.clear();
+		PacketView.encode(this.sendBuffer, packet.connId, packet.seqNum,
+				packet.ackNum, packet.flags);
+		this.sendBuffer.position(Packet.HEADER_SIZE);
+		this.sendBuffer.put(packet.data);
+		this.sendBuffer.flip();
+
+		if (UDP.trace != null) {
+			UDP.trace.record(TraceWriter.SENT, this.sendBuffer);
+		}
+
+		try {
+			this.channel.write(this.sendBuffer);
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+		}
+	}
+
+	/**
+	 * Sends a header and a payload straight from the buffer (e.g. a mapped
+	 * file) in one datagram, the payload is not copied.
+	 * 
+	 * @param payload
+	 *            data between its position and limit, may be null
+	 */
+	public void sendSegment(int connId, short seqNum, short ackNum,
+			byte flags, ByteBuffer payload) {
+		int length = payload == null ? 0 : payload.remaining();
+
+		if (Log.TRACE) {
+			Log.record(Log.LEVEL_TRACE, Log.EVENT_SEND, connId, seqNum,
+					ackNum, flags, length);
+		}
+
+		PacketView.encode(this.header, connId, seqNum, ackNum, flags);
+		this.header.clear();
+
+		if (UDP.trace != null) {
+			UDP.trace.record(TraceWriter.SENT, this.header, payload);
+		}
+
+		try {
+			if (payload == null) {
+				this.channel.write(this.header);
+			} else {
+				this.segment[0] = this.header;
+				this.segment[1] = payload;
+				this.channel.write(this.segment);
+			}
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+		}
+	}
+
+	/**
+	 * Runs the transfer on this socket until it finishes.
+	 */
+	public void drive(Transfer transfer) {
+		if (this.batchMode) {
+			try {
+				this.driveBatch(transfer);
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.exit(1);
+			}
+			return;
+		}
+
+		transfer.start(System.nanoTime());
+
+		while (!transfer.isFinished()) {
+			long deadline = transfer.deadline();
+
+			if (deadline == Long.MAX_VALUE) {
+				this.setTimeout(UDP.TIMEOUT);
+			} else {
+				this.setTimeout((int) Math.max(1,
+						(deadline - System.nanoTime() + 999_999) / 1_000_000));
+			}
+
+			try {
+				PacketView packet = this.recv();
+
+				transfer.receive(packet);
+				this.pool.release(packet.buffer());
+			} catch (SocketTimeoutException e) {
+				if (Log.DEBUG) {
+					Log.record(Log.LEVEL_DEBUG, Log.EVENT_TIMEOUT,
+							transfer.connId(), 0, 0, 0, 0);
+				}
+			}
+
+			/* a steady stream of packets must not hold the timers back */
+			if (!transfer.isFinished()
+					&& System.nanoTime() >= transfer.deadline()) {
+				transfer.onTimer(System.nanoTime());
+			}
+		}
+	}
+
+	/**
+	 * Runs the transfer with the socket in non-blocking mode: every wakeup
+	 * drains all the queued datagrams (up to BATCH_SIZE) and hands them over
+	 * at once.
+	 */
+	public void driveBatch(Transfer transfer) throws IOException {
+		Selector selector = Selector.open();
+		SocketStats stats = new SocketStats(this.socket.getLocalPort());
+		long nextSample = System.nanoTime() + UDP.STATS_PERIOD;
+
+		for (int i = 0; i < this.batch.length; i += 1) {
+			this.batch[i] = new PacketView();
+		}
+
+		this.channel.configureBlocking(false);
+		this.channel.register(selector, SelectionKey.OP_READ);
+
+		transfer.start(System.nanoTime());
+
+		while (!transfer.isFinished()) {
+			long deadline = transfer.deadline();
+
+			if (deadline == Long.MAX_VALUE) {
+				selector.select(UDP.TIMEOUT);
+			} else {
+				long wait = (deadline - System.nanoTime() + 999_999) / 1_000_000;
+
+				if (wait > 0) {
+					selector.select(wait);
+				} else {
+					selector.selectNow();
+				}
+			}
+
+			selector.selectedKeys().clear();
+
+			int count = this.drain();
+
+			if (count > 0) {
+				this.batches += 1;
+				this.batchedDatagrams += count;
+				this.maxBatch = Math.max(this.maxBatch, count);
+
+				transfer.receiveBatch(this.batch, count);
+
+				for (int i = 0; i < count; i += 1) {
+					this.pool.release(this.batch[i].buffer());
+				}
+			}
+
+			long now = System.nanoTime();
+
+			if (!transfer.isFinished() && now >= transfer.deadline()) {
+				transfer.onTimer(now);
+			}
+
+			if (now >= nextSample) {
+				stats.sample();
+				nextSample = now + UDP.STATS_PERIOD;
+			}
+		}
+
+		stats.sample();
+		selector.close();
+		this.channel.configureBlocking(true);
+
+		System.out.println("Socket: " + UDP.bufferSizes(this.channel)
+				+ ", batches=" + this.batches + ", datagrams="
+				+ this.batchedDatagrams + " (max " + this.maxBatch
+				+ " at once), " + stats);
+	}
+
+	/**
+	 * @return how many datagrams have been received into the batch
+	 */
+	private int drain() throws IOException {
+		int count = 0;
+
+		while (count < this.batch.length) {
+			ByteBuffer buffer = this.pool.acquire();
+			SocketAddress from = null;
+
+			try {
+				from = this.channel.receive(buffer);
+			} catch (PortUnreachableException e) {
+				/* the server is not up (yet), the handshake tries again */
+			}
+
+			if (from == null) {
+				this.pool.release(buffer);
+				break;
+			}
+
+			if (!Packet.isValidSize(buffer.position())) {
+				this.pool.release(buffer);
+				continue;
+			}
+
+			if (UDP.trace != null) {
+				UDP.trace.record(TraceWriter.RECEIVED, buffer.array(),
+						buffer.position());
+			}
+
+			this.batch[count].wrap(buffer, buffer.position());
+			count += 1;
+		}
+
+		return count;
+	}
+
+	/**
+	 * Receives a datagram into a buffer of the pool, give the buffer back
+	 * (pool.release(view.buffer())) when done with it. The view is reused by
+	 * the next call.
+	 */
+	public PacketView recv() throws SocketTimeoutException {
+		for (;;) {
+			ByteBuffer buffer = this.pool.acquire();
+
+			this.datagram.setData(buffer.array(), buffer.arrayOffset(),
+					buffer.capacity());
+
+			try {
+				this.socket.receive(this.datagram);
+			} catch (SocketTimeoutException e) {
+				this.pool.release(buffer);
+				throw e;
+			} catch (PortUnreachableException e) {
+				/* the server is not up (yet), the handshake tries again */
+				this.pool.release(buffer);
+				throw new SocketTimeoutException("port unreachable");
+			} catch (IOException e) {
+				System.out.println("System receive failed.");
+				e.printStackTrace();
+				System.exit(1);
+			}
+
+			if (Packet.isValidSize(this.datagram.getLength())) {
+				if (UDP.trace != null) {
+					UDP.trace.record(TraceWriter.RECEIVED, buffer.array(),
+							this.datagram.getLength());
+				}
+
+				return this.view.wrap(buffer, this.datagram.getLength());
+			}
+
+			this.pool.release(buffer);
+		}
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * Smoothed round-trip time and retransmission timeout (Jacobson/Karels).
+ */
+class RttEstimator {
+
+	public static final long MIN_RTO = 10_000_000L;
+	public static final long MAX_RTO = 2_000_000_000L;
+	public static final long INITIAL_RTO = UDP.TIMEOUT * 1_000_000L;
+
+	private static final int MAX_BACKOFF = 6;
+
+	private long srtt;
+	private long rttvar;
+	private long rto = RttEstimator.INITIAL_RTO;
+	private int backoff;
+
+	/**
+	 * @param rtt
+	 *            measured round trip in nanoseconds
+	 */
+	public void sample(long rtt) {
+		if (this.srtt == 0) {
+			this.srtt = rtt;
+			this.rttvar = rtt / 2;
+		} else {
+			this.rttvar = (3 * this.rttvar + Math.abs(this.srtt - rtt)) / 4;
+			this.srtt = (7 * this.srtt + rtt) / 8;
+		}
+
+		this.rto = Math.max(RttEstimator.MIN_RTO,
+				Math.min(RttEstimator.MAX_RTO, this.srtt + 4 * this.rttvar));
+		this.backoff = 0;
+	}
+
+	/**
+	 * Doubles the timeout after it has expired without an answer.
+	 */
+	public void backoff() {
+		if (this.backoff < RttEstimator.MAX_BACKOFF) {
+			this.backoff += 1;
+		}
+	}
+
+	public void resetBackoff() {
+		this.backoff = 0;
+	}
+
+	public long srtt() {
+		return this.srtt;
+	}
+
+	/**
+	 * @return timeout in nanoseconds
+	 */
+	public long rto() {
+		return Math.min(RttEstimator.MAX_RTO, this.rto << this.backoff);
+	}
+
+	/**
+	 * The timeout follows the samples between MIN_RTO and MAX_RTO; backoff
+	 * doubles it up to MAX_BACKOFF times until a sample or a reset.
+	 */
+	public static boolean test() {
+		RttEstimator rtt = new RttEstimator();
+		int fails = 0;
+
+		if (rtt.srtt() != 0 || rtt.rto() != RttEstimator.INITIAL_RTO) {
+			fails += 1;
+		}
+
+		/* srtt + 4 * rttvar, the variance is half the first sample */
+		rtt.sample(20_000_000L);
+
+		if (rtt.srtt() != 20_000_000L || rtt.rto() != 60_000_000L) {
+			fails += 1;
+		}
+
+		rtt.sample(20_000_000L);
+
+		if (rtt.srtt() != 20_000_000L || rtt.rto() != 50_000_000L) {
+			fails += 1;
+		}
+
+		for (int i = 0; i < 100; i += 1) {
+			rtt.sample(100_000L);
+		}
+
+		if (rtt.rto() != RttEstimator.MIN_RTO) {
+			fails += 1;
+		}
+
+		for (int i = 0; i < RttEstimator.MAX_BACKOFF + 2; i += 1) {
+			rtt.backoff();
+		}
+
+		if (rtt.rto() != RttEstimator.MIN_RTO << RttEstimator.MAX_BACKOFF) {
+			fails += 1;
+		}
+
+		rtt.resetBackoff();
+
+		if (rtt.rto() != RttEstimator.MIN_RTO) {
+			fails += 1;
+		}
+
+		rtt.backoff();
+		rtt.sample(5_000_000_000L);
+
+		if (rtt.rto() != RttEstimator.MAX_RTO) {
+			fails += 1;
+		}
+
+		rtt.backoff();
+
+		if (rtt.rto() != RttEstimator.MAX_RTO) {
+			fails += 1;
+		}
+
+		System.out.println("RttEstimator: fails=" + fails);
+
+		return fails == 0;
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * When the receiver sends ACKs, and how many it has sent for each reason.
+ * 
+ * In-order data are acknowledged every 'coalesce' packets or after 'delay',
+ * a gap (and its fill) is acknowledged at once, a burst of duplicates only
+ * once per 'delay' and when nothing comes, the ACK is sent again after the
+ * retransmission timeout.
+ */
+class AckPolicy {
+
+	public static final int DEFAULT_COALESCE = 2;
+	public static final long DEFAULT_DELAY = 20_000_000L;
+
+	/**
+	 * ACK every n-th in-order packet.
+	 */
+	public final int coalesce;
+
+	/**
+	 * Longest time an in-order packet waits for its ACK, in nanoseconds.
+	 */
+	public final long delay;
+
+	public final boolean immediateOnGap;
+	public final boolean timerDriven;
+
+	public long inOrderAcks;
+	public long coalesced;
+	public long delayedAcks;
+	public long gapAcks;
+	public long fillAcks;
+	public long duplicateAcks;
+	public long timerAcks;
+
+	/**
+	 * Duplicates which came shortly after an ACK and were not answered.
+	 */
+	public long suppressed;
+
+	/**
+	 * ACKs of a batch which went out as one ACK at its end.
+	 */
+	public long batched;
+
+	public AckPolicy() {
+		this(AckPolicy.DEFAULT_COALESCE, AckPolicy.DEFAULT_DELAY, true, true);
+	}
+
+	public AckPolicy(int coalesce, long delay, boolean immediateOnGap,
+			boolean timerDriven) {
+		this.coalesce = Math.max(1, coalesce);
+		this.delay = delay;
+		this.immediateOnGap = immediateOnGap;
+		this.timerDriven = timerDriven;
+	}
+
+	public long acks() {
+		return this.inOrderAcks + this.delayedAcks + this.gapAcks
+				+ this.fillAcks + this.duplicateAcks + this.timerAcks
+				- this.batched;
+	}
+
+	@Override
+	public String toString() {
+		return "acks=" + this.acks() + " (in-order=" + this.inOrderAcks
+				+ ",delayed=" + this.delayedAcks + ",gap=" + this.gapAcks
+				+ ",fill=" + this.fillAcks + ",duplicate="
+				+ this.duplicateAcks + ",timer=" + this.timerAcks
+				+ "),coalesced=" + this.coalesced + ",suppressed="
+				+ this.suppressed + ",batched=" + this.batched;
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * Settings of the connection handshake.
+ */
+class HandshakePolicy {
+
+	public static final int DEFAULT_ATTEMPTS = 20;
+	public static final double DEFAULT_BACKOFF = 2.0;
+	public static final double DEFAULT_JITTER = 0.25;
+
+	/**
+	 * Timeout of the first SYN in nanoseconds, zero takes the RTO.
+	 */
+	public long initialTimeout;
+
+	/**
+	 * The timeout grows this many times with every attempt, up to
+	 * RttEstimator.MAX_RTO.
+	 */
+	public double backoff = HandshakePolicy.DEFAULT_BACKOFF;
+
+	/**
+	 * Every timeout is moved randomly by up to this part of it, so robots
+	 * which have lost the server together do not come back together.
+	 */
+	public double jitter = HandshakePolicy.DEFAULT_JITTER;
+
+	/**
+	 * The connection fails after this many unanswered attempts.
+	 */
+	public int attempts = HandshakePolicy.DEFAULT_ATTEMPTS;
+
+	/**
+	 * SYNs sent at every attempt, the first answer wins and the other
+	 * connections are reset.
+	 */
+	public int parallel = 1;
+
+	/**
+	 * A download takes the first data packet as the answer when the SYN
+	 * answer has been lost.
+	 */
+	public boolean earlyData;
+}
+
+/******************************************************************************/
+
+/**
+ * The opening of one connection: SYNs with a growing, jittered timeout until
+ * the server answers or the attempts run out. Packets of other connections
+ * are reset.
+ */
+class Handshake {
+
+	public static final int CONNECTING = 0;
+	public static final int CONNECTED = 1;
+	public static final int FAILED = 2;
+
+	/**
+	 * Second byte of a download SYN which asks for the size and the CRC32 of
+	 * the firmware. A server which knows it answers the command, this byte,
+	 * the size (8 bytes) and the CRC32 (4 bytes), and takes ACKs of the data
+	 * it has not sent (the robot holds them from an earlier run).
+	 */
+	public static final byte OPTION_DIGEST = 'D';
+	public static final int DIGEST_ANSWER_LENGTH = 1 + 1 + 8 + 4;
+
+	private static final EventType TIMEOUT_EVENTS = EventType
+			.getEventType(TimeoutEvent.class);
+
+	private final Transport udp;
+	private final byte command;
+	private boolean digestRequested;
+	private final HandshakePolicy policy;
+	private final RttEstimator rtt;
+
+	private int state = Handshake.CONNECTING;
+	private int connId;
+	private int attempts;
+	private long startTime;
+	private long synTime;
+	private long deadline;
+
+	/**
+	 * The connection has been opened by a data packet.
+	 */
+	private boolean early;
+
+	/**
+	 * Size and CRC32 of the firmware from the answer, the size is -1 when the
+	 * server has not told them.
+	 */
+	private long imageSize = -1;
+	private int imageDigest;
+
+	private final HandshakeEvent event = new HandshakeEvent();
+
+	public long strayPackets;
+
+	public Handshake(Transport udp, byte command, HandshakePolicy policy,
+			RttEstimator rtt) {
+		this.udp = udp;
+		this.command = command;
+		this.policy = policy;
+		this.rtt = rtt;
+	}
+
+	public void start(long now) {
+		this.startTime = now;
+		this.event.begin();
+		this.send(now);
+	}
+
+	public boolean isConnecting() {
+		return this.state == Handshake.CONNECTING;
+	}
+
+	public boolean isFailed() {
+		return this.state == Handshake.FAILED;
+	}
+
+	public int connId() {
+		return this.connId;
+	}
+
+	/**
+	 * Asks the server for the size and the CRC32 of the firmware.
+	 */
+	public void requestDigest() {
+		this.digestRequested = true;
+	}
+
+	/**
+	 * @return size of the firmware, -1 if the server has not told it
+	 */
+	public long imageSize() {
+		return this.imageSize;
+	}
+
+	public int imageDigest() {
+		return this.imageDigest;
+	}
+
+	public long deadline() {
+		return this.state == Handshake.CONNECTING ? this.deadline
+				: Long.MAX_VALUE;
+	}
+
+	private void send(long now) {
+		byte[] data = this.digestRequested ? new byte[] { this.command,
+				Handshake.OPTION_DIGEST } : new byte[] { this.command };
+
+		for (int i = 0; i < Math.max(1, this.policy.parallel); i += 1) {
+			this.udp.send(new Packet(0, (short) 0, (short) 0,
+					Packet.FLAG_SYN, data));
+		}
+
+		this.attempts += 1;
+		this.synTime = now;
+		this.deadline = now + this.timeout();
+	}
+
+	/**
+	 * @return timeout of the current attempt in nanoseconds
+	 */
+	private long timeout() {
+		double timeout = this.policy.initialTimeout > 0 ? this.policy.initialTimeout
+				: this.rtt.rto();
+
+		timeout *= Math.pow(this.policy.backoff, this.attempts - 1);
+		timeout = Math.min(timeout, RttEstimator.MAX_RTO);
+		timeout *= 1 + this.policy.jitter
+				* (2 * ThreadLocalRandom.current()
+						.nextDouble() - 1);
+
+		return Math.max(RttEstimator.MIN_RTO, (long) timeout);
+	}
+
+	public void onTimer(long now) {
+		if (this.state != Handshake.CONNECTING || now < this.deadline) {
+			return;
+		}
+
+		if (this.attempts >= this.policy.attempts) {
+			this.state = Handshake.FAILED;
+			this.record();
+			return;
+		}
+
+		if (Log.DEBUG) {
+			Log.record(Log.LEVEL_DEBUG, Log.EVENT_SYN_TIMEOUT, 0, 0, 0,
+					Packet.FLAG_SYN, this.attempts);
+		}
+
+		if (Handshake.TIMEOUT_EVENTS.isEnabled()) {
+			TimeoutEvent timeout = new TimeoutEvent();
+
+			timeout.kind = "SYN";
+			timeout.rto = now - this.synTime;
+			timeout.commit();
+		}
+
+		this.send(now);
+	}
+
+	/**
+	 * @return true if the packet has opened the connection
+	 */
+	public boolean receive(PacketView packet, long now) {
+		if (packet.isSyn() && packet.dataLength() >= 1
+				&& packet.data(0) == this.command) {
+			if (this.digestRequested
+					&& packet.dataLength() == Handshake.DIGEST_ANSWER_LENGTH
+					&& packet.data(1) == Handshake.OPTION_DIGEST) {
+				this.imageSize = packet.buffer().getLong(
+						Packet.HEADER_SIZE + 2);
+				this.imageDigest = packet.buffer().getInt(
+						Packet.HEADER_SIZE + 2 + 8);
+			}
+
+			this.connect(packet);
+
+			/* the answer of a repeated SYN can not be matched (Karn) */
+			if (this.attempts == 1) {
+				this.rtt.sample(now - this.synTime);
+			}
+
+			return true;
+		}
+
+		if (this.policy.earlyData && this.command == Robot.SIGN_DOWNLOAD
+				&& packet.isData()) {
+			this.early = true;
+			this.connect(packet);
+			return true;
+		}
+
+		this.strayPackets += 1;
+
+		if (!packet.isRst()) {
+			this.udp.sendSegment(packet.connId(), (short) 0, (short) 0,
+					Packet.FLAG_RST, null);
+		}
+
+		return false;
+	}
+
+	private void connect(PacketView packet) {
+		this.connId = packet.connId();
+		this.state = Handshake.CONNECTED;
+		this.rtt.resetBackoff();
+		this.record();
+
+		if (Log.INFO) {
+			Log.packet(Log.LEVEL_INFO, Log.EVENT_CONNECTED, packet);
+		}
+	}
+
+	private void record() {
+		this.event.end();
+
+		if (this.event.shouldCommit()) {
+			this.event.connId = this.connId;
+			this.event.command = this.command;
+			this.event.attempts = this.attempts;
+			this.event.connected = this.state == Handshake.CONNECTED;
+			this.event.early = this.early;
+			this.event.commit();
+		}
+	}
+
+	@Override
+	public String toString() {
+		String result = this.state == Handshake.FAILED ? "failed"
+				: this.early ? "connected by data" : "connected";
+
+		return "Handshake: " + result + " after " + this.attempts
+				+ " attempts, " + (this.synTime - this.startTime) / 1_000_000
+				+ " ms of retries, stray packets=" + this.strayPackets;
+	}
+
+	/**
+	 * @return the datagram of an answer to the SYN
+	 */
+	private static PacketView answer(PacketView view, int connId,
+			byte... data) {
+		ByteBuffer datagram = PacketView.encode(new Packet(connId, (short) 0,
+				(short) 0, Packet.FLAG_SYN, data));
+
+		return view.wrap(datagram, datagram.limit());
+	}
+
+	/**
+	 * The SYNs go at growing timeouts within MIN_RTO and MAX_RTO until the
+	 * attempts run out; only the answer to the command opens the connection
+	 * (with the digest when asked for), other packets are reset.
+	 */
+	public static boolean test() {
+		LoopbackUDP udp = new LoopbackUDP();
+		PacketView view = new PacketView();
+		HandshakePolicy policy = new HandshakePolicy();
+		long now = 1_000_000_000L;
+		int fails = 0;
+
+		policy.initialTimeout = 20_000_000L;
+		policy.jitter = 0;
+		policy.attempts = 3;
+		policy.parallel = 2;
+
+		Handshake failing = new Handshake(udp, Robot.SIGN_DOWNLOAD, policy,
+				new RttEstimator());
+
+		failing.start(now);
+
+		if (udp.sent != 2 || failing.deadline() != now + 20_000_000L) {
+			fails += 1;
+		}
+
+		failing.onTimer(failing.deadline() - 1);
+
+		if (udp.sent != 2) {
+			fails += 1;
+		}
+
+		/* the timeout doubles with every attempt */
+		for (long timeout = 40_000_000L; timeout <= 80_000_000L; timeout *= 2) {
+			now = failing.deadline();
+			failing.onTimer(now);
+
+			if (failing.deadline() != now + timeout) {
+				fails += 1;
+			}
+		}
+
+		failing.onTimer(failing.deadline());
+
+		if (!failing.isFailed() || udp.sent != 6
+				|| failing.deadline() != Long.MAX_VALUE) {
+			fails += 1;
+		}
+
+		/* a long first timeout stops at MAX_RTO, a short one at MIN_RTO */
+		policy.initialTimeout = 1_500_000_000L;
+		policy.parallel = 1;
+
+		Handshake slow = new Handshake(udp, Robot.SIGN_DOWNLOAD, policy,
+				new RttEstimator());
+
+		slow.start(now);
+		slow.onTimer(slow.deadline());
+
+		if (slow.deadline() - (now + 1_500_000_000L) != RttEstimator.MAX_RTO) {
+			fails += 1;
+		}
+
+		policy.initialTimeout = 1_000_000L;
+
+		Handshake fast = new Handshake(udp, Robot.SIGN_DOWNLOAD, policy,
+				new RttEstimator());
+
+		fast.start(now);
+
+		if (fast.deadline() != now + RttEstimator.MIN_RTO) {
+			fails += 1;
+		}
+
+		/* data and answers to another command are reset, an RST is not */
+		RttEstimator rtt = new RttEstimator();
+		Handshake download = new Handshake(udp, Robot.SIGN_DOWNLOAD, policy,
+				rtt);
+		ByteBuffer data = PacketView.encode(new Packet(7, (short) 0,
+				(short) 0, Packet.FLAG_NONE, new byte[] { 1 }));
+		ByteBuffer rst = PacketView.encode(new Packet(8, (short) 0,
+				(short) 0, Packet.FLAG_RST, new byte[0]));
+
+		download.requestDigest();
+		download.start(now);
+		udp.sent = 0;
+
+		if (download.receive(view.wrap(data, data.limit()), now)
+				|| download.receive(Handshake.answer(view, 9,
+						Robot.SIGN_UPLOAD), now)
+				|| download.receive(view.wrap(rst, rst.limit()), now)
+				|| udp.sent != 2 || download.strayPackets != 3
+				|| !download.isConnecting()) {
+			fails += 1;
+		}
+
+		ByteBuffer digest = ByteBuffer.allocate(Handshake.DIGEST_ANSWER_LENGTH);
+
+		digest.put(Robot.SIGN_DOWNLOAD).put(Handshake.OPTION_DIGEST)
+				.putLong(300_000L).putInt(0xCAFEBABE);
+
+		if (!download.receive(Handshake.answer(view, 10, digest.array()),
+				now + 3_000_000L)
+				|| download.isConnecting()
+				|| download.connId() != 10
+				|| download.imageSize() != 300_000L
+				|| download.imageDigest() != 0xCAFEBABE
+				|| rtt.srtt() != 3_000_000L) {
+			fails += 1;
+		}
+
+		/* the answer to a repeated SYN is no sample, without digest it is -1 */
+		RttEstimator retried = new RttEstimator();
+		Handshake upload = new Handshake(udp, Robot.SIGN_UPLOAD, policy,
+				retried);
+
+		upload.start(now);
+		upload.onTimer(upload.deadline());
+
+		if (!upload.receive(Handshake.answer(view, 11, Robot.SIGN_UPLOAD),
+				upload.deadline()) || retried.srtt() != 0
+				|| upload.imageSize() != -1) {
+			fails += 1;
+		}
+
+		/* early data open a download only */
+		policy.earlyData = true;
+
+		Handshake early = new Handshake(udp, Robot.SIGN_DOWNLOAD, policy,
+				new RttEstimator());
+		Handshake notEarly = new Handshake(udp, Robot.SIGN_UPLOAD, policy,
+				new RttEstimator());
+
+		early.start(now);
+		notEarly.start(now);
+
+		if (!early.receive(view.wrap(data, data.limit()), now)
+				|| early.connId() != 7
+				|| notEarly.receive(view.wrap(data, data.limit()), now)) {
+			fails += 1;
+		}
+
+		System.out.println("Handshake: fails=" + fails);
+
+		return fails == 0;
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * One download or upload driven by packets and timers, it never blocks. The
+ * blocking clients (UDP.drive()) and the TransferEngine drive it the same way.
+ */
+interface Transfer {
+
+	/**
+	 * Sends the SYN.
+	 */
+	void start(long now);
+
+	void receive(PacketView packet);
+
+	/**
+	 * Handles the datagrams drained at one wakeup.
+	 */
+	default void receiveBatch(PacketView[] packets, int count) {
+		for (int i = 0; i < count && !this.isFinished(); i += 1) {
+			this.receive(packets[i]);
+		}
+	}
+
+	void onTimer(long now);
+
+	/**
+	 * @return when onTimer() should be called (System.nanoTime()),
+	 *         Long.MAX_VALUE if there is nothing to wait for
+	 */
+	long deadline();
+
+	boolean isFinished();
+
+	/**
+	 * @return the connection identifier, valid after the SYN has come
+	 */
+	int connId();
+
+	/**
+	 * @return the command byte of the SYN
+	 */
+	byte command();
+
+	/**
+	 * Hands the result over, called once after the transfer has finished.
+	 */
+	void close();
+}
+
+/******************************************************************************/
+
+class Download implements Transfer {
+
+	/**
+	 * Segments the reassembly window can hold, the server sends 8 at once.
+	 */
+	public static final int WINDOW_SLOTS = 64;
+
+	/**
+	 * The events which may come with every packet, checked before an event
+	 * is allocated.
+	 */
+	private static final EventType ACK_EVENTS = EventType
+			.getEventType(AckSentEvent.class);
+	private static final EventType GAP_EVENTS = EventType
+			.getEventType(OutOfOrderEvent.class);
+	private static final EventType DUPLICATE_EVENTS = EventType
+			.getEventType(DuplicateEvent.class);
+	private static final EventType TIMEOUT_EVENTS = EventType
+			.getEventType(TimeoutEvent.class);
+
+	/**
+	 * After the FIN the connection stays open this many RTOs to answer a
+	 * repeated FIN, in case my answer has been lost.
+	 */
+	public static final int LINGER_RTOS = 3;
+	public static final long MIN_LINGER = 10_000_000L;
+
+	/**
+	 * Segments the server sends per round trip, a window of them measures
+	 * the RTT of the data.
+	 */
+	public static final int SENDER_WINDOW = 8;
+
+	/**
+	 * How far an ACK of a resumed download may go past the data of this
+	 * connection, a quarter of the sequence numbers.
+	 */
+	public static final int MAX_SKIP = 0x4000;
+
+	/**************************************************************************/
+
+	DatagramSocket socket;
 	DatagramPacket packet;
 	InetAddress address;
 	InetAddress fromAddress;
@@ -470,300 +3820,6302 @@ class Download {
 	byte[] message;
 
 	/**
-	 * FIXME: is this right? (EDUX java template) From which port message was
-	 * received?
+	 * FIXME: is this right? (EDUX java template) From which port message was
+	 * received?
+	 */
+	int fromPort;
+
+	private Transport udp;
+
+	/**
+	 * This holds the file.
+	 */
+	// private List<Byte> data;
+
+	/**
+	 * Connection identifier.
+	 */
+	private int connId = -1;
+
+	/**
+	 * Segments which came out of order.
+	 */
+	private ReassemblyWindow window;
+
+	/**
+	 * This holds the file (the part which came in order).
+	 */
+	ByteStore data;
+
+	/**
+	 * The file written at final offsets, or null when the file is
+	 * reassembled in memory and written after the FIN.
+	 */
+	private PositionalSink sink;
+
+	/**
+	 * Has the FIN came?
+	 */
+	private boolean finished;
+
+	private AckPolicy policy;
+	private RttEstimator rtt;
+
+	/**
+	 * RTT of the data: the time a window of SENDER_WINDOW segments takes to
+	 * arrive in order after dataMarkTime (the receiver side RTT of Linux).
+	 * The SYN sample of 'rtt' can be far off, the linger takes the smaller.
+	 */
+	private final RttEstimator dataRtt = new RttEstimator();
+	private long dataMark = -1;
+	private long dataMarkTime;
+
+	/**
+	 * In-order packets which have not been acknowledged yet.
+	 */
+	private int pendingInOrder;
+
+	/**
+	 * When the delayed ACK must be sent, or zero.
+	 */
+	private long ackDeadline;
+
+	/**
+	 * When the ACK is sent again if nothing comes.
+	 */
+	private long resendDeadline;
+
+	/**
+	 * When the first unanswered timer ACK has been sent, zero if there is
+	 * none, -1 if there have been more of them (the answer can not be
+	 * matched, Karn).
+	 */
+	private long probeTime;
+
+	private long lastAckTime;
+
+	/**
+	 * Inside receiveBatch(), the ACKs wait for its end.
+	 */
+	private boolean batching;
+	private boolean ackDue;
+
+	private Handshake handshake;
+
+	/**
+	 * The connection could not be opened.
+	 */
+	private boolean failed;
+
+	/**
+	 * The FIN has come and the file is complete, the connection waits for
+	 * repeated FINs until lingerDeadline.
+	 */
+	private boolean lingering;
+	private long lingerDeadline;
+	private int finsAnswered;
+
+	private long startTime;
+	private long completeTime;
+
+	/**
+	 * The reader of the bytes in order, or null.
+	 */
+	private DownloadStream stream;
+
+	/**
+	 * The thread which writes the bytes in order to the file, or null.
+	 */
+	private WriterStage writer;
+
+	/**
+	 * Data packets refused because the stream or the writer were full.
+	 */
+	public long refused;
+
+	/**
+	 * Segments on disk of a resumed download, or null.
+	 */
+	private ResumeJournal journal;
+
+	/**
+	 * End of the furthest data of this connection, an ACK must not go past
+	 * the data the server has sent, even when the file holds more; unless the
+	 * server has told the firmware (skipping), then it goes up to MAX_SKIP
+	 * further.
+	 */
+	private long highestSeen;
+	private boolean skipping;
+
+	/**
+	 * Data packets which were in the file already.
+	 */
+	public long skippedPackets;
+
+	private final TransferEvent event = new TransferEvent();
+
+	/**
+	 * The name of the file, as soon as it is complete.
+	 */
+	private final CompletableFuture<String> result = new CompletableFuture<String>();
+
+	/**
+	 * Where the file is written.
+	 */
+	private final String output;
+
+	public Download(String serverName, Options options) {
+		/* Create UDP wrapper */
+		this(new UDP(serverName, options.port, options), options.positional,
+				Robot.OUTPUT, options);
+
+		this.policy = options.ackPolicy;
+		this.run((UDP) this.udp);
+	}
+
+	/**
+	 * Prepares a download over the given transport with the default options,
+	 * nothing is sent yet.
+	 * 
+	 * @param udp
+	 */
+	public Download(Transport udp) {
+		this(udp, false, Robot.OUTPUT, new Options());
+	}
+
+	/**
+	 * @param udp
+	 * @param positional
+	 *            write every packet straight to its offset in the file
+	 * @param output
+	 *            name of the file
+	 * @param options
+	 *            the handshake policy, resuming and the writer thread
+	 */
+	public Download(Transport udp, boolean positional, String output,
+			Options options) {
+		this.output = output;
+		this.window = new ReassemblyWindow(Download.WINDOW_SLOTS);
+		this.data = new ByteStore();
+		this.udp = udp;
+		this.policy = new AckPolicy();
+		this.rtt = new RttEstimator();
+		this.handshake = new Handshake(udp, Robot.SIGN_DOWNLOAD,
+				options.handshakePolicy, this.rtt);
+
+		if (options.resume) {
+			this.journal = new ResumeJournal(output);
+			this.handshake.requestDigest();
+		}
+
+		if (options.pipeline && !positional && !options.resume) {
+			try {
+				this.writer = new WriterStage(output);
+			} catch (IOException e) {
+				System.err.println("Can not open the output file.");
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
+
+		if (positional || options.resume) {
+			try {
+				this.sink = new PositionalSink(output, options.resume);
+			} catch (IOException e) {
+				System.err.println("Can not open the output file.");
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
+	}
+
+	public void setAckPolicy(AckPolicy policy) {
+		this.policy = policy;
+	}
+
+	/**
+	 * @return how many bytes from the start of the file have arrived
+	 */
+	public long received() {
+		if (this.journal != null) {
+			return Math.min(this.sink.contiguous(), this.skipping ? this.highestSeen
+					+ Download.MAX_SKIP : this.highestSeen);
+		}
+
+		if (this.sink != null) {
+			return this.sink.contiguous();
+		}
+
+		return this.window.base();
+	}
+
+	/**
+	 * Runs the download over its own socket, the one it has been made with.
+	 */
+	public void run(UDP udp) {
+		System.out.println("]]] I'll connect to the server:");
+
+		udp.drive(this);
+
+		System.out.println("tak jsem venku ze smycky");
+		System.out.println(this.handshake);
+
+		/* a failure completes result() exceptionally, the caller decides */
+		if (this.failed) {
+			this.close();
+			return;
+		}
+
+		this.close();
+		Log.flush();
+		System.out.println("thiii end :)");
+
+	}
+
+	/**
+	 * Runs the download in its own thread.
+	 * 
+	 * @return the name of the file, completed as soon as the data are
+	 *         written; the connection is closed afterwards in the background
+	 */
+	public static CompletableFuture<String> fetch(String serverName,
+			Options options) {
+		return Download.runInThread(serverName, null, options).result;
+	}
+
+	/**
+	 * Runs the download in its own thread.
+	 * 
+	 * @return the bytes of the firmware as they come, the buffer holds
+	 *         'options.stream' bytes; the file is written as well
+	 */
+	public static DownloadStream stream(String serverName, Options options) {
+		return Download.runInThread(serverName,
+				new DownloadStream(options.stream), options).stream;
+	}
+
+	private static Download runInThread(String serverName,
+			DownloadStream stream, Options options) {
+		final UDP udp = new UDP(serverName, options.port, options);
+		final Download download = new Download(udp, options.positional,
+				Robot.OUTPUT, options);
+
+		download.policy = options.ackPolicy;
+
+		if (stream != null) {
+			download.setStream(stream);
+		}
+
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					download.run(udp);
+				} catch (Throwable e) {
+					/* the caller waits for result() or reads the stream */
+					e.printStackTrace();
+					download.result.completeExceptionally(e);
+
+					if (download.stream != null) {
+						download.stream.fail(new IOException(
+								"the download has failed", e));
+					}
+				}
+			}
+		}, "download-" + serverName);
+
+		thread.start();
+
+		return download;
+	}
+
+	/**
+	 * The bytes in order go to the stream too, set it before the start. The
+	 * data are reassembled in memory then.
+	 */
+	public void setStream(DownloadStream stream) {
+		if (this.sink != null) {
+			throw new IllegalStateException(
+					"streaming needs the in-memory reassembly");
+		}
+
+		this.stream = stream;
+	}
+
+	/**
+	 * @return the name of the file, completed when the data are written
+	 */
+	public CompletableFuture<String> result() {
+		return this.result;
+	}
+
+	public void start(long now) {
+		this.startTime = now;
+		this.event.begin();
+		WindowOccupancyEvent.ACTIVE.add(this);
+		this.handshake.start(now);
+	}
+
+	/**
+	 * Commits a WindowOccupancyEvent, from the periodic hook of the
+	 * recorder; the numbers are read without a lock.
+	 */
+	public void recordOccupancy() {
+		WindowOccupancyEvent event = new WindowOccupancyEvent();
+
+		event.connId = this.connId;
+		event.occupancy = this.window.occupancy();
+		event.capacity = Download.WINDOW_SLOTS;
+		event.received = this.received();
+		event.commit();
+	}
+
+	private void recordTransfer() {
+		WindowOccupancyEvent.ACTIVE.remove(this);
+		this.event.end();
+
+		if (this.event.shouldCommit()) {
+			long bytes = this.received();
+			long time = Math.max(1, this.completeTime - this.startTime);
+
+			this.event.connId = this.connId;
+			this.event.bytes = bytes;
+			this.event.goodput = this.failed ? 0 : bytes * 1_000_000_000L
+					/ time;
+			this.event.acks = this.policy.acks();
+			this.event.timerAcks = this.policy.timerAcks;
+			this.event.failed = this.failed;
+			this.event.commit();
+		}
+	}
+
+	public int connId() {
+		return this.connId;
+	}
+
+	public byte command() {
+		return Robot.SIGN_DOWNLOAD;
+	}
+
+	/**
+	 * Writes the file out (or closes it) and hands it over.
+	 */
+	private void complete(long now) {
+		this.completeTime = now;
+
+		if (this.journal != null) {
+			this.completeResumed();
+			return;
+		}
+
+		if (this.stream != null) {
+			this.stream.finish();
+		}
+
+		if (this.writer != null) {
+			/* the file is there when the writer has written the rest */
+			this.writer.finish().whenComplete(new BiConsumer<Void, Throwable>() {
+				@Override
+				public void accept(Void ignored, Throwable failure) {
+					if (failure != null) {
+						Download.this.result.completeExceptionally(failure);
+					} else {
+						Download.this.result.complete(Download.this.output);
+					}
+				}
+			});
+			return;
+		}
+
+		if (this.sink != null) {
+			this.closeSink();
+		} else {
+			writeItToFile();
+		}
+
+		this.result.complete(this.output);
+	}
+
+	/**
+	 * Cuts the file to its size and checks it against the journal.
+	 */
+	private void completeResumed() {
+		long size = this.received();
+		int bad = 0;
+
+		try {
+			this.sink.truncate(size);
+			this.closeSink();
+			bad = this.journal.verify(this.output, size);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		System.out.println("Resume: " + this.journal.resumedSegments
+				+ " segments taken from the last run, "
+				+ this.skippedPackets + " packets skipped, " + bad
+				+ " segments bad");
+
+		if (bad == 0) {
+			this.journal.delete();
+			this.result.complete(this.output);
+		} else {
+			this.journal.save();
+			this.result.completeExceptionally(new IOException(bad
+					+ " segments of " + this.output
+					+ " do not match the journal, run it again"));
+		}
+	}
+
+	/**
+	 * Prints the summary, the connection has been closed.
+	 */
+	public void close() {
+		this.recordTransfer();
+
+		if (this.failed) {
+			System.err.println("The server has not answered the SYN. "
+					+ this.handshake);
+			this.result.completeExceptionally(new IOException(
+					"the server has not answered the SYN"));
+
+			if (this.stream != null) {
+				this.stream.fail(new IOException(
+						"the server has not answered the SYN"));
+			}
+			return;
+		}
+
+		if (this.stream != null) {
+			System.out.println("Stream: at most " + this.stream.maxBuffered
+					+ " bytes buffered");
+		}
+
+		if (this.writer != null) {
+			System.out.println(this.writer);
+		}
+
+		if (this.refused > 0) {
+			System.out.println("Refused " + this.refused
+					+ " packets, the reader or the disk were behind");
+		}
+
+		System.out.println("ACK policy: " + this.policy + ", srtt="
+				+ this.rtt.srtt() / 1_000 + " us, rto=" + this.rtt.rto()
+				/ 1_000 + " us");
+		System.out.println("Data RTT: srtt=" + this.dataRtt.srtt() / 1_000
+				+ " us, rto=" + this.dataRtt.rto() / 1_000 + " us");
+		System.out.println("Teardown: file ready after "
+				+ (this.completeTime - this.startTime) / 1_000_000
+				+ " ms, FINs answered=" + this.finsAnswered + ", linger "
+				+ (this.lingerDeadline - this.completeTime) / 1_000_000
+				+ " ms, closed after "
+				+ (System.nanoTime() - this.completeTime) / 1_000_000
+				+ " ms more");
+	}
+
+	public boolean isFinished() {
+		return this.finished;
+	}
+
+	/**
+	 * Handles one received packet and sends the answer.
+	 * 
+	 * @param recvPacket
+	 */
+	public void receive(PacketView recvPacket) {
+		if (Log.TRACE) {
+			Log.packet(Log.LEVEL_TRACE, Log.EVENT_RECV, recvPacket);
+		}
+
+		if (!recvPacket.isValid()) {
+			if (Log.DEBUG) {
+				Log.packet(Log.LEVEL_DEBUG, Log.EVENT_MALFORMED, recvPacket);
+			}
+			return;
+		}
+
+		if (this.handshake.isConnecting()) {
+			if (!this.handshake.receive(recvPacket, System.nanoTime())) {
+				return;
+			}
+
+			this.connId = this.handshake.connId();
+			this.resendDeadline = System.nanoTime() + this.rtt.rto();
+
+			if (this.journal != null) {
+				this.settleJournal();
+			}
+
+			/* the SYN answer has been lost, the data open the connection */
+			if (!recvPacket.isData()) {
+				return;
+			}
+		}
+
+		/* If the connId is different to mine, send a RST packet. */
+		if (recvPacket.connId() != this.connId) {
+			if (Log.DEBUG) {
+				Log.packet(Log.LEVEL_DEBUG, Log.EVENT_WRONG_CONN, recvPacket);
+			}
+
+			/* answers of the other SYNs open connections nobody wants */
+			if (!recvPacket.isRst()) {
+				this.udp.sendSegment(recvPacket.connId(), (short) 0,
+						(short) 0, Packet.FLAG_RST, null);
+			}
+			return;
+		}
+
+		if (recvPacket.isFin()) {
+			if (Log.INFO) {
+				Log.packet(Log.LEVEL_INFO, Log.EVENT_FIN, recvPacket);
+			}
+
+			long now = System.nanoTime();
+			long received = this.received();
+
+			/* a FIN short of the data in order only gets the ACK of the end */
+			if (!this.lingering
+					&& Utils.unwrapSeq(recvPacket.seqNum(), received) != received) {
+				this.acknowledgeDuplicate(now);
+				return;
+			}
+
+			/* every FIN gets its answer, mine could have been lost */
+			this.sendFin();
+			this.finsAnswered += 1;
+
+			if (!this.lingering) {
+				long rto = this.rtt.rto();
+
+				if (this.dataRtt.srtt() > 0) {
+					rto = Math.min(rto, this.dataRtt.rto());
+				}
+
+				this.lingering = true;
+				this.lingerDeadline = now
+						+ Math.max(Download.MIN_LINGER, Download.LINGER_RTOS
+								* rto);
+				this.complete(now);
+			}
+			return;
+		}
+
+		/* the file is complete, only FINs matter now */
+		if (this.lingering) {
+			return;
+		}
+
+		/**********************************************************************/
+
+		long now = System.nanoTime();
+
+		if (!recvPacket.isData()) {
+			this.acknowledgeDuplicate(now);
+			return;
+		}
+
+		long before = this.received();
+		int status;
+
+		if (this.sink != null) {
+			status = this.writeToSink(recvPacket);
+		} else {
+			status = this.reassemble(recvPacket);
+		}
+
+		if (status == ReassemblyWindow.IN_ORDER
+				|| status == ReassemblyWindow.OUT_OF_ORDER) {
+			/* the sender has answered the timer ACK */
+			if (this.probeTime > 0) {
+				this.rtt.sample(now - this.probeTime);
+			} else {
+				this.rtt.resetBackoff();
+			}
+
+			this.probeTime = 0;
+		}
+
+		switch (status) {
+		case ReassemblyWindow.IN_ORDER:
+			this.measureData(now);
+
+			if (this.received() > before + recvPacket.dataLength()) {
+				/* the gap has been filled */
+				this.policy.fillAcks += 1;
+				this.sendAck(now, AckSentEvent.FILL);
+			} else if (this.pendingInOrder + 1 >= this.policy.coalesce) {
+				this.policy.inOrderAcks += 1;
+				this.sendAck(now, AckSentEvent.IN_ORDER);
+			} else {
+				this.policy.coalesced += 1;
+				this.pendingInOrder += 1;
+
+				if (this.ackDeadline == 0) {
+					this.ackDeadline = now
+							+ Math.min(this.policy.delay, this.rtt.rto() / 2);
+				}
+			}
+			break;
+		case ReassemblyWindow.OUT_OF_ORDER:
+			if (Download.GAP_EVENTS.isEnabled()) {
+				OutOfOrderEvent gap = new OutOfOrderEvent();
+
+				gap.connId = this.connId;
+				gap.offset = Utils.unwrapSeq(recvPacket.seqNum(), before);
+				gap.gap = gap.offset - before;
+
+				if (gap.shouldCommit()) {
+					gap.commit();
+				}
+			}
+
+			if (this.policy.immediateOnGap) {
+				this.policy.gapAcks += 1;
+				this.sendAck(now, AckSentEvent.GAP);
+			} else if (this.ackDeadline == 0) {
+				this.ackDeadline = now
+						+ Math.min(this.policy.delay, this.rtt.rto() / 2);
+			}
+			break;
+		default:
+			if (Download.DUPLICATE_EVENTS.isEnabled()) {
+				DuplicateEvent duplicate = new DuplicateEvent();
+
+				duplicate.connId = this.connId;
+				duplicate.seq = recvPacket.seqNum() & 0xffff;
+				duplicate.commit();
+			}
+
+			this.acknowledgeDuplicate(now);
+			break;
+		}
+
+		if (this.journal != null) {
+			this.journal.saveIfDue(now);
+		}
+	}
+
+	/**
+	 * The sender has missed my ACK, one answer for a burst is enough.
+	 */
+	private void acknowledgeDuplicate(long now) {
+		if (now - this.lastAckTime >= this.policy.delay) {
+			this.policy.duplicateAcks += 1;
+			this.sendAck(now, AckSentEvent.DUPLICATE);
+		} else {
+			this.policy.suppressed += 1;
+		}
+	}
+
+	/**
+	 * One ACK for the whole batch, it acknowledges the last of it.
+	 */
+	@Override
+	public void receiveBatch(PacketView[] packets, int count) {
+		this.batching = true;
+
+		for (int i = 0; i < count && !this.finished; i += 1) {
+			this.receive(packets[i]);
+		}
+
+		this.batching = false;
+
+		if (this.ackDue && !this.lingering) {
+			this.ackDue = false;
+			this.sendAck(System.nanoTime(), AckSentEvent.BATCH);
+			this.policy.batched -= 1;
+		}
+
+		this.ackDue = false;
+	}
+
+	private void sendAck(long now, String reason) {
+		if (this.batching) {
+			this.policy.batched += 1;
+			this.ackDue = true;
+			this.pendingInOrder = 0;
+			this.ackDeadline = 0;
+			return;
+		}
+
+		this.udp.sendSegment(this.connId, (short) 0,
+				(short) this.received(), Packet.FLAG_NONE, null);
+
+		if (Download.ACK_EVENTS.isEnabled()) {
+			AckSentEvent event = new AckSentEvent();
+
+			event.connId = this.connId;
+			event.acknowledged = this.received();
+			event.reason = reason;
+			event.commit();
+		}
+
+		this.lastAckTime = now;
+		this.pendingInOrder = 0;
+		this.ackDeadline = 0;
+		this.resendDeadline = now + this.rtt.rto();
+	}
+
+	/**
+	 * Takes the segments of the earlier run back if the server has told the
+	 * same firmware, the ACKs skip them then.
+	 */
+	private void settleJournal() {
+		long size = this.handshake.imageSize();
+
+		if (size < 0) {
+			System.out.println("Resume: the server does not tell the firmware,"
+					+ " the journal is not used");
+		}
+
+		this.skipping = this.journal.settle(size,
+				this.handshake.imageDigest(), this.sink);
+	}
+
+	/**
+	 * Samples dataRtt when a window of data has arrived since the mark.
+	 */
+	private void measureData(long now) {
+		long received = this.received();
+
+		/* an ACK which has skipped the data of an earlier run is no sample */
+		if (this.dataMark >= 0 && received >= this.dataMark
+				&& received - this.dataMark < Download.SENDER_WINDOW
+						* Packet.MAX_DATA_LENGTH) {
+			this.dataRtt.sample(now - this.dataMarkTime);
+		}
+
+		if (this.dataMark < 0 || received >= this.dataMark) {
+			this.dataMark = received + Download.SENDER_WINDOW
+					* Packet.MAX_DATA_LENGTH;
+			this.dataMarkTime = now;
+		}
+	}
+
+	private void sendFin() {
+		this.udp.sendSegment(this.connId, (short) 0,
+				(short) this.received(), Packet.FLAG_FIN, null);
+	}
+
+	public long deadline() {
+		if (this.handshake.isConnecting()) {
+			return this.handshake.deadline();
+		}
+
+		if (this.lingering) {
+			return this.lingerDeadline;
+		}
+
+		long deadline = Long.MAX_VALUE;
+
+		if (this.ackDeadline != 0) {
+			deadline = this.ackDeadline;
+		}
+
+		if (this.policy.timerDriven) {
+			deadline = Math.min(deadline, this.resendDeadline);
+		}
+
+		return deadline;
+	}
+
+	/**
+	 * Sends the SYN or the ACK which is due, if any.
+	 */
+	public void onTimer(long now) {
+		if (this.handshake.isConnecting()) {
+			this.handshake.onTimer(now);
+
+			if (this.handshake.isFailed()) {
+				this.failed = true;
+				this.finished = true;
+			}
+		} else if (this.lingering) {
+			if (now >= this.lingerDeadline) {
+				this.finished = true;
+			}
+		} else if (this.ackDeadline != 0 && now >= this.ackDeadline) {
+			this.policy.delayedAcks += 1;
+			this.sendAck(now, AckSentEvent.DELAYED);
+		} else if (this.policy.timerDriven && now >= this.resendDeadline) {
+			this.policy.timerAcks += 1;
+			this.probeTime = this.probeTime == 0 ? now : -1;
+
+			if (Download.TIMEOUT_EVENTS.isEnabled()) {
+				TimeoutEvent timeout = new TimeoutEvent();
+
+				timeout.connId = this.connId;
+				timeout.kind = "ACK";
+				timeout.rto = this.rtt.rto();
+				timeout.commit();
+			}
+
+			this.rtt.backoff();
+			this.sendAck(now, AckSentEvent.TIMER);
+		}
+	}
+
+	private int reassemble(PacketView recvPacket) {
+		long offset = Utils.unwrapSeq(recvPacket.seqNum(), this.window.base());
+		int length = recvPacket.dataLength();
+		int status = this.window.classify(offset, length);
+
+		/* the reader or the disk are behind, the data would not fit */
+		if ((status == ReassemblyWindow.IN_ORDER || status == ReassemblyWindow.OUT_OF_ORDER)
+				&& offset + length > this.acceptLimit()) {
+			this.refused += 1;
+			status = ReassemblyWindow.OUT_OF_WINDOW;
+		}
+
+		switch (status) {
+		case ReassemblyWindow.IN_ORDER:
+			if (Log.TRACE) {
+				Log.packet(Log.LEVEL_TRACE, Log.EVENT_IN_ORDER, recvPacket);
+			}
+
+			/* mam co chci, tak to tam nacpu */
+			this.deliver(recvPacket.array(), recvPacket.dataOffset(), length);
+			this.window.advance(length);
+
+			while (this.window.ready()) {
+				if (Log.DEBUG) {
+					Log.record(Log.LEVEL_DEBUG, Log.EVENT_REASSEMBLED,
+							this.connId, (short) this.window.base(), 0, 0,
+							this.window.readyLength());
+				}
+
+				this.deliver(this.window.readyData(), 0,
+						this.window.readyLength());
+				this.window.release();
+			}
+			break;
+		case ReassemblyWindow.OUT_OF_ORDER:
+			if (Log.DEBUG) {
+				Log.packet(Log.LEVEL_DEBUG, Log.EVENT_OUT_OF_ORDER, recvPacket);
+			}
+
+			this.window.store(offset, recvPacket.array(),
+					recvPacket.dataOffset(), length);
+			break;
+		case ReassemblyWindow.DUPLICATE:
+			if (Log.DEBUG) {
+				Log.packet(Log.LEVEL_DEBUG, Log.EVENT_DUPLICATE, recvPacket);
+			}
+			break;
+		default:
+			if (Log.DEBUG) {
+				Log.packet(Log.LEVEL_DEBUG, Log.EVENT_OUT_OF_WINDOW,
+						recvPacket);
+			}
+			break;
+		}
+
+		return status;
+	}
+
+	/**
+	 * @return the offset up to which data can be accepted
+	 */
+	private long acceptLimit() {
+		long limit = Long.MAX_VALUE;
+
+		if (this.stream != null) {
+			limit = this.stream.limit();
+		}
+
+		if (this.writer != null) {
+			limit = Math.min(limit, this.writer.limit());
+		}
+
+		return limit;
+	}
+
+	/**
+	 * Keeps the bytes which are in order now.
+	 */
+	private void deliver(byte[] data, int off, int length) {
+		if (this.writer != null) {
+			this.writer.write(data, off, length);
+		} else {
+			this.data.append(data, off, length);
+		}
+
+		if (this.stream != null) {
+			this.stream.write(data, off, length);
+		}
+	}
+
+	private int writeToSink(PacketView recvPacket) {
+		long contiguous = this.received();
+		long offset = Utils.unwrapSeq(recvPacket.seqNum(), contiguous);
+		int length = recvPacket.dataLength();
+		long size = this.handshake.imageSize();
+		boolean written = false;
+
+		/* bounds as in the window in memory, nothing strays into the file */
+		if ((offset - contiguous) / Packet.MAX_DATA_LENGTH >= Download.WINDOW_SLOTS
+				|| (size >= 0 && offset + length > size)) {
+			if (Log.DEBUG) {
+				Log.packet(Log.LEVEL_DEBUG, Log.EVENT_OUT_OF_WINDOW, recvPacket);
+			}
+
+			return ReassemblyWindow.OUT_OF_WINDOW;
+		}
+
+		/* what is behind is a duplicate, though it still lets the ACK skip */
+		if (offset >= contiguous) {
+			try {
+				written = this.sink.write(offset, recvPacket.array(),
+						recvPacket.dataOffset(), length);
+			} catch (IOException e) {
+				System.err.println("Can not write to the output file.");
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
+
+		if (this.journal != null) {
+			if (written) {
+				this.journal.record(offset, recvPacket.array(),
+						recvPacket.dataOffset(), length);
+			}
+
+			if (offset + length > this.highestSeen) {
+				this.highestSeen = offset + length;
+
+				/* the file holds it, the ACK can move on at once */
+				if (!written && this.received() > contiguous) {
+					this.skippedPackets += 1;
+					return ReassemblyWindow.IN_ORDER;
+				}
+			}
+		}
+
+		if (!written) {
+			if (Log.DEBUG) {
+				Log.packet(Log.LEVEL_DEBUG, Log.EVENT_DUPLICATE, recvPacket);
+			}
+
+			return ReassemblyWindow.DUPLICATE;
+		} else if (offset == contiguous) {
+			if (Log.TRACE) {
+				Log.packet(Log.LEVEL_TRACE, Log.EVENT_IN_ORDER, recvPacket);
+			}
+
+			return ReassemblyWindow.IN_ORDER;
+		} else {
+			if (Log.DEBUG) {
+				Log.packet(Log.LEVEL_DEBUG, Log.EVENT_OUT_OF_ORDER, recvPacket);
+			}
+
+			return ReassemblyWindow.OUT_OF_ORDER;
+		}
+	}
+
+	private void closeSink() {
+		try {
+			this.sink.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		if (Log.INFO) {
+			Log.record(Log.LEVEL_INFO, Log.EVENT_WRITE, this.connId, 0, 0, 0,
+					this.sink.contiguous());
+		}
+	}
+
+	private void writeItToFile() {
+		try {
+			FileChannel channel = FileChannel.open(Paths.get(this.output),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+
+			/* jeden zapis na kazdy chunk */
+			this.data.writeTo(channel);
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		if (Log.INFO) {
+			Log.record(Log.LEVEL_INFO, Log.EVENT_WRITE, this.connId, 0, 0, 0,
+					this.data.size());
+		}
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * Deadlines of numbered timers in one binary heap. A timer can be scheduled
+ * again or cancelled, nothing is allocated after the queue is created.
+ */
+class TimerQueue {
+
+	private final long[] deadlines;
+	private final int[] heap;
+	private final int[] positions;
+	private int size;
+
+	/**
+	 * @param capacity
+	 *            timers are numbered from 0 to capacity - 1
+	 */
+	public TimerQueue(int capacity) {
+		this.deadlines = new long[capacity];
+		this.heap = new int[capacity];
+		this.positions = new int[capacity];
+
+		Arrays.fill(this.positions, -1);
+	}
+
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	public boolean isScheduled(int id) {
+		return this.positions[id] >= 0;
+	}
+
+	/**
+	 * @return the nearest deadline, Long.MAX_VALUE if there is none
+	 */
+	public long nextDeadline() {
+		return this.size == 0 ? Long.MAX_VALUE : this.deadlines[this.heap[0]];
+	}
+
+	public int nextId() {
+		return this.heap[0];
+	}
+
+	public void schedule(int id, long deadline) {
+		if (this.positions[id] < 0) {
+			this.heap[this.size] = id;
+			this.positions[id] = this.size;
+			this.size += 1;
+		}
+
+		this.deadlines[id] = deadline;
+		this.up(this.positions[id]);
+		this.down(this.positions[id]);
+	}
+
+	public void cancel(int id) {
+		int position = this.positions[id];
+
+		if (position < 0) {
+			return;
+		}
+
+		this.size -= 1;
+		this.positions[id] = -1;
+
+		if (position < this.size) {
+			this.heap[position] = this.heap[this.size];
+			this.positions[this.heap[position]] = position;
+			this.up(position);
+			this.down(this.positions[this.heap[position]]);
+		}
+	}
+
+	private boolean before(int a, int b) {
+		return this.deadlines[this.heap[a]] < this.deadlines[this.heap[b]];
+	}
+
+	private void swap(int a, int b) {
+		int id = this.heap[a];
+
+		this.heap[a] = this.heap[b];
+		this.heap[b] = id;
+		this.positions[this.heap[a]] = a;
+		this.positions[this.heap[b]] = b;
+	}
+
+	private void up(int i) {
+		while (i > 0 && this.before(i, (i - 1) / 2)) {
+			this.swap(i, (i - 1) / 2);
+			i = (i - 1) / 2;
+		}
+	}
+
+	private void down(int i) {
+		for (;;) {
+			int smallest = i;
+
+			for (int child = 2 * i + 1; child <= 2 * i + 2; child += 1) {
+				if (child < this.size && this.before(child, smallest)) {
+					smallest = child;
+				}
+			}
+
+			if (smallest == i) {
+				return;
+			}
+
+			this.swap(i, smallest);
+			i = smallest;
+		}
+	}
+
+	/**
+	 * Timers come out by their deadlines, negative ones (System.nanoTime()
+	 * may be) included, after they have been moved and cancelled.
+	 */
+	public static boolean test() {
+		TimerQueue timers = new TimerQueue(8);
+		long[] deadlines = { 50, -20, 30, 10, Long.MAX_VALUE - 1, -5, 40, 0 };
+		int fails = 0;
+
+		if (!timers.isEmpty() || timers.nextDeadline() != Long.MAX_VALUE) {
+			fails += 1;
+		}
+
+		for (int id = 0; id < deadlines.length; id += 1) {
+			timers.schedule(id, deadlines[id]);
+		}
+
+		/* moved earlier and later, one cancelled twice, one not at all */
+		timers.schedule(0, -30);
+		timers.schedule(1, 60);
+		timers.cancel(6);
+		timers.cancel(6);
+
+		if (timers.isScheduled(6) || !timers.isScheduled(7)) {
+			fails += 1;
+		}
+
+		int[] order = { 0, 5, 7, 3, 2, 1, 4 };
+
+		for (int id : order) {
+			if (timers.isEmpty() || timers.nextId() != id) {
+				fails += 1;
+				break;
+			}
+
+			timers.cancel(id);
+		}
+
+		if (!timers.isEmpty()) {
+			fails += 1;
+		}
+
+		/* all ids in use, in a random order */
+		Random random = new Random(33);
+		long previous = Long.MIN_VALUE;
+
+		for (int id = 0; id < 8; id += 1) {
+			timers.schedule(id, random.nextLong());
+		}
+
+		while (!timers.isEmpty()) {
+			if (timers.nextDeadline() < previous) {
+				fails += 1;
+			}
+
+			previous = timers.nextDeadline();
+			timers.cancel(timers.nextId());
+		}
+
+		System.out.println("TimerQueue: fails=" + fails);
+
+		return fails == 0;
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * Sliding-window upload of a firmware.
+ * 
+ * The file is mapped into memory and every segment is sent straight from the
+ * mapping. Up to 'window' segments are in flight, every one has its timer in
+ * one TimerQueue, the timeout comes from the measured RTT (Jacobson/Karels,
+ * retransmitted segments are not measured) and a segment is sent again at
+ * once after DUPLICATE_ACKS repeated ACKs.
+ */
+class Upload implements Transfer {
+
+	public static final int DEFAULT_WINDOW = 8;
+	public static final int DUPLICATE_ACKS = 3;
+	public static final int MAX_FIN_ATTEMPTS = 20;
+
+	private final Transport udp;
+	private final MappedByteBuffer image;
+	private final long size;
+	private final int window;
+
+	/**
+	 * View of the image used for sending, only its position and limit move.
+	 */
+	private final ByteBuffer view;
+
+	private final RttEstimator rtt;
+	private final TimerQueue timers;
+
+	/**
+	 * When the segment in the slot has been sent, and was it sent more times.
+	 */
+	private final long[] sentAt;
+	private final boolean[] retransmitted;
+
+	private int connId;
+
+	/**
+	 * Bytes acknowledged by the server.
+	 */
+	private long acked;
+
+	/**
+	 * The next byte which has not been sent yet.
+	 */
+	private long next;
+
+	private int duplicateAcks;
+
+	private final Handshake handshake;
+
+	/**
+	 * Waiting for the answer to my FIN.
+	 */
+	private boolean closing;
+	private boolean finished;
+
+	/**
+	 * The server has reset the upload, or has not answered the SYN.
+	 */
+	private boolean failed;
+
+	/**
+	 * When the FIN is sent again.
+	 */
+	private long controlDeadline;
+	private int finAttempts;
+
+	private long startTime;
+
+	public long segmentsSent;
+	public long timeouts;
+	public long fastRetransmits;
+
+	public Upload(String serverName, String fileName, Options options) {
+		this(new UDP(serverName, options.port, options), fileName, options);
+
+		this.run((UDP) this.udp);
+	}
+
+	/**
+	 * Prepares an upload over the given transport, nothing is sent yet.
+	 * 
+	 * @param options
+	 *            the window and the handshake policy
+	 */
+	public Upload(Transport udp, String fileName, Options options) {
+		int window = options.window;
+
+		this.udp = udp;
+		this.window = window;
+		this.rtt = new RttEstimator();
+		this.timers = new TimerQueue(window);
+		this.sentAt = new long[window];
+		this.retransmitted = new boolean[window];
+		this.handshake = new Handshake(udp, Robot.SIGN_UPLOAD,
+				options.handshakePolicy, this.rtt);
+
+		MappedByteBuffer image = null;
+
+		try {
+			FileChannel channel = FileChannel.open(Paths.get(fileName),
+					StandardOpenOption.READ);
+			image = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+			channel.close();
+		} catch (IOException e) {
+			System.err.println("Can not read the firmware: " + fileName);
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		this.image = image;
+		this.size = image.capacity();
+		this.view = image.duplicate();
+	}
+
+	/**
+	 * Runs the upload over its own socket, the one it has been made with.
+	 */
+	public void run(UDP udp) {
+		System.out.println("]]] I'll connect to the server:");
+
+		udp.drive(this);
+		this.close();
+	}
+
+	/**
+	 * @return true if the connection could not be opened
+	 */
+	public boolean isFailed() {
+		return this.failed;
+	}
+
+	public void start(long now) {
+		this.startTime = now;
+		this.handshake.start(now);
+	}
+
+	public int connId() {
+		return this.connId;
+	}
+
+	public byte command() {
+		return Robot.SIGN_UPLOAD;
+	}
+
+	public boolean isFinished() {
+		return this.finished;
+	}
+
+	public long deadline() {
+		if (this.handshake.isConnecting()) {
+			return this.handshake.deadline();
+		}
+
+		if (this.closing) {
+			return this.controlDeadline;
+		}
+
+		return this.timers.nextDeadline();
+	}
+
+	/**
+	 * Prints the summary.
+	 */
+	public void close() {
+		long time = Math.max(1, System.nanoTime() - this.startTime);
+
+		System.out.println(this.handshake);
+		System.out.println("Upload: bytes=" + this.acked + "/" + this.size
+				+ ", time=" + time / 1_000_000 + " ms, segments="
+				+ this.segmentsSent + ", timeouts=" + this.timeouts
+				+ ", fast retransmits=" + this.fastRetransmits + ", srtt="
+				+ this.rtt.srtt() / 1_000 + " us, rto=" + this.rtt.rto()
+				/ 1_000 + " us");
+		Log.flush();
+	}
+
+	public void receive(PacketView recvPacket) {
+		if (Log.TRACE) {
+			Log.packet(Log.LEVEL_TRACE, Log.EVENT_RECV, recvPacket);
+		}
+
+		if (!recvPacket.isValid()) {
+			if (Log.DEBUG) {
+				Log.packet(Log.LEVEL_DEBUG, Log.EVENT_MALFORMED, recvPacket);
+			}
+			return;
+		}
+
+		long now = System.nanoTime();
+
+		if (this.handshake.isConnecting()) {
+			if (this.handshake.receive(recvPacket, now)) {
+				this.connId = this.handshake.connId();
+				this.advance(now);
+			}
+			return;
+		}
+
+		if (recvPacket.connId() != this.connId) {
+			if (!recvPacket.isRst()) {
+				this.sendRst(recvPacket.connId());
+			}
+			return;
+		}
+
+		if (recvPacket.isRst()) {
+			System.err.println("The server has reset the upload.");
+			this.failed = true;
+			this.finished = true;
+			return;
+		}
+
+		if (this.closing) {
+			if (recvPacket.isFin()) {
+				this.finished = true;
+			}
+			return;
+		}
+
+		this.onAck(Utils.unwrapSeq(recvPacket.ackNum(), this.acked), now);
+		this.advance(now);
+	}
+
+	public void onTimer(long now) {
+		if (this.handshake.isConnecting()) {
+			this.handshake.onTimer(now);
+
+			if (this.handshake.isFailed()) {
+				System.err.println("The server has not answered the SYN.");
+				this.failed = true;
+				this.finished = true;
+			}
+			return;
+		}
+
+		if (this.closing) {
+			if (now >= this.controlDeadline) {
+				this.rtt.backoff();
+				this.sendFin(now);
+			}
+			return;
+		}
+
+		this.expire(now);
+	}
+
+	/**
+	 * Fills the window, or starts closing when everything is acknowledged.
+	 */
+	private void advance(long now) {
+		if (this.acked >= this.size) {
+			this.closing = true;
+			this.sendFin(now);
+		} else {
+			this.fillWindow(now);
+		}
+	}
+
+	/**
+	 * Sends the FIN until the server answers with his FIN.
+	 */
+	private void sendFin(long now) {
+		if (this.finAttempts == Upload.MAX_FIN_ATTEMPTS) {
+			this.finished = true;
+			return;
+		}
+
+		this.finAttempts += 1;
+		this.udp.sendSegment(this.connId, (short) this.size, (short) 0,
+				Packet.FLAG_FIN, null);
+		this.controlDeadline = now + this.rtt.rto();
+	}
+
+	private void sendRst(int connId) {
+		this.udp.sendSegment(connId, (short) 0, (short) 0,
+				Packet.FLAG_RST, null);
+	}
+
+	private int slot(long offset) {
+		return (int) (offset / Packet.MAX_DATA_LENGTH % this.window);
+	}
+
+	private void sendSegment(long offset, long now) {
+		int length = (int) Math.min(Packet.MAX_DATA_LENGTH, this.size - offset);
+
+		this.view.limit((int) offset + length).position((int) offset);
+		this.udp.sendSegment(this.connId, (short) offset, (short) 0,
+				Packet.FLAG_NONE, this.view);
+
+		this.segmentsSent += 1;
+		this.timers.schedule(this.slot(offset), now + this.rtt.rto());
+	}
+
+	private void fillWindow(long now) {
+		while (this.next < this.size
+				&& this.next < this.acked + (long) this.window
+						* Packet.MAX_DATA_LENGTH) {
+			int slot = this.slot(this.next);
+
+			this.sentAt[slot] = now;
+			this.retransmitted[slot] = false;
+			this.sendSegment(this.next, now);
+
+			this.next += Math.min(Packet.MAX_DATA_LENGTH, this.size - this.next);
+		}
+	}
+
+	private void retransmit(long offset, long now) {
+		this.retransmitted[this.slot(offset)] = true;
+		this.sendSegment(offset, now);
+	}
+
+	private void onAck(long ack, long now) {
+		if (ack > this.acked && ack <= this.next) {
+			/* the segment which ends at the ACK measures the round trip */
+			long last = (ack - 1) / Packet.MAX_DATA_LENGTH
+					* Packet.MAX_DATA_LENGTH;
+
+			if (!this.retransmitted[this.slot(last)]) {
+				this.rtt.sample(now - this.sentAt[this.slot(last)]);
+			} else {
+				this.rtt.resetBackoff();
+			}
+
+			for (long offset = this.acked; offset < ack; offset += Packet.MAX_DATA_LENGTH) {
+				this.timers.cancel(this.slot(offset));
+			}
+
+			this.acked = ack;
+			this.duplicateAcks = 0;
+		} else if (ack == this.acked && this.acked < this.next) {
+			this.duplicateAcks += 1;
+
+			if (this.duplicateAcks == Upload.DUPLICATE_ACKS) {
+				this.fastRetransmits += 1;
+				this.retransmit(this.acked, now);
+			}
+		}
+	}
+
+	/**
+	 * Sends again the segments whose timers have expired.
+	 */
+	private void expire(long now) {
+		if (this.timers.isEmpty() || this.timers.nextDeadline() > now) {
+			return;
+		}
+
+		/* one backoff for the whole burst of expired segments */
+		this.rtt.backoff();
+
+		while (!this.timers.isEmpty() && this.timers.nextDeadline() <= now) {
+			int slot = this.timers.nextId();
+
+			/* the segment in the slot is the one after 'acked' in this slot */
+			long offset = this.acked / Packet.MAX_DATA_LENGTH
+					* Packet.MAX_DATA_LENGTH;
+
+			while (this.slot(offset) != slot) {
+				offset += Packet.MAX_DATA_LENGTH;
+			}
+
+			this.timeouts += 1;
+			this.retransmit(offset, now);
+		}
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * Map from int to int with open addressing, no boxing. Missing keys map to
+ * -1, so the values must not be negative.
+ */
+class IntMap {
+
+	public static final int MISSING = -1;
+
+	private int[] keys;
+	private int[] values;
+	private int size;
+
+	public IntMap(int capacity) {
+		int tableSize = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) * 2;
+
+		this.keys = new int[tableSize];
+		this.values = new int[tableSize];
+
+		Arrays.fill(this.values, IntMap.MISSING);
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	private int index(int key) {
+		return (key * 0x9E3779B9 >>> 16) & (this.keys.length - 1);
+	}
+
+	public int get(int key) {
+		int mask = this.keys.length - 1;
+
+		for (int i = this.index(key);; i = (i + 1) & mask) {
+			if (this.values[i] == IntMap.MISSING) {
+				return IntMap.MISSING;
+			}
+
+			if (this.keys[i] == key) {
+				return this.values[i];
+			}
+		}
+	}
+
+	public void put(int key, int value) {
+		if (2 * (this.size + 1) > this.keys.length) {
+			this.grow();
+		}
+
+		int mask = this.keys.length - 1;
+		int i = this.index(key);
+
+		while (this.values[i] != IntMap.MISSING && this.keys[i] != key) {
+			i = (i + 1) & mask;
+		}
+
+		if (this.values[i] == IntMap.MISSING) {
+			this.size += 1;
+		}
+
+		this.keys[i] = key;
+		this.values[i] = value;
+	}
+
+	public void remove(int key) {
+		int mask = this.keys.length - 1;
+		int i = this.index(key);
+
+		while (this.values[i] != IntMap.MISSING && this.keys[i] != key) {
+			i = (i + 1) & mask;
+		}
+
+		if (this.values[i] == IntMap.MISSING) {
+			return;
+		}
+
+		this.size -= 1;
+
+		/* shift the following entries back, no tombstones */
+		for (int j = (i + 1) & mask; this.values[j] != IntMap.MISSING; j = (j + 1)
+				& mask) {
+			int home = this.index(this.keys[j]);
+
+			if (((j - home) & mask) >= ((j - i) & mask)) {
+				this.keys[i] = this.keys[j];
+				this.values[i] = this.values[j];
+				i = j;
+			}
+		}
+
+		this.values[i] = IntMap.MISSING;
+	}
+
+	private void grow() {
+		int[] oldKeys = this.keys;
+		int[] oldValues = this.values;
+
+		this.keys = new int[oldKeys.length * 2];
+		this.values = new int[oldKeys.length * 2];
+		this.size = 0;
+
+		Arrays.fill(this.values, IntMap.MISSING);
+
+		for (int i = 0; i < oldKeys.length; i += 1) {
+			if (oldValues[i] != IntMap.MISSING) {
+				this.put(oldKeys[i], oldValues[i]);
+			}
+		}
+	}
+
+	public static boolean test() {
+		IntMap map = new IntMap(2);
+		int fails = 0;
+
+		for (int i = 0; i < 1000; i += 1) {
+			map.put(i * 65536, i);
+		}
+
+		for (int i = 0; i < 1000; i += 2) {
+			map.remove(i * 65536);
+		}
+
+		for (int i = 0; i < 1000; i += 1) {
+			if (map.get(i * 65536) != (i % 2 == 0 ? IntMap.MISSING : i)) {
+				fails += 1;
+			}
+		}
+
+		if (map.size() != 500) {
+			fails += 1;
+		}
+
+		/* a run of keys which wraps from the last slot to the first */
+		IntMap small = new IntMap(8);
+		int last = small.keys.length - 1;
+		int[] wrapping = new int[3];
+
+		for (int key = 1, found = 0; found < wrapping.length; key += 1) {
+			if (small.index(key) == last) {
+				wrapping[found++] = key;
+			}
+		}
+
+		for (int i = 0; i < wrapping.length; i += 1) {
+			small.put(wrapping[i], i);
+		}
+
+		small.remove(wrapping[0]);
+
+		if (small.get(wrapping[0]) != IntMap.MISSING
+				|| small.get(wrapping[1]) != 1 || small.get(wrapping[2]) != 2
+				|| small.size() != 2) {
+			fails += 1;
+		}
+
+		/* zero and the extremes are keys too, a new value is not a new key */
+		small.put(0, 10);
+		small.put(Integer.MIN_VALUE, 11);
+		small.put(Integer.MAX_VALUE, 12);
+		small.put(0, 13);
+		small.remove(-1);
+
+		if (small.get(0) != 13 || small.get(Integer.MIN_VALUE) != 11
+				|| small.get(Integer.MAX_VALUE) != 12 || small.size() != 5
+				|| small.keys.length != 16) {
+			fails += 1;
+		}
+
+		System.out.println("IntMap: fails=" + fails);
+
+		return fails == 0;
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * Transport of one transfer in the TransferEngine, it sends through the
+ * shared channel of the engine. Packets are received by the engine.
+ */
+class ChannelUDP extends Transport {
+
+	public final int channelIndex;
+	public final InetSocketAddress target;
+
+	private final DatagramChannel channel;
+	private final ByteBuffer buffer;
+
+	/**
+	 * Where the datagrams wait for their turn, or null to send at once.
+	 */
+	private TransferScheduler scheduler;
+	private int slot;
+
+	public ChannelUDP(DatagramChannel channel, int channelIndex,
+			InetSocketAddress target, ByteBuffer buffer) {
+		this.channel = channel;
+		this.channelIndex = channelIndex;
+		this.target = target;
+		this.buffer = buffer;
+	}
+
+	@Override
+	public void send(Packet packet) {
+		if (Log.TRACE) {
+			Log.packet(Log.LEVEL_TRACE, Log.EVENT_SEND, packet);
+		}
+
+		this.buffer.clear();
+		PacketView.encode(this.buffer, packet.connId, packet.seqNum,
+				packet.ackNum, packet.flags);
+		this.buffer.position(Packet.HEADER_SIZE);
+		this.buffer.put(packet.data);
+		this.flush();
+	}
+
+	/**
+	 * The shared channel is not connected, so the payload is copied after
+	 * the header instead of a gathering write.
+	 */
+	@Override
+	public void sendSegment(int connId, short seqNum, short ackNum,
+			byte flags, ByteBuffer payload) {
+		if (Log.TRACE) {
+			Log.record(Log.LEVEL_TRACE, Log.EVENT_SEND, connId, seqNum,
+					ackNum, flags, payload == null ? 0 : payload.remaining());
+		}
+
+		this.buffer.clear();
+		PacketView.encode(this.buffer, connId, seqNum, ackNum, flags);
+		this.buffer.position(Packet.HEADER_SIZE);
+
+		if (payload != null) {
+			this.buffer.put(payload);
+		}
+
+		this.flush();
+	}
+
+	public void schedule(TransferScheduler scheduler, int slot) {
+		this.scheduler = scheduler;
+		this.slot = slot;
+	}
+
+	private void flush() {
+		this.buffer.flip();
+
+		if (this.scheduler != null) {
+			this.scheduler.enqueue(this.slot, this.buffer);
+		} else {
+			this.transmit(this.buffer);
+		}
+	}
+
+	/**
+	 * Sends the datagram (position to limit) now.
+	 */
+	public void transmit(ByteBuffer datagram) {
+		if (UDP.trace != null) {
+			UDP.trace.record(TraceWriter.SENT, datagram);
+		}
+
+		int position = datagram.position();
+
+		try {
+			/* a full socket buffer drops the datagram, like the network */
+			this.channel.send(datagram, this.target);
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+		}
+
+		/* the scheduler may look at the datagram again */
+		datagram.position(position);
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * A token bucket of bytes, zero rate is unlimited. A datagram larger than
+ * the burst goes out when the bucket is full and leaves it in debt.
+ */
+class TokenBucket {
+
+	/**
+	 * Bytes per second and the most bytes sent at once.
+	 */
+	public final long rate;
+	public final long burst;
+
+	/**
+	 * Bytes times 10^9, so that the refill is exact in integers.
+	 */
+	private long tokens;
+	private long last;
+
+	public TokenBucket(long rate, long burst) {
+		this.rate = rate;
+		this.burst = burst;
+		this.tokens = burst * 1_000_000_000L;
+	}
+
+	private void refill(long now) {
+		if (this.last != 0 && now > this.last) {
+			this.tokens = Math.min(this.burst * 1_000_000_000L, this.tokens
+					+ (now - this.last) * this.rate);
+		}
+
+		this.last = now;
+	}
+
+	/**
+	 * @return 'now' if 'cost' bytes may go, else when they may
+	 */
+	public long readyAt(int cost, long now) {
+		if (this.rate == 0) {
+			return now;
+		}
+
+		this.refill(now);
+
+		long needed = Math.min(cost, this.burst) * 1_000_000_000L;
+
+		if (this.tokens >= needed) {
+			return now;
+		}
+
+		return now + (needed - this.tokens + this.rate - 1) / this.rate;
+	}
+
+	public void take(int cost) {
+		if (this.rate != 0) {
+			this.tokens -= cost * 1_000_000_000L;
+		}
+	}
+
+	/**
+	 * The burst goes at once, then the bytes wait for the rate; idle time
+	 * does not save up more than the burst and a debt is paid back.
+	 */
+	public static boolean test() {
+		TokenBucket bucket = new TokenBucket(1000, 100);
+		long now = 1_000_000_000L;
+		int fails = 0;
+
+		if (bucket.readyAt(100, now) != now) {
+			fails += 1;
+		}
+
+		bucket.take(100);
+
+		/* 50 bytes at 1000 B/s */
+		if (bucket.readyAt(50, now) != now + 50_000_000L
+				|| bucket.readyAt(50, now + 50_000_000L) != now + 50_000_000L) {
+			fails += 1;
+		}
+
+		/* more than the burst waits for the burst only */
+		if (bucket.readyAt(500, now + 50_000_000L) != now + 100_000_000L) {
+			fails += 1;
+		}
+
+		/* ten seconds of idle time still hold 100 bytes */
+		now += 10_000_000_000L;
+		bucket.readyAt(1, now);
+		bucket.take(100);
+
+		if (bucket.readyAt(1, now) == now) {
+			fails += 1;
+		}
+
+		/* 200 bytes more than there are, 200 ms to pay back */
+		bucket.take(200);
+
+		if (bucket.readyAt(1, now) != now + 201_000_000L) {
+			fails += 1;
+		}
+
+		TokenBucket unlimited = new TokenBucket(0, 0);
+
+		unlimited.take(1_000_000);
+
+		if (unlimited.readyAt(1_000_000, now) != now) {
+			fails += 1;
+		}
+
+		System.out.println("TokenBucket: fails=" + fails);
+
+		return fails == 0;
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * Decides when the datagrams of the transfers of a TransferEngine go out.
+ * Every transfer has its queue, its priority class and weight and may have a
+ * rate limit; all share a global rate limit. A higher class always goes
+ * first, inside a class the transfers share the bandwidth by their weights
+ * (deficit round robin). The cost of an ACK is the data it acknowledges, so
+ * pacing the ACKs of a download paces the server too.
+ * 
+ * The engine calls pump() after each wakeup and keeps one timer for the time
+ * it returns.
+ */
+class TransferScheduler {
+
+	public static final int URGENT = 0;
+	public static final int NORMAL = 1;
+	public static final int BACKGROUND = 2;
+	public static final int CLASSES = 3;
+
+	public static final String[] CLASS_NAMES = { "urgent", "normal",
+			"background" };
+
+	/**
+	 * Datagrams one transfer may have waiting.
+	 */
+	public static final int QUEUE_SIZE = 64;
+
+	/**
+	 * Bytes added to the deficit of a transfer of weight 1 at its turn.
+	 */
+	public static final int QUANTUM = BufferPool.DATAGRAM_SIZE;
+
+	/**
+	 * The burst of a bucket, in milliseconds of its rate (at least 16 KiB).
+	 */
+	public static final long BURST_MILLIS = 20;
+
+	private final TokenBucket global;
+	private final long rate;
+
+	private final ChannelUDP[] transports;
+	private final ByteBuffer[][] queues;
+	private final int[] heads;
+	private final int[] counts;
+	private final TokenBucket[] buckets;
+	private final int[] priorities;
+	private final int[] weights;
+	private final long[] deficits;
+	private final short[] lastAcks;
+
+	/**
+	 * Transfers with queued datagrams, a ring per class.
+	 */
+	private final int[][] rings;
+	private final int[] ringHeads;
+	private final int[] ringCounts;
+	private final boolean[] listed;
+
+	/* counters */
+	public long sent;
+	public long superseded;
+	public long dropped;
+	public final long[] classBytes = new long[TransferScheduler.CLASSES];
+
+	/**
+	 * @param rate
+	 *            bytes per second of each transfer, zero is unlimited
+	 * @param totalRate
+	 *            bytes per second of all of them, zero is unlimited
+	 */
+	public TransferScheduler(int capacity, long rate, long totalRate) {
+		this.rate = rate;
+		this.global = new TokenBucket(totalRate,
+				TransferScheduler.burst(totalRate));
+		this.transports = new ChannelUDP[capacity];
+		this.queues = new ByteBuffer[capacity][];
+		this.heads = new int[capacity];
+		this.counts = new int[capacity];
+		this.buckets = new TokenBucket[capacity];
+		this.priorities = new int[capacity];
+		this.weights = new int[capacity];
+		this.deficits = new long[capacity];
+		this.lastAcks = new short[capacity];
+		this.rings = new int[TransferScheduler.CLASSES][capacity];
+		this.ringHeads = new int[TransferScheduler.CLASSES];
+		this.ringCounts = new int[TransferScheduler.CLASSES];
+		this.listed = new boolean[capacity];
+	}
+
+	private static long burst(long rate) {
+		return Math.max(16 * 1024, rate * TransferScheduler.BURST_MILLIS / 1000);
+	}
+
+	public void register(int slot, ChannelUDP transport, int priority,
+			int weight) {
+		if (this.queues[slot] == null) {
+			this.queues[slot] = new ByteBuffer[TransferScheduler.QUEUE_SIZE];
+
+			for (int i = 0; i < TransferScheduler.QUEUE_SIZE; i += 1) {
+				this.queues[slot][i] = ByteBuffer
+						.allocateDirect(BufferPool.DATAGRAM_SIZE);
+			}
+		}
+
+		this.transports[slot] = transport;
+		this.heads[slot] = 0;
+		this.counts[slot] = 0;
+		this.buckets[slot] = new TokenBucket(this.rate,
+				TransferScheduler.burst(this.rate));
+		this.priorities[slot] = priority;
+		this.weights[slot] = Math.max(1, weight);
+		this.deficits[slot] = 0;
+		this.lastAcks[slot] = 0;
+		transport.schedule(this, slot);
+	}
+
+	private static boolean isAck(ByteBuffer datagram) {
+		return datagram.remaining() == Packet.HEADER_SIZE
+				&& datagram.get(datagram.position() + 8) == Packet.FLAG_NONE;
+	}
+
+	/**
+	 * Queues a copy of the datagram (position to limit). A newer ACK
+	 * replaces a waiting one, a segment which is waiting already is not
+	 * queued twice.
+	 */
+	public void enqueue(int slot, ByteBuffer datagram) {
+		ByteBuffer[] queue = this.queues[slot];
+		int length = datagram.remaining();
+
+		for (int i = 0; i < this.counts[slot]; i += 1) {
+			ByteBuffer waiting = queue[(this.heads[slot] + i)
+					% TransferScheduler.QUEUE_SIZE];
+
+			if (TransferScheduler.isAck(datagram)
+					&& TransferScheduler.isAck(waiting)) {
+				waiting.putShort(6, datagram.getShort(datagram.position() + 6));
+				this.superseded += 1;
+				return;
+			}
+
+			if (length > Packet.HEADER_SIZE && waiting.limit() == length
+					&& waiting.getShort(4) == datagram.getShort(datagram
+							.position() + 4)) {
+				this.superseded += 1;
+				return;
+			}
+		}
+
+		if (this.counts[slot] == TransferScheduler.QUEUE_SIZE) {
+			this.dropped += 1;
+			return;
+		}
+
+		ByteBuffer tail = queue[(this.heads[slot] + this.counts[slot])
+				% TransferScheduler.QUEUE_SIZE];
+
+		tail.clear();
+		tail.put(datagram.duplicate());
+		tail.flip();
+		this.counts[slot] += 1;
+
+		if (!this.listed[slot]) {
+			int priority = this.priorities[slot];
+
+			this.rings[priority][(this.ringHeads[priority] + this.ringCounts[priority])
+					% this.rings[priority].length] = slot;
+			this.ringCounts[priority] += 1;
+			this.listed[slot] = true;
+		}
+	}
+
+	/**
+	 * @return bytes the datagram at the head of the queue costs
+	 */
+	private int cost(int slot) {
+		ByteBuffer head = this.queues[slot][this.heads[slot]];
+
+		if (TransferScheduler.isAck(head)) {
+			return Packet.HEADER_SIZE
+					+ ((head.getShort(6) - this.lastAcks[slot]) & 0xffff);
+		}
+
+		return head.limit();
+	}
+
+	/**
+	 * Sends what the buckets allow, the highest class first.
+	 * 
+	 * @return when to call again, Long.MAX_VALUE when nothing waits
+	 */
+	public long pump(long now) {
+		long next = Long.MAX_VALUE;
+
+		for (int priority = 0; priority < TransferScheduler.CLASSES;) {
+			int slot = this.pick(priority, now);
+
+			if (slot >= 0) {
+				this.sendHead(slot);
+				/* a higher class may have something again */
+				priority = 0;
+				next = Long.MAX_VALUE;
+				continue;
+			}
+
+			if (slot == TransferScheduler.BLOCKED) {
+				return Math.min(next, this.wait);
+			}
+
+			if (slot == TransferScheduler.WAITING) {
+				next = Math.min(next, this.wait);
+			}
+
+			priority += 1;
+		}
+
+		return next;
+	}
+
+	/**
+	 * What pick() returns when no transfer may send.
+	 */
+	private static final int EMPTY = -1;
+	private static final int WAITING = -2;
+	private static final int BLOCKED = -3;
+
+	/**
+	 * When the class which has been WAITING or BLOCKED may send.
+	 */
+	private long wait;
+
+	/**
+	 * One round of deficit round robin in the class.
+	 * 
+	 * @return the transfer which may send now, EMPTY if none has anything,
+	 *         WAITING if they wait for their buckets, BLOCKED if for the
+	 *         global one (see 'wait')
+	 */
+	private int pick(int priority, long now) {
+		int[] ring = this.rings[priority];
+		long wait = Long.MAX_VALUE;
+
+		if (this.ringCounts[priority] == 0) {
+			return TransferScheduler.EMPTY;
+		}
+
+		/* rounds go on until one may send or all wait for their buckets */
+		for (int waiting = 0; waiting < this.ringCounts[priority];) {
+			int slot = ring[this.ringHeads[priority]];
+			int cost = this.cost(slot);
+
+			/*
+			 * no rounds while the socket is out of tokens, a transfer alone
+			 * in the ring would have its debt forgiven
+			 */
+			long ready = this.global.readyAt(cost, now);
+
+			if (ready > now) {
+				this.wait = ready;
+				return TransferScheduler.BLOCKED;
+			}
+
+			if (this.deficits[slot] < Math.min(cost, TransferScheduler.QUANTUM
+					* this.weights[slot])) {
+				this.deficits[slot] += (long) TransferScheduler.QUANTUM
+						* this.weights[slot];
+				this.rotate(priority);
+				waiting = 0;
+				continue;
+			}
+
+			ready = this.buckets[slot].readyAt(cost, now);
+
+			if (ready > now) {
+				wait = Math.min(wait, ready);
+				this.rotate(priority);
+				waiting += 1;
+				continue;
+			}
+
+			return slot;
+		}
+
+		this.wait = wait;
+
+		return TransferScheduler.WAITING;
+	}
+
+	private void rotate(int priority) {
+		int[] ring = this.rings[priority];
+		int slot = ring[this.ringHeads[priority]];
+
+		this.ringHeads[priority] = (this.ringHeads[priority] + 1)
+				% ring.length;
+		ring[(this.ringHeads[priority] + this.ringCounts[priority] - 1)
+				% ring.length] = slot;
+	}
+
+	/**
+	 * Sends the head of the queue of the transfer at the head of its ring.
+	 */
+	private void sendHead(int slot) {
+		int priority = this.priorities[slot];
+		int cost = this.cost(slot);
+		ByteBuffer head = this.queues[slot][this.heads[slot]];
+
+		if (TransferScheduler.isAck(head)) {
+			this.lastAcks[slot] = head.getShort(6);
+		}
+
+		this.deficits[slot] -= cost;
+		this.buckets[slot].take(cost);
+		this.global.take(cost);
+		this.classBytes[priority] += cost;
+		this.sent += 1;
+
+		this.transports[slot].transmit(head);
+		this.heads[slot] = (this.heads[slot] + 1) % TransferScheduler.QUEUE_SIZE;
+		this.counts[slot] -= 1;
+
+		if (this.counts[slot] == 0) {
+			/* an idle transfer does not save up credit, its debt stays */
+			this.deficits[slot] = Math.min(0, this.deficits[slot]);
+			this.listed[slot] = false;
+			this.ringHeads[priority] = (this.ringHeads[priority] + 1)
+					% this.rings[priority].length;
+			this.ringCounts[priority] -= 1;
+		}
+	}
+
+	/**
+	 * Sends what the finished transfer has left (its last answers) at once.
+	 */
+	public void release(int slot) {
+		while (this.counts[slot] > 0) {
+			ByteBuffer head = this.queues[slot][this.heads[slot]];
+
+			this.transports[slot].transmit(head);
+			this.heads[slot] = (this.heads[slot] + 1)
+					% TransferScheduler.QUEUE_SIZE;
+			this.counts[slot] -= 1;
+		}
+
+		if (this.listed[slot]) {
+			int priority = this.priorities[slot];
+			int[] ring = this.rings[priority];
+			int count = this.ringCounts[priority];
+			int kept = 0;
+
+			for (int i = 0; i < count; i += 1) {
+				int other = ring[(this.ringHeads[priority] + i) % ring.length];
+
+				if (other != slot) {
+					ring[(this.ringHeads[priority] + kept) % ring.length] = other;
+					kept += 1;
+				}
+			}
+
+			this.ringCounts[priority] = kept;
+			this.listed[slot] = false;
+		}
+
+		this.transports[slot] = null;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("Scheduler: rate="
+				+ (this.rate == 0 ? "unlimited" : this.rate + " B/s")
+				+ ", total="
+				+ (this.global.rate == 0 ? "unlimited" : this.global.rate
+						+ " B/s") + ", sent=" + this.sent + ", superseded="
+				+ this.superseded + ", dropped=" + this.dropped);
+
+		for (int i = 0; i < TransferScheduler.CLASSES; i += 1) {
+			sb.append(", ").append(TransferScheduler.CLASS_NAMES[i])
+					.append('=').append(this.classBytes[i]).append(" B");
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * A transport of the test, it notes the connection of every datagram the
+	 * scheduler sends.
+	 */
+	private static ChannelUDP recorder(final List<Integer> sent) {
+		return new ChannelUDP(null, 0, null,
+				ByteBuffer.allocate(BufferPool.DATAGRAM_SIZE)) {
+			@Override
+			public void transmit(ByteBuffer datagram) {
+				sent.add(datagram.getInt(datagram.position()));
+			}
+		};
+	}
+
+	/**
+	 * The classes go in their order, the weights share a class, a newer ACK
+	 * replaces a waiting one, a full queue drops, the rate holds back what
+	 * is over the burst and release() sends what is left.
+	 */
+	public static boolean test() {
+		List<Integer> sent = new ArrayList<Integer>();
+		ByteBuffer payload = ByteBuffer.allocate(Packet.MAX_DATA_LENGTH);
+		int fails = 0;
+
+		/* one segment of each class, queued from the lowest */
+		TransferScheduler classes = new TransferScheduler(3, 0, 0);
+		ChannelUDP[] transports = new ChannelUDP[3];
+		int[] priorities = { TransferScheduler.BACKGROUND,
+				TransferScheduler.URGENT, TransferScheduler.NORMAL };
+
+		for (int slot = 0; slot < 3; slot += 1) {
+			transports[slot] = TransferScheduler.recorder(sent);
+			classes.register(slot, transports[slot], priorities[slot], 1);
+		}
+
+		for (int slot = 0; slot < 3; slot += 1) {
+			payload.clear();
+			transports[slot].sendSegment(slot, (short) 0, (short) 0,
+					Packet.FLAG_NONE, payload);
+		}
+
+		if (classes.pump(0) != Long.MAX_VALUE
+				|| !sent.equals(Arrays.asList(1, 2, 0))
+				|| classes.classBytes[TransferScheduler.URGENT]
+						!= BufferPool.DATAGRAM_SIZE - 1) {
+			fails += 1;
+		}
+
+		/* two ACKs and a segment twice make one ACK and one segment */
+		sent.clear();
+		transports[0].sendSegment(0, (short) 0, (short) 100,
+				Packet.FLAG_NONE, null);
+		transports[0].sendSegment(0, (short) 0, (short) 200,
+				Packet.FLAG_NONE, null);
+
+		for (int i = 0; i < 2; i += 1) {
+			payload.clear();
+			transports[0].sendSegment(0, (short) 255, (short) 0,
+					Packet.FLAG_NONE, payload);
+		}
+
+		classes.pump(0);
+
+		if (sent.size() != 2 || classes.superseded != 2) {
+			fails += 1;
+		}
+
+		/* a queue holds QUEUE_SIZE datagrams */
+		for (int i = 0; i <= TransferScheduler.QUEUE_SIZE; i += 1) {
+			payload.clear();
+			transports[2].sendSegment(2, (short) (i * 255), (short) 0,
+					Packet.FLAG_NONE, payload);
+		}
+
+		if (classes.dropped != 1) {
+			fails += 1;
+		}
+
+		/* the queue is a ring, release() sends what waits in it at once */
+		long counted = classes.sent;
+
+		sent.clear();
+		classes.release(2);
+
+		if (sent.size() != TransferScheduler.QUEUE_SIZE
+				|| classes.sent != counted
+				|| classes.pump(0) != Long.MAX_VALUE
+				|| sent.size() != TransferScheduler.QUEUE_SIZE) {
+			fails += 1;
+		}
+
+		/* weights 1 and 3 in one class, the second sends three times more */
+		TransferScheduler weights = new TransferScheduler(2, 0, 0);
+		ChannelUDP light = TransferScheduler.recorder(sent);
+		ChannelUDP heavy = TransferScheduler.recorder(sent);
+
+		weights.register(0, light, TransferScheduler.NORMAL, 1);
+		weights.register(1, heavy, TransferScheduler.NORMAL, 3);
+
+		for (int i = 0; i < 32; i += 1) {
+			payload.clear();
+			light.sendSegment(0, (short) (i * 255), (short) 0,
+					Packet.FLAG_NONE, payload);
+			payload.clear();
+			heavy.sendSegment(1, (short) (i * 255), (short) 0,
+					Packet.FLAG_NONE, payload);
+		}
+
+		sent.clear();
+		weights.pump(0);
+
+		int heavyFirst = 0;
+
+		for (int i = 0; i < 32; i += 1) {
+			heavyFirst += sent.get(i);
+		}
+
+		if (sent.size() != 64 || heavyFirst != 24) {
+			fails += 1;
+		}
+
+		/* a rate sends its burst and tells when the rest may go */
+		long rate = 100_000;
+		TransferScheduler paced = new TransferScheduler(1, rate, 0);
+		ChannelUDP slow = TransferScheduler.recorder(sent);
+		long now = 1_000_000_000L;
+
+		paced.register(0, slow, TransferScheduler.NORMAL, 1);
+
+		for (int i = 0; i < TransferScheduler.QUEUE_SIZE; i += 1) {
+			payload.clear();
+			slow.sendSegment(0, (short) (i * 255), (short) 0,
+					Packet.FLAG_NONE, payload);
+		}
+
+		sent.clear();
+
+		long next = paced.pump(now);
+		int burst = sent.size();
+
+		if (burst != TransferScheduler.burst(rate)
+				/ (BufferPool.DATAGRAM_SIZE - 1) || next <= now
+				|| paced.pump(next - 1) != next || sent.size() != burst) {
+			fails += 1;
+		}
+
+		paced.pump(next);
+
+		if (sent.size() != burst + 1) {
+			fails += 1;
+		}
+
+		System.out.println("TransferScheduler: fails=" + fails);
+
+		return fails == 0;
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * Runs many transfers in one thread. They share a few non-blocking
+ * DatagramChannels watched by one Selector, packets are routed by connId and
+ * every transfer has its deadline in one TimerQueue.
+ * 
+ * The SYN answer has a connId nobody knows yet, it goes to the oldest
+ * transfer which waits for a SYN from that address with that command.
+ */
+class TransferEngine {
+
+	private final Selector selector;
+	private final DatagramChannel[] channels;
+	private int nextChannel;
+
+	/**
+	 * Transfers by slot, a slot is also the id of the timer.
+	 */
+	private final Transfer[] transfers;
+	private final ChannelUDP[] transports;
+	private final boolean[] connecting;
+	private final long[] started;
+	private final int[] freeSlots;
+	private int freeCount;
+
+	private final IntMap slots;
+	private final TimerQueue timers;
+
+	private final SocketStats[] stats;
+	private long nextSample;
+	public long wakeups;
+	public long datagrams;
+
+	private final BufferPool pool = new BufferPool(4);
+	private final PacketView view = new PacketView();
+	private final ByteBuffer sendBuffer = ByteBuffer
+			.allocateDirect(Packet.HEADER_SIZE + Packet.MAX_DATA_LENGTH);
+
+	private long startCounter;
+
+	public long strayPackets;
+
+	/**
+	 * Paces what the transfers send, or null; its timer has the id
+	 * 'capacity' in the TimerQueue.
+	 */
+	public final TransferScheduler scheduler;
+	private final int schedulerTimer;
+
+	/**
+	 * Data of an unknown connection open it (HandshakePolicy.earlyData).
+	 */
+	private final boolean earlyData;
+
+	/**
+	 * @param capacity
+	 *            most transfers at once
+	 * @param options
+	 *            how many sockets the transfers share, their buffers, the
+	 *            scheduling and whether data may open a connection
+	 */
+	public TransferEngine(int capacity, Options options) throws IOException {
+		int channels = options.channels;
+
+		this.selector = Selector.open();
+		this.channels = new DatagramChannel[channels];
+
+		for (int i = 0; i < channels; i += 1) {
+			this.channels[i] = DatagramChannel.open();
+			this.channels[i].configureBlocking(false);
+			this.channels[i].bind(null);
+			UDP.setBufferSizes(this.channels[i], options.rcvbuf,
+					options.sndbuf);
+			this.channels[i].register(this.selector, SelectionKey.OP_READ,
+					Integer.valueOf(i));
+		}
+
+		this.earlyData = options.handshakePolicy.earlyData;
+		this.transfers = new Transfer[capacity];
+		this.transports = new ChannelUDP[capacity];
+		this.connecting = new boolean[capacity];
+		this.started = new long[capacity];
+		this.freeSlots = new int[capacity];
+
+		for (int i = 0; i < capacity; i += 1) {
+			this.freeSlots[i] = capacity - 1 - i;
+		}
+
+		this.stats = new SocketStats[channels];
+
+		for (int i = 0; i < channels; i += 1) {
+			this.stats[i] = new SocketStats(this.channels[i].socket()
+					.getLocalPort());
+		}
+
+		this.freeCount = capacity;
+		this.slots = new IntMap(capacity);
+		this.timers = new TimerQueue(capacity + 1);
+		this.schedulerTimer = capacity;
+
+		if (options.scheduling) {
+			this.scheduler = new TransferScheduler(capacity, options.rate,
+					options.totalRate);
+		} else {
+			this.scheduler = null;
+		}
+	}
+
+	/**
+	 * @return a transport for a new transfer, channels are taken in turn
+	 */
+	public ChannelUDP transport(String serverName, int port) {
+		InetSocketAddress target = new InetSocketAddress(serverName, port);
+
+		if (target.isUnresolved()) {
+			System.err.println("Unknown address of the server.");
+			System.exit(1);
+		}
+
+		int index = this.nextChannel;
+
+		this.nextChannel = (this.nextChannel + 1) % this.channels.length;
+
+		return new ChannelUDP(this.channels[index], index, target,
+				this.sendBuffer);
+	}
+
+	public int active() {
+		return this.transfers.length - this.freeCount;
+	}
+
+	/**
+	 * Starts the transfer which talks through the given transport.
+	 */
+	public void add(Transfer transfer, ChannelUDP transport) {
+		this.add(transfer, transport, TransferScheduler.NORMAL, 1);
+	}
+
+	/**
+	 * @param priority
+	 *            class of the transfer in the scheduler (URGENT, NORMAL,
+	 *            BACKGROUND)
+	 * @param weight
+	 *            its share of the bandwidth of the class
+	 */
+	public void add(Transfer transfer, ChannelUDP transport, int priority,
+			int weight) {
+		if (this.freeCount == 0) {
+			throw new IllegalStateException("too many transfers");
+		}
+
+		this.freeCount -= 1;
+		int slot = this.freeSlots[this.freeCount];
+
+		this.transfers[slot] = transfer;
+		this.transports[slot] = transport;
+		this.connecting[slot] = true;
+		this.started[slot] = this.startCounter++;
+
+		if (this.scheduler != null) {
+			this.scheduler.register(slot, transport, priority, weight);
+		}
+
+		transfer.start(System.nanoTime());
+		this.update(slot);
+		this.pump(System.nanoTime());
+	}
+
+	/**
+	 * Lets the scheduler send and sets its timer.
+	 */
+	private void pump(long now) {
+		if (this.scheduler == null) {
+			return;
+		}
+
+		long next = this.scheduler.pump(now);
+
+		if (next == Long.MAX_VALUE) {
+			this.timers.cancel(this.schedulerTimer);
+		} else {
+			this.timers.schedule(this.schedulerTimer, next);
+		}
+	}
+
+	/**
+	 * Runs until all the transfers finish.
+	 */
+	public void run() throws IOException {
+		while (this.active() > 0) {
+			long deadline = this.timers.nextDeadline();
+
+			if (deadline == Long.MAX_VALUE) {
+				this.selector.select(UDP.TIMEOUT);
+			} else {
+				long wait = (deadline - System.nanoTime() + 999_999) / 1_000_000;
+
+				if (wait > 0) {
+					this.selector.select(wait);
+				} else {
+					this.selector.selectNow();
+				}
+			}
+
+			for (SelectionKey key : this.selector.selectedKeys()) {
+				this.drain((DatagramChannel) key.channel(),
+						((Integer) key.attachment()).intValue());
+			}
+
+			this.selector.selectedKeys().clear();
+			this.wakeups += 1;
+
+			long now = System.nanoTime();
+
+			if (now >= this.nextSample) {
+				for (SocketStats stats : this.stats) {
+					stats.sample();
+				}
+
+				this.nextSample = now + UDP.STATS_PERIOD;
+			}
+
+			while (this.timers.nextDeadline() <= now) {
+				int slot = this.timers.nextId();
+
+				if (slot == this.schedulerTimer) {
+					this.timers.cancel(slot);
+					continue;
+				}
+
+				this.transfers[slot].onTimer(now);
+				this.update(slot);
+			}
+
+			this.pump(now);
+		}
+	}
+
+	private void drain(DatagramChannel channel, int channelIndex)
+			throws IOException {
+		for (;;) {
+			ByteBuffer buffer = this.pool.acquire();
+			SocketAddress from = channel.receive(buffer);
+
+			if (from != null && Packet.isValidSize(buffer.position())) {
+				if (UDP.trace != null) {
+					UDP.trace.record(TraceWriter.RECEIVED, buffer.array(),
+							buffer.position());
+				}
+
+				this.datagrams += 1;
+				this.dispatch(this.view.wrap(buffer, buffer.position()),
+						channelIndex, from);
+			}
+
+			this.pool.release(buffer);
+
+			if (from == null) {
+				return;
+			}
+		}
+	}
+
+	private void dispatch(PacketView packet, int channelIndex,
+			SocketAddress from) {
+		int slot = this.slots.get(packet.connId());
+
+		if (slot == IntMap.MISSING && packet.isSyn()
+				&& packet.dataLength() == 1) {
+			slot = this.handshake(channelIndex, from, packet.data(0));
+
+			if (slot != IntMap.MISSING) {
+				this.connecting[slot] = false;
+				this.slots.put(packet.connId(), slot);
+			}
+		} else if (slot == IntMap.MISSING && packet.isData()
+				&& this.earlyData) {
+			/* the SYN answer has been lost, the data open the connection */
+			slot = this.handshake(channelIndex, from, Robot.SIGN_DOWNLOAD);
+
+			if (slot != IntMap.MISSING) {
+				this.connecting[slot] = false;
+				this.slots.put(packet.connId(), slot);
+			}
+		}
+
+		if (slot == IntMap.MISSING) {
+			this.strayPackets += 1;
+
+			if (!packet.isRst()) {
+				PacketView.encode(this.sendBuffer, packet.connId(),
+						(short) 0, (short) 0, Packet.FLAG_RST);
+				this.sendBuffer.clear().limit(Packet.HEADER_SIZE);
+
+				try {
+					this.channels[channelIndex].send(this.sendBuffer, from);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			return;
+		}
+
+		this.transfers[slot].receive(packet);
+		this.update(slot);
+	}
+
+	/**
+	 * @return the socket buffers and the kernel counters of every channel
+	 */
+	public String socketReport() {
+		StringBuilder sb = new StringBuilder();
+
+		for (int i = 0; i < this.channels.length; i += 1) {
+			this.stats[i].sample();
+			sb.append("Channel " + i + ": "
+					+ UDP.bufferSizes(this.channels[i]) + ", " + this.stats[i]
+					+ "\n");
+		}
+
+		sb.append("Wakeups=" + this.wakeups + ", datagrams=" + this.datagrams);
+
+		return sb.toString();
+	}
+
+	/**
+	 * @return the oldest transfer waiting for this SYN, or MISSING
+	 */
+	private int handshake(int channelIndex, SocketAddress from, byte command) {
+		int oldest = IntMap.MISSING;
+
+		for (int slot = 0; slot < this.transfers.length; slot += 1) {
+			if (this.transfers[slot] != null && this.connecting[slot]
+					&& this.transports[slot].channelIndex == channelIndex
+					&& this.transports[slot].target.equals(from)
+					&& this.transfers[slot].command() == command
+					&& (oldest == IntMap.MISSING || this.started[slot] < this.started[oldest])) {
+				oldest = slot;
+			}
+		}
+
+		return oldest;
+	}
+
+	/**
+	 * Reschedules the timer of the transfer, or retires the transfer.
+	 */
+	private void update(int slot) {
+		Transfer transfer = this.transfers[slot];
+
+		if (transfer.isFinished()) {
+			this.timers.cancel(slot);
+
+			if (!this.connecting[slot]) {
+				this.slots.remove(transfer.connId());
+			}
+
+			if (this.scheduler != null) {
+				this.scheduler.release(slot);
+			}
+
+			this.transfers[slot] = null;
+			this.transports[slot] = null;
+			this.freeSlots[this.freeCount] = slot;
+			this.freeCount += 1;
+
+			transfer.close();
+			return;
+		}
+
+		long deadline = transfer.deadline();
+
+		if (deadline == Long.MAX_VALUE) {
+			this.timers.cancel(slot);
+		} else {
+			this.timers.schedule(slot, deadline);
+		}
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * Uploads one firmware to many robots at once. The image is read once and
+ * cut into read-only segments of a direct buffer; a robot only costs its
+ * 9-byte header, sent with the shared segment in one gathering write, and a
+ * row of primitive arrays for its window, ACKs and timers. One thread, one
+ * connected channel per robot address, one TimerQueue.
+ */
+class FirmwarePush {
+
+	private static final byte CONNECTING = 0;
+	private static final byte SENDING = 1;
+	private static final byte CLOSING = 2;
+	private static final byte DONE = 3;
+	private static final byte FAILED = 4;
+
+	private final int size;
+	private final ByteBuffer[] segments;
+	private final int window;
+
+	/**
+	 * A robot fails after this many unanswered SYNs.
+	 */
+	private final int synAttempts;
+
+	private final DatagramChannel[] channels;
+	private final Selector selector;
+	private final ByteBuffer header = ByteBuffer
+			.allocateDirect(Packet.HEADER_SIZE);
+	private final ByteBuffer syn = ByteBuffer
+			.allocateDirect(Packet.HEADER_SIZE + 1);
+	private final ByteBuffer[] gather = new ByteBuffer[2];
+	private final ByteBuffer received = ByteBuffer
+			.allocate(BufferPool.DATAGRAM_SIZE);
+	private final PacketView view = new PacketView();
+
+	/* per robot */
+	private final int[] channelOf;
+	private final int[] connIds;
+	private final byte[] states;
+	private final int[] bases;
+	private final int[] nexts;
+	private final int[] highests;
+	private final int[] duplicateAcks;
+	private final int[] attempts;
+	private final long[] srtts;
+	private final long[] rttvars;
+	private final long[] rtos;
+	private final int[] backoffs;
+	private final int[] sampleOffsets;
+	private final long[] sampleTimes;
+	private final long[] startTimes;
+	private final long[] doneTimes;
+
+	private final IntMap sessions;
+	private final TimerQueue timers;
+	private int active;
+
+	/* counters */
+	public long segmentsSent;
+	public long retransmissions;
+	public long fastRetransmits;
+	public long timeouts;
+	public long strayPackets;
+
+	/**
+	 * @param targets
+	 *            addresses of the robots, taken in turn
+	 * @param count
+	 *            robots to flash
+	 * @param options
+	 *            segments in flight to each robot (window), SYN attempts and
+	 *            socket buffers
+	 */
+	public FirmwarePush(InetSocketAddress[] targets, int count,
+			String firmware, Options options) throws IOException {
+		ByteBuffer image;
+
+		try (FileChannel file = FileChannel.open(Paths.get(firmware),
+				StandardOpenOption.READ)) {
+			image = ByteBuffer.allocateDirect((int) file.size());
+
+			while (image.hasRemaining() && file.read(image) >= 0) {
+			}
+		}
+
+		image.flip();
+		this.size = image.limit();
+		this.segments = new ByteBuffer[(this.size + Packet.MAX_DATA_LENGTH - 1)
+				/ Packet.MAX_DATA_LENGTH];
+
+		for (int i = 0; i < this.segments.length; i += 1) {
+			int offset = i * Packet.MAX_DATA_LENGTH;
+
+			image.limit(Math.min(this.size, offset + Packet.MAX_DATA_LENGTH))
+					.position(offset);
+			this.segments[i] = image.slice().asReadOnlyBuffer();
+		}
+
+		this.window = options.window;
+		this.synAttempts = options.handshakePolicy.attempts;
+		this.selector = Selector.open();
+		this.channels = new DatagramChannel[targets.length];
+
+		for (int i = 0; i < targets.length; i += 1) {
+			this.channels[i] = DatagramChannel.open();
+			this.channels[i].connect(targets[i]);
+			this.channels[i].configureBlocking(false);
+			UDP.setBufferSizes(this.channels[i], options.rcvbuf,
+					options.sndbuf);
+			this.channels[i].register(this.selector, SelectionKey.OP_READ,
+					Integer.valueOf(i));
+		}
+
+		this.channelOf = new int[count];
+		this.connIds = new int[count];
+		this.states = new byte[count];
+		this.bases = new int[count];
+		this.nexts = new int[count];
+		this.highests = new int[count];
+		this.duplicateAcks = new int[count];
+		this.attempts = new int[count];
+		this.srtts = new long[count];
+		this.rttvars = new long[count];
+		this.rtos = new long[count];
+		this.backoffs = new int[count];
+		this.sampleOffsets = new int[count];
+		this.sampleTimes = new long[count];
+		this.startTimes = new long[count];
+		this.doneTimes = new long[count];
+		this.sessions = new IntMap(count);
+		this.timers = new TimerQueue(count);
+
+		for (int i = 0; i < count; i += 1) {
+			this.channelOf[i] = i % targets.length;
+			this.rtos[i] = RttEstimator.INITIAL_RTO;
+			this.sampleOffsets[i] = -1;
+		}
+	}
+
+	/**
+	 * @return bytes of the state of one robot
+	 */
+	public static int bytesPerRobot() {
+		return 4 * 10 + 8 * 6 + 1;
+	}
+
+	/**
+	 * Flashes all the robots.
+	 * 
+	 * @return how many have failed
+	 */
+	public int run() throws IOException {
+		long now = System.nanoTime();
+
+		for (int i = 0; i < this.states.length; i += 1) {
+			this.startTimes[i] = now;
+			this.sendSyn(i, now);
+		}
+
+		this.active = this.states.length;
+
+		while (this.active > 0) {
+			long wait = (this.timers.nextDeadline() - System.nanoTime() + 999_999) / 1_000_000;
+
+			if (wait > 0) {
+				this.selector.select(wait);
+			} else {
+				this.selector.selectNow();
+			}
+
+			for (SelectionKey key : this.selector.selectedKeys()) {
+				this.drain(((Integer) key.attachment()).intValue());
+			}
+
+			this.selector.selectedKeys().clear();
+			now = System.nanoTime();
+
+			while (this.timers.nextDeadline() <= now) {
+				this.onTimer(this.timers.nextId(), now);
+			}
+		}
+
+		int failed = 0;
+
+		for (byte state : this.states) {
+			if (state == FirmwarePush.FAILED) {
+				failed += 1;
+			}
+		}
+
+		return failed;
+	}
+
+	private void drain(int channel) throws IOException {
+		for (;;) {
+			this.received.clear();
+
+			int length;
+
+			try {
+				length = this.channels[channel].read(this.received);
+			} catch (PortUnreachableException e) {
+				/* the robot is not up (yet), the SYN is repeated */
+				continue;
+			}
+
+			if (length <= 0) {
+				return;
+			}
+
+			if (Packet.isValidSize(length)) {
+				this.receive(channel, this.view.wrap(this.received, length),
+						System.nanoTime());
+			}
+		}
+	}
+
+	private void receive(int channel, PacketView packet, long now) {
+		int robot = this.sessions.get(packet.connId());
+
+		if (robot == IntMap.MISSING && packet.isSyn()
+				&& packet.dataLength() == 1
+				&& packet.data(0) == Robot.SIGN_UPLOAD) {
+			robot = this.connect(channel, packet.connId(), now);
+
+			if (robot != IntMap.MISSING) {
+				this.advance(robot, now);
+				return;
+			}
+		}
+
+		if (robot == IntMap.MISSING) {
+			this.strayPackets += 1;
+
+			if (!packet.isRst()) {
+				this.sendHeader(channel, packet.connId(), (short) 0,
+						Packet.FLAG_RST);
+			}
+			return;
+		}
+
+		if (packet.isRst()) {
+			this.finish(robot, FirmwarePush.FAILED, now);
+			return;
+		}
+
+		if (this.states[robot] == FirmwarePush.CLOSING) {
+			if (packet.isFin()) {
+				this.finish(robot, FirmwarePush.DONE, now);
+			}
+			return;
+		}
+
+		if (this.states[robot] == FirmwarePush.SENDING) {
+			this.acknowledge(robot, packet.ackNum(), now);
+		}
+	}
+
+	/**
+	 * The SYN answer goes to the robot which has waited longest on the
+	 * channel.
+	 */
+	private int connect(int channel, int connId, long now) {
+		for (int robot = 0; robot < this.states.length; robot += 1) {
+			if (this.states[robot] == FirmwarePush.CONNECTING
+					&& this.channelOf[robot] == channel) {
+				/* Karn: only the answer of the only SYN is a sample */
+				if (this.attempts[robot] == 1) {
+					this.sample(robot, now - this.sampleTimes[robot]);
+				}
+
+				this.connIds[robot] = connId;
+				this.states[robot] = FirmwarePush.SENDING;
+				this.backoffs[robot] = 0;
+				this.sessions.put(connId, robot);
+
+				return robot;
+			}
+		}
+
+		return IntMap.MISSING;
+	}
+
+	private void acknowledge(int robot, short ack, long now) {
+		int base = this.bases[robot];
+		int rel = (ack - (short) base) & 0xffff;
+
+		if (rel == 0) {
+			this.duplicateAcks[robot] += 1;
+
+			if (this.duplicateAcks[robot] == Upload.DUPLICATE_ACKS
+					&& this.nexts[robot] > base) {
+				this.fastRetransmits += 1;
+				this.sendSegment(robot, base);
+			}
+			return;
+		}
+
+		int acked = base + rel;
+
+		if (acked > this.highests[robot]) {
+			return;
+		}
+
+		if (this.sampleOffsets[robot] >= 0
+				&& acked >= this.sampleOffsets[robot]) {
+			this.sample(robot, now - this.sampleTimes[robot]);
+			this.sampleOffsets[robot] = -1;
+		}
+
+		this.bases[robot] = acked;
+		this.nexts[robot] = Math.max(this.nexts[robot], acked);
+		this.duplicateAcks[robot] = 0;
+		this.backoffs[robot] = 0;
+		this.advance(robot, now);
+	}
+
+	/**
+	 * Fills the window, or starts closing when everything is acknowledged (an
+	 * empty firmware right after the SYN).
+	 */
+	private void advance(int robot, long now) {
+		if (this.bases[robot] == this.size) {
+			this.states[robot] = FirmwarePush.CLOSING;
+			this.attempts[robot] = 0;
+			this.sendFin(robot, now);
+			return;
+		}
+
+		this.transmit(robot, now);
+		this.timers.schedule(robot, now + this.rto(robot));
+	}
+
+	private void onTimer(int robot, long now) {
+		this.timers.cancel(robot);
+
+		if (this.backoffs[robot] < 6) {
+			this.backoffs[robot] += 1;
+		}
+
+		switch (this.states[robot]) {
+		case FirmwarePush.CONNECTING:
+			if (this.attempts[robot] >= this.synAttempts) {
+				this.finish(robot, FirmwarePush.FAILED, now);
+			} else {
+				this.sendSyn(robot, now);
+			}
+			break;
+		case FirmwarePush.SENDING:
+			/* go back to the first byte which is not acknowledged */
+			this.timeouts += 1;
+			this.nexts[robot] = this.bases[robot];
+			this.sampleOffsets[robot] = -1;
+			this.transmit(robot, now);
+			this.timers.schedule(robot, now + this.rto(robot));
+			break;
+		case FirmwarePush.CLOSING:
+			if (this.attempts[robot] >= Upload.MAX_FIN_ATTEMPTS) {
+				this.finish(robot, FirmwarePush.FAILED, now);
+			} else {
+				this.sendFin(robot, now);
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Sends the segments the window allows.
+	 */
+	private void transmit(int robot, long now) {
+		int end = (int) Math.min(this.size, this.bases[robot]
+				+ (long) this.window * Packet.MAX_DATA_LENGTH);
+
+		while (this.nexts[robot] < end) {
+			int offset = this.nexts[robot];
+
+			this.sendSegment(robot, offset);
+			this.nexts[robot] = Math.min(this.size, offset
+					+ Packet.MAX_DATA_LENGTH);
+
+			/* one segment sent for the first time is timed at once */
+			if (this.nexts[robot] > this.highests[robot]) {
+				this.highests[robot] = this.nexts[robot];
+
+				if (this.sampleOffsets[robot] < 0) {
+					this.sampleOffsets[robot] = this.nexts[robot];
+					this.sampleTimes[robot] = now;
+				}
+			}
+		}
+	}
+
+	private void sendSegment(int robot, int offset) {
+		ByteBuffer segment = this.segments[offset / Packet.MAX_DATA_LENGTH];
+
+		if (offset < this.highests[robot]) {
+			this.retransmissions += 1;
+		}
+
+		PacketView.encode(this.header, this.connIds[robot], (short) offset,
+				(short) 0, Packet.FLAG_NONE);
+		this.header.clear();
+		segment.clear();
+		this.gather[0] = this.header;
+		this.gather[1] = segment;
+		this.segmentsSent += 1;
+
+		try {
+			this.channels[this.channelOf[robot]].write(this.gather);
+		} catch (IOException e) {
+			/* lost, like on the network */
+		}
+	}
+
+	private void sendSyn(int robot, long now) {
+		PacketView.encode(this.syn, 0, (short) 0, (short) 0, Packet.FLAG_SYN);
+		this.syn.put(Packet.HEADER_SIZE, Robot.SIGN_UPLOAD);
+		this.syn.clear();
+
+		try {
+			this.channels[this.channelOf[robot]].write(this.syn);
+		} catch (IOException e) {
+			/* the SYN is repeated */
+		}
+
+		this.attempts[robot] += 1;
+		this.sampleTimes[robot] = now;
+		this.timers.schedule(robot, now + this.rto(robot));
+	}
+
+	private void sendFin(int robot, long now) {
+		this.sendHeader(this.channelOf[robot], this.connIds[robot],
+				(short) this.size, Packet.FLAG_FIN);
+		this.attempts[robot] += 1;
+		this.timers.schedule(robot, now + this.rto(robot));
+	}
+
+	private void sendHeader(int channel, int connId, short seq, byte flags) {
+		PacketView.encode(this.header, connId, seq, (short) 0, flags);
+		this.header.clear();
+
+		try {
+			this.channels[channel].write(this.header);
+		} catch (IOException e) {
+			/* the timer repeats what matters */
+		}
+	}
+
+	private void finish(int robot, byte state, long now) {
+		this.states[robot] = state;
+		this.doneTimes[robot] = now;
+		this.timers.cancel(robot);
+		this.sessions.remove(this.connIds[robot]);
+		this.active -= 1;
+	}
+
+	/**
+	 * Jacobson/Karels as in RttEstimator, in the arrays.
+	 */
+	private void sample(int robot, long rtt) {
+		if (this.srtts[robot] == 0) {
+			this.srtts[robot] = rtt;
+			this.rttvars[robot] = rtt / 2;
+		} else {
+			this.rttvars[robot] = (3 * this.rttvars[robot] + Math
+					.abs(this.srtts[robot] - rtt)) / 4;
+			this.srtts[robot] = (7 * this.srtts[robot] + rtt) / 8;
+		}
+
+		this.rtos[robot] = Math.max(RttEstimator.MIN_RTO, Math.min(
+				RttEstimator.MAX_RTO, this.srtts[robot] + 4
+						* this.rttvars[robot]));
+		this.backoffs[robot] = 0;
+	}
+
+	private long rto(int robot) {
+		return Math.min(RttEstimator.MAX_RTO,
+				this.rtos[robot] << this.backoffs[robot]);
+	}
+
+	/**
+	 * @return the slowest robot which has finished, in milliseconds
+	 */
+	public long slowest() {
+		long slowest = 0;
+
+		for (int i = 0; i < this.states.length; i += 1) {
+			slowest = Math.max(slowest, this.doneTimes[i] - this.startTimes[i]);
+		}
+
+		return slowest / 1_000_000;
+	}
+
+	@Override
+	public String toString() {
+		return "Push: robots=" + this.states.length + ", image=" + this.size
+				+ " B in " + this.segments.length
+				+ " shared segments, state=" + FirmwarePush.bytesPerRobot()
+				+ " B per robot, segments sent=" + this.segmentsSent
+				+ " (retransmitted " + this.retransmissions + ", fast "
+				+ this.fastRetransmits + "), timeouts=" + this.timeouts
+				+ ", stray packets=" + this.strayPackets;
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * Transport which does not touch the network. It gives prepared packets to
+ * recv() and counts sent packets.
+ */
+class LoopbackUDP extends UDP {
+
+	private ByteBuffer[] datagrams;
+	private int next;
+	private final PacketView view = new PacketView();
+
+	public int sent;
+
+	public LoopbackUDP() {
+		super();
+	}
+
+	public void reset(ByteBuffer... datagrams) {
+		this.datagrams = datagrams;
+		this.next = 0;
+	}
+
+	@Override
+	public void setTimeout(int timeout) {
+	}
+
+	@Override
+	public void send(Packet packet) {
+		this.sent += 1;
+	}
+
+	@Override
+	public void sendSegment(int connId, short seqNum, short ackNum,
+			byte flags, ByteBuffer payload) {
+		this.sent += 1;
+	}
+
+	@Override
+	public PacketView recv() throws SocketTimeoutException {
+		if (this.datagrams == null || this.next >= this.datagrams.length) {
+			throw new SocketTimeoutException();
+		}
+
+		ByteBuffer datagram = this.datagrams[this.next++];
+
+		return this.view.wrap(datagram, datagram.limit());
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * Drives packets through the receive loop of the Download in process and
+ * checks how many bytes it allocates: once for a transfer (the Download, its
+ * window and the handshake) and for every datagram after that.
+ */
+class AllocationBudget {
+
+	/**
+	 * Allowed allocation of a datagram, besides the data kept in memory (the
+	 * chunks of the ByteStore, the received bytes rounded up to CHUNK_SIZE).
+	 */
+	public static final long DOWNLOAD_BYTES_PER_PACKET = 0;
+
+	/**
+	 * Allowed allocation of a new Download up to its first data packet, 18776
+	 * bytes when it was set. Lower it when the setup allocates less.
+	 */
+	public static final long DOWNLOAD_BYTES_PER_TRANSFER = 19_456;
+
+	/**
+	 * Packets of one transfer, seqNum wraps around several times.
+	 */
+	public static final int TRANSFER_PACKETS = 1_000;
+
+	public static final int WARMUP_TRANSFERS = 5;
+	public static final int MEASURED_TRANSFERS = 10;
+
+	private static final int CONN_ID = 0x1234;
+
+	/**
+	 * Data packets of one transfer, every fourth pair is swapped and every
+	 * tenth packet is duplicated.
+	 */
+	public static ByteBuffer[] transfer(int connId, int packets) {
+		List<ByteBuffer> transfer = new ArrayList<ByteBuffer>();
+
+		for (int i = 0; i < packets; i += 1) {
+			int seq = i;
+
+			if (i % 4 == 2 && i + 1 < packets) {
+				seq = i + 1;
+			} else if (i % 4 == 3) {
+				seq = i - 1;
+			}
+
+			byte[] data = new byte[Packet.MAX_DATA_LENGTH];
+
+			for (int j = 0; j < data.length; j += 1) {
+				data[j] = (byte) (seq + j);
+			}
+
+			ByteBuffer packet = PacketView.encode(new Packet(connId,
+					(short) (seq * Packet.MAX_DATA_LENGTH), (short) 0,
+					Packet.FLAG_NONE, data));
+
+			transfer.add(packet);
+
+			if (i % 10 == 0) {
+				transfer.add(packet);
+			}
+		}
+
+		return transfer.toArray(new ByteBuffer[transfer.size()]);
+	}
+
+	/**
+	 * Runs one transfer and adds its allocation to the totals.
+	 * 
+	 * @param totals
+	 *            bytes of the setups, bytes of the datagrams, bytes kept
+	 * @return false if the data have not arrived
+	 */
+	private static boolean runTransfer(ThreadMXBean threads,
+			long threadId, LoopbackUDP udp, PacketView view, ByteBuffer syn,
+			ByteBuffer[] packets, long[] totals) {
+		long start = threads.getThreadAllocatedBytes(threadId);
+		Download download = new Download(udp);
+
+		download.start(System.nanoTime());
+		download.receive(view.wrap(syn, syn.limit()));
+
+		long setup = threads.getThreadAllocatedBytes(threadId);
+
+		for (ByteBuffer packet : packets) {
+			download.receive(view.wrap(packet, packet.limit()));
+		}
+
+		long end = threads.getThreadAllocatedBytes(threadId);
+		long size = (long) AllocationBudget.TRANSFER_PACKETS
+				* Packet.MAX_DATA_LENGTH;
+
+		/* never closed (close() prints the summary), let it go */
+		WindowOccupancyEvent.ACTIVE.remove(download);
+
+		totals[0] += setup - start;
+		totals[1] += end - setup;
+		totals[2] += (size + ByteStore.CHUNK_SIZE - 1) / ByteStore.CHUNK_SIZE
+				* ByteStore.CHUNK_SIZE;
+
+		if (download.received() != size) {
+			System.err.println("Download has received " + download.received()
+					+ " bytes instead of " + size + ".");
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return true if the budget holds
+	 */
+	public static boolean test() {
+		ThreadMXBean threads = (ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+
+		LoopbackUDP udp = new LoopbackUDP();
+		PacketView view = new PacketView();
+		ByteBuffer syn = PacketView.encode(new Packet(AllocationBudget.CONN_ID,
+				(short) 0, (short) 0, Packet.FLAG_SYN,
+				new byte[] { Robot.SIGN_DOWNLOAD }));
+		ByteBuffer[] packets = AllocationBudget.transfer(AllocationBudget.CONN_ID,
+				AllocationBudget.TRANSFER_PACKETS);
+
+		long[] totals = new long[3];
+
+		for (int i = 0; i < AllocationBudget.WARMUP_TRANSFERS; i += 1) {
+			if (!AllocationBudget.runTransfer(threads, threadId, udp, view,
+					syn, packets, totals)) {
+				return false;
+			}
+		}
+
+		totals = new long[3];
+
+		for (int i = 0; i < AllocationBudget.MEASURED_TRANSFERS; i += 1) {
+			if (!AllocationBudget.runTransfer(threads, threadId, udp, view,
+					syn, packets, totals)) {
+				return false;
+			}
+		}
+
+		long perTransfer = totals[0] / AllocationBudget.MEASURED_TRANSFERS;
+		long perPacket = (totals[1] - totals[2])
+				/ ((long) AllocationBudget.MEASURED_TRANSFERS * packets.length);
+
+		System.out.println("Download allocates " + perTransfer
+				+ " bytes per transfer, budget is "
+				+ AllocationBudget.DOWNLOAD_BYTES_PER_TRANSFER + ".");
+		System.out.println("Download allocates " + perPacket
+				+ " bytes per packet besides the data, budget is "
+				+ AllocationBudget.DOWNLOAD_BYTES_PER_PACKET + ".");
+
+		if (perTransfer > AllocationBudget.DOWNLOAD_BYTES_PER_TRANSFER
+				|| perPacket > AllocationBudget.DOWNLOAD_BYTES_PER_PACKET) {
+			System.err.println("Download has exceeded its allocation budget!");
+			return false;
+		}
+
+		return true;
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * Microbenchmarks of the packet codec, the byte conversions, the reassembly
+ * of the Download and the file output, run in process by the bench mode.
+ * Every case is warmed up and then timed for MEASURED_ITERATIONS; the report
+ * has the time and the allocation of one operation, operations (packets) per
+ * second and the collections during the measurement.
+ */
+class MicroBenchmark {
+
+	public static final int WARMUP_ITERATIONS = 5;
+	public static final int MEASURED_ITERATIONS = 10;
+	public static final long ITERATION_NANOS = 200_000_000L;
+
+	/**
+	 * Packets of the reassembly cases, 1 MiB, seqNum wraps 16 times.
+	 */
+	public static final int TRANSFER_PACKETS = 4_096;
+
+	/**
+	 * Operations of one run() of the codec cases.
+	 */
+	private static final int BATCH = 1_024;
+
+	private static final int CONN_ID = 0x4321;
+
+	/**
+	 * One benchmark, run() does a batch of operations. What prepare() does
+	 * before every run() is neither timed nor counted as allocated.
+	 */
+	private static abstract class Case {
+
+		public final String name;
+		public final String unit;
+
+		public Case(String name, String unit) {
+			this.name = name;
+			this.unit = unit;
+		}
+
+		public void prepare() {
+		}
+
+		/**
+		 * @return operations done
+		 * @throws IllegalStateException
+		 *             if the result is wrong
+		 */
+		public abstract int run();
+	}
+
+	/**
+	 * Results go here, so that the JIT can not drop the work.
+	 */
+	private static long sink;
+
+	private final ThreadMXBean threads = (ThreadMXBean) ManagementFactory
+			.getThreadMXBean();
+	private final long threadId = Thread.currentThread().getId();
+	private final List<Case> cases = new ArrayList<Case>();
+	private final Path directory;
+
+	/**
+	 * Nanoseconds in run() and bytes allocated by prepare() during the last
+	 * iteration().
+	 */
+	private long runNanos;
+	private long preparedBytes;
+
+	/**
+	 * @throws IllegalStateException
+	 *             if the log is on, the Downloads would log into the numbers
+	 */
+	public MicroBenchmark() throws IOException {
+		if (Log.INFO) {
+			throw new IllegalStateException("the log is on, run with -D"
+					+ Log.PROPERTY + "=off");
+		}
+
+		this.directory = Files.createTempDirectory("robot-bench");
+
+		byte[] data = new byte[Packet.MAX_DATA_LENGTH];
+
+		for (int i = 0; i < data.length; i += 1) {
+			data[i] = (byte) i;
+		}
+
+		final Packet packet = new Packet(MicroBenchmark.CONN_ID,
+				(short) Packet.MAX_DATA_LENGTH, (short) 0, Packet.FLAG_NONE,
+				data);
+		final byte[] datagram = packet.getAsByteArray();
+		final ByteBuffer[] buffers = new ByteBuffer[16];
+		final PacketView view = new PacketView();
+
+		/* different datagrams, the JIT can not hoist the decoding */
+		for (int i = 0; i < buffers.length; i += 1) {
+			buffers[i] = PacketView.encode(new Packet(i,
+					(short) (i * Packet.MAX_DATA_LENGTH), (short) 0,
+					Packet.FLAG_NONE, data));
+		}
+
+		this.cases.add(new Case("packet.parse", "op") {
+			@Override
+			public int run() {
+				for (int i = 0; i < MicroBenchmark.BATCH; i += 1) {
+					MicroBenchmark.sink += new Packet(datagram,
+							datagram.length).connId;
+				}
+				return MicroBenchmark.BATCH;
+			}
+		});
+		this.cases.add(new Case("packet.encode", "op") {
+			@Override
+			public int run() {
+				for (int i = 0; i < MicroBenchmark.BATCH; i += 1) {
+					MicroBenchmark.sink += packet.getAsByteArray()[8];
+				}
+				return MicroBenchmark.BATCH;
+			}
+		});
+		this.cases.add(new Case("packet.view", "op") {
+			@Override
+			public int run() {
+				for (int i = 0; i < MicroBenchmark.BATCH; i += 1) {
+					ByteBuffer buffer = buffers[i & 15];
+
+					view.wrap(buffer, buffer.limit());
+					MicroBenchmark.sink += view.connId() + view.seqNum()
+							+ view.dataLength();
+				}
+				return MicroBenchmark.BATCH;
+			}
+		});
+		this.cases.add(new Case("utils.fourBytes", "op") {
+			@Override
+			public int run() {
+				for (int i = 0; i < MicroBenchmark.BATCH; i += 1) {
+					byte[] b = Utils.intToFourBytes(i * 0x01010101);
+
+					MicroBenchmark.sink += Utils.fourBytesToInt(b[0], b[1],
+							b[2], b[3]);
+				}
+				return MicroBenchmark.BATCH;
+			}
+		});
+		this.cases.add(new Case("utils.twoBytes", "op") {
+			@Override
+			public int run() {
+				for (int i = 0; i < MicroBenchmark.BATCH; i += 1) {
+					byte[] b = Utils.intToTwoBytes(i);
+
+					MicroBenchmark.sink += Utils.twoBytesToShort(b[0], b[1]);
+				}
+				return MicroBenchmark.BATCH;
+			}
+		});
+
+		int packets = MicroBenchmark.TRANSFER_PACKETS;
+		int[] inOrder = new int[packets];
+		int[] reordered = new int[packets];
+		int[] duplicated = new int[2 * packets];
+		int[] backwards = new int[packets];
+
+		for (int i = 0; i < packets; i += 1) {
+			inOrder[i] = i;
+			/* every pair swapped */
+			reordered[i] = i ^ 1;
+			duplicated[2 * i] = i;
+			duplicated[2 * i + 1] = i;
+			/* groups of 8 backwards, the window is busy over every wrap */
+			backwards[i] = i ^ 7;
+		}
+
+		this.cases.add(this.transfer("download.inOrder", inOrder, false,
+				false));
+		this.cases.add(this.transfer("download.reordered", reordered, false,
+				false));
+		this.cases.add(this.transfer("download.duplicated", duplicated,
+				false, false));
+		this.cases.add(this.transfer("download.wraparound", backwards,
+				false, false));
+		this.cases.add(this.transfer("file.memory", inOrder, true, false));
+		this.cases.add(this.transfer("file.positional", inOrder, true, true));
+	}
+
+	/**
+	 * A whole Download over a LoopbackUDP, the packets come in the given
+	 * order.
+	 * 
+	 * @param file
+	 *            end it with a FIN, so that the file is written
+	 * @param positional
+	 *            write every packet straight to the file
+	 */
+	private Case transfer(String name, int[] order, final boolean file,
+			final boolean positional) {
+		final ByteBuffer[] packets = new ByteBuffer[order.length
+				+ (file ? 1 : 0)];
+		final long size = (long) MicroBenchmark.TRANSFER_PACKETS
+				* Packet.MAX_DATA_LENGTH;
+
+		for (int i = 0; i < order.length; i += 1) {
+			byte[] data = new byte[Packet.MAX_DATA_LENGTH];
+
+			for (int j = 0; j < data.length; j += 1) {
+				data[j] = (byte) (order[i] + j);
+			}
+
+			packets[i] = PacketView.encode(new Packet(MicroBenchmark.CONN_ID,
+					(short) (order[i] * Packet.MAX_DATA_LENGTH), (short) 0,
+					Packet.FLAG_NONE, data));
+		}
+
+		if (file) {
+			packets[order.length] = PacketView.encode(new Packet(
+					MicroBenchmark.CONN_ID, (short) size, (short) 0,
+					Packet.FLAG_FIN, new byte[0]));
+		}
+
+		final LoopbackUDP udp = new LoopbackUDP();
+		final PacketView view = new PacketView();
+		final ByteBuffer syn = PacketView.encode(new Packet(
+				MicroBenchmark.CONN_ID, (short) 0, (short) 0,
+				Packet.FLAG_SYN, new byte[] { Robot.SIGN_DOWNLOAD }));
+		final String output = this.directory.resolve(name).toString();
+
+		return new Case(name, "packet") {
+			private Download download;
+
+			@Override
+			public void prepare() {
+				this.download = file ? new Download(udp, positional, output,
+						new Options()) : new Download(udp);
+			}
+
+			@Override
+			public int run() {
+				Download download = this.download;
+
+				download.start(System.nanoTime());
+				download.receive(view.wrap(syn, syn.limit()));
+
+				for (ByteBuffer packet : packets) {
+					download.receive(view.wrap(packet, packet.limit()));
+				}
+
+				/* never closed (close() prints the summary), let it go */
+				WindowOccupancyEvent.ACTIVE.remove(download);
+				this.download = null;
+
+				if (download.received() != size) {
+					throw new IllegalStateException("received "
+							+ download.received() + " bytes instead of "
+							+ size);
+				}
+
+				MicroBenchmark.sink += download.received();
+				return packets.length;
+			}
+		};
+	}
+
+	/**
+	 * Runs the cases whose name contains the filter.
+	 * 
+	 * @return false if a case has got a wrong result
+	 */
+	public boolean run(String filter) {
+		boolean ok = true;
+
+		for (Case c : this.cases) {
+			if (filter == null || c.name.contains(filter)) {
+				try {
+					this.measure(c);
+				} catch (IllegalStateException e) {
+					System.out.println(String.format("%-20s FAILED: %s",
+							c.name, e.getMessage()));
+					ok = false;
+				}
+			}
+		}
+
+		System.out.println("(sink " + MicroBenchmark.sink + ")");
+
+		try {
+			for (Case c : this.cases) {
+				Files.deleteIfExists(this.directory.resolve(c.name));
+			}
+
+			Files.delete(this.directory);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		return ok;
+	}
+
+	private void measure(Case c) {
+		for (int i = 0; i < MicroBenchmark.WARMUP_ITERATIONS; i += 1) {
+			this.iteration(c);
+		}
+
+		long collections = MicroBenchmark.collections();
+		long collectionTime = MicroBenchmark.collectionTime();
+		long allocated = this.threads.getThreadAllocatedBytes(this.threadId);
+		long operations = 0;
+		long nanos = 0;
+		double slowest = Double.MAX_VALUE;
+		double fastest = 0;
+
+		long prepared = 0;
+
+		for (int i = 0; i < MicroBenchmark.MEASURED_ITERATIONS; i += 1) {
+			long done = this.iteration(c);
+			double rate = done * 1e9 / this.runNanos;
+
+			operations += done;
+			nanos += this.runNanos;
+			prepared += this.preparedBytes;
+			slowest = Math.min(slowest, rate);
+			fastest = Math.max(fastest, rate);
+		}
+
+		allocated = this.threads.getThreadAllocatedBytes(this.threadId)
+				- allocated - prepared;
+
+		System.out.println(String.format(
+				"%-20s %9.1f ns/%-6s %,12.0f %ss/s (%,.0f..%,.0f) %8.1f B/%-6s gc=%d (%d ms)",
+				c.name, (double) nanos / operations, c.unit, operations * 1e9
+						/ nanos, c.unit, slowest, fastest, (double) allocated
+						/ operations, c.unit, MicroBenchmark.collections()
+						- collections, MicroBenchmark.collectionTime()
+						- collectionTime));
+	}
+
+	/**
+	 * Runs the case until run() has taken ITERATION_NANOS, sets runNanos and
+	 * preparedBytes.
+	 * 
+	 * @return operations done
+	 */
+	private long iteration(Case c) {
+		long operations = 0;
+
+		this.runNanos = 0;
+		this.preparedBytes = 0;
+
+		do {
+			long before = this.threads.getThreadAllocatedBytes(this.threadId);
+
+			c.prepare();
+			this.preparedBytes += this.threads
+					.getThreadAllocatedBytes(this.threadId) - before;
+
+			long start = System.nanoTime();
+
+			operations += c.run();
+			this.runNanos += System.nanoTime() - start;
+		} while (this.runNanos < MicroBenchmark.ITERATION_NANOS);
+
+		return operations;
+	}
+
+	private static long collections() {
+		long count = 0;
+
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+		}
+
+		return count;
+	}
+
+	private static long collectionTime() {
+		long time = 0;
+
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			time += Math.max(0, gc.getCollectionTime());
+		}
+
+		return time;
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * Writes every datagram sent and received into a trace file. A record is the
+ * time since the previous one (nanoseconds, varint), the direction, the
+ * length (varint) and the datagram.
+ */
+class TraceWriter {
+
+	public static final int MAGIC = 0x4B545243;
+	public static final int VERSION = 1;
+
+	public static final byte SENT = 0;
+	public static final byte RECEIVED = 1;
+
+	/**
+	 * Longest record: two varints, the direction and a datagram.
+	 */
+	private static final int MAX_RECORD = 10 + 1 + 5
+			+ BufferPool.DATAGRAM_SIZE;
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+	private long last = System.nanoTime();
+
+	public long records;
+
+	public TraceWriter(String fileName) throws IOException {
+		this.channel = FileChannel.open(Paths.get(fileName),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		this.buffer.putInt(TraceWriter.MAGIC);
+		this.buffer.putInt(TraceWriter.VERSION);
+	}
+
+	/**
+	 * Records the bytes between position and limit, they are not consumed.
+	 */
+	public synchronized void record(byte direction, ByteBuffer datagram) {
+		this.begin(direction, datagram.remaining());
+		this.buffer.put(datagram.duplicate());
+	}
+
+	/**
+	 * Records a datagram of a header and a payload (may be null).
+	 */
+	public synchronized void record(byte direction, ByteBuffer header,
+			ByteBuffer payload) {
+		this.begin(direction, header.remaining()
+				+ (payload == null ? 0 : payload.remaining()));
+		this.buffer.put(header.duplicate());
+
+		if (payload != null) {
+			this.buffer.put(payload.duplicate());
+		}
+	}
+
+	public synchronized void record(byte direction, byte[] datagram,
+			int length) {
+		this.begin(direction, length);
+		this.buffer.put(datagram, 0, length);
+	}
+
+	private void begin(byte direction, int length) {
+		if (this.buffer.remaining() < TraceWriter.MAX_RECORD) {
+			this.flush();
+		}
+
+		long now = System.nanoTime();
+
+		TraceWriter.putVarint(this.buffer, now - this.last);
+		this.buffer.put(direction);
+		TraceWriter.putVarint(this.buffer, length);
+		this.last = now;
+		this.records += 1;
+	}
+
+	private void flush() {
+		this.buffer.flip();
+
+		try {
+			while (this.buffer.hasRemaining()) {
+				this.channel.write(this.buffer);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		this.buffer.clear();
+	}
+
+	public synchronized void close() {
+		this.flush();
+
+		try {
+			this.channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static void putVarint(ByteBuffer buffer, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+
+		buffer.put((byte) value);
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * Reads a trace of TraceWriter record by record.
+ */
+class TraceReader {
+
+	private final MappedByteBuffer file;
+
+	/**
+	 * The current record: nanoseconds since the first record, direction and
+	 * the datagram (from index 0, 'length' bytes).
+	 */
+	public long time;
+	public byte direction;
+	public int length;
+	public final ByteBuffer datagram = ByteBuffer
+			.allocate(BufferPool.DATAGRAM_SIZE);
+
+	private boolean first = true;
+
+	public TraceReader(String fileName) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(fileName),
+				StandardOpenOption.READ)) {
+			this.file = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+		}
+
+		if (this.file.remaining() < 8
+				|| this.file.getInt() != TraceWriter.MAGIC
+				|| this.file.getInt() != TraceWriter.VERSION) {
+			throw new IOException("not a trace: " + fileName);
+		}
+	}
+
+	/**
+	 * @return false at the end of the trace
+	 */
+	public boolean next() {
+		if (!this.file.hasRemaining()) {
+			return false;
+		}
+
+		long delta = this.getVarint();
+
+		/* the first delta is from the creation of the writer */
+		this.time = this.first ? 0 : this.time + delta;
+		this.first = false;
+		this.direction = this.file.get();
+		this.length = (int) this.getVarint();
+
+		int skip = Math.max(0, this.length - this.datagram.capacity());
+
+		this.length -= skip;
+		this.datagram.clear();
+		this.file.get(this.datagram.array(), 0, this.length);
+		this.file.position(this.file.position() + skip);
+
+		return true;
+	}
+
+	private long getVarint() {
+		long value = 0;
+
+		for (int shift = 0;; shift += 7) {
+			byte b = this.file.get();
+
+			value |= (long) (b & 0x7F) << shift;
+
+			if (b >= 0) {
+				return value;
+			}
+		}
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * Feeds the received datagrams of a trace into a Download without a socket,
+ * at the original pace (the timers run in between) or as fast as possible
+ * (only the packets count). A trace of a fleet replays its first download.
+ * The file goes to its own name, a replay never overwrites a download.
+ */
+class TraceReplay {
+
+	public static final String DEFAULT_OUTPUT = "replay.bin";
+
+	/**
+	 * @param output
+	 *            name of the file the replayed download writes
+	 * @param options
+	 *            the ACK policy and the handshake of the download
+	 */
+	public static void run(String fileName, boolean fast, String output,
+			Options options) {
+		TraceReader trace;
+
+		try {
+			trace = new TraceReader(fileName);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+			return;
+		}
+
+		LoopbackUDP udp = new LoopbackUDP();
+		Download download = new Download(udp, false, output, options);
+		PacketView view = new PacketView();
+		long traceSent = 0;
+		long fed = 0;
+
+		download.setAckPolicy(new AckPolicy(options.ackPolicy.coalesce,
+				options.ackPolicy.delay, options.ackPolicy.immediateOnGap,
+				options.ackPolicy.timerDriven));
+
+		long start = System.nanoTime();
+
+		download.start(start);
+
+		while (!download.isFinished() && trace.next()) {
+			if (trace.direction == TraceWriter.SENT) {
+				traceSent += 1;
+				continue;
+			}
+
+			if (!fast) {
+				TraceReplay.waitUntil(download, start + trace.time);
+			}
+
+			download.receive(view.wrap(trace.datagram, trace.length));
+			fed += 1;
+		}
+
+		/* the trace may end before the download stops lingering */
+		while (!fast && download.result().isDone() && !download.isFinished()) {
+			TraceReplay.waitUntil(download, download.deadline());
+			download.onTimer(System.nanoTime());
+		}
+
+		long time = Math.max(1, System.nanoTime() - start);
+
+		download.close();
+		Log.flush();
+
+		System.out.println("Replay: " + fed + " datagrams in " + time
+				/ 1_000_000 + " ms (" + fed * 1_000_000_000L / time
+				+ " per second), " + download.received()
+				+ " bytes in order, sent " + udp.sent + " (the trace "
+				+ traceSent + "), the file " + output + " is "
+				+ (download.result().isDone() ? "complete" : "incomplete"));
+	}
+
+	/**
+	 * Runs the timers of the download until 'due'.
+	 */
+	private static void waitUntil(Download download, long due) {
+		for (long now; (now = System.nanoTime()) < due;) {
+			long deadline = download.deadline();
+
+			if (deadline <= now) {
+				download.onTimer(now);
+			} else {
+				LockSupport.parkNanos(Math.min(due, deadline) - now);
+			}
+		}
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * What an ImpairmentProxy does to the datagrams, the same seed gives the same
+ * decisions for the same traffic.
+ */
+class Impairment {
+
+	/**
+	 * Probabilities of dropping, sending twice and holding back a datagram.
+	 */
+	public double loss;
+	public double duplicate;
+	public double reorder;
+
+	/**
+	 * One-way delay and its random part on top, in nanoseconds.
+	 */
+	public long delay;
+	public long jitter;
+
+	/**
+	 * Bytes per second of each direction, zero is unlimited.
+	 */
+	public long bandwidth;
+
+	public long seed = 1;
+
+	public Impairment copy() {
+		Impairment copy = new Impairment();
+
+		copy.loss = this.loss;
+		copy.duplicate = this.duplicate;
+		copy.reorder = this.reorder;
+		copy.delay = this.delay;
+		copy.jitter = this.jitter;
+		copy.bandwidth = this.bandwidth;
+		copy.seed = this.seed;
+
+		return copy;
+	}
+
+	/**
+	 * Sets a parameter by the name of its option (loss, dup, reorder, delay,
+	 * jitter, bandwidth, seed), delays are in milliseconds.
+	 */
+	public void set(String name, String value) {
+		if (name.equals("loss")) {
+			this.loss = Double.parseDouble(value);
+		} else if (name.equals("dup")) {
+			this.duplicate = Double.parseDouble(value);
+		} else if (name.equals("reorder")) {
+			this.reorder = Double.parseDouble(value);
+		} else if (name.equals("delay")) {
+			this.delay = (long) (Double.parseDouble(value) * 1_000_000L);
+		} else if (name.equals("jitter")) {
+			this.jitter = (long) (Double.parseDouble(value) * 1_000_000L);
+		} else if (name.equals("bandwidth")) {
+			this.bandwidth = Long.parseLong(value);
+		} else if (name.equals("seed")) {
+			this.seed = Long.parseLong(value);
+		} else {
+			throw new IllegalArgumentException("unknown impairment: " + name);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "loss=" + this.loss + ",dup=" + this.duplicate + ",reorder="
+				+ this.reorder + ",delay=" + this.delay / 1_000_000
+				+ "ms,jitter=" + this.jitter / 1_000_000 + "ms,bandwidth="
+				+ (this.bandwidth == 0 ? "unlimited" : this.bandwidth + "B/s")
+				+ ",seed=" + this.seed;
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * A UDP relay between robots and a server which loses, duplicates, reorders,
+ * delays and rate limits the datagrams in both directions. Every client
+ * address gets its own socket towards the server, so the answers find their
+ * way back; the socket is closed when the robot has sent nothing for
+ * idleTimeout (the server may go on sending to a robot which is gone).
+ */
+class ImpairmentProxy implements Runnable {
+
+	public static final int UPSTREAM = 0;
+	public static final int DOWNSTREAM = 1;
+
+	/**
+	 * How much longer a reordered datagram is held back.
+	 */
+	public static final long REORDER_DELAY = 10_000_000L;
+
+	/**
+	 * Bytes a rate limited direction queues before it drops (drop tail).
+	 */
+	public static final long QUEUE_LIMIT = 64 * 1024;
+
+	/**
+	 * Default of idleTimeout, twice the IDLE_TIMEOUT of a server session.
+	 */
+	public static final long IDLE_TIMEOUT = 2 * ServerSession.IDLE_TIMEOUT;
+
+	/**
+	 * The socket of one robot towards the server.
+	 */
+	private static class Upstream {
+		final DatagramChannel channel;
+		long lastHeard;
+
+		Upstream(DatagramChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	/**
+	 * A datagram on its way.
+	 */
+	private static class Delayed implements Comparable<Delayed> {
+		final long due;
+		final long order;
+		final DatagramChannel via;
+		final SocketAddress to;
+		final byte[] data;
+
+		Delayed(long due, long order, DatagramChannel via,
+				SocketAddress to, byte[] data) {
+			this.due = due;
+			this.order = order;
+			this.via = via;
+			this.to = to;
+			this.data = data;
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			if (this.due != other.due) {
+				return Long.compare(this.due, other.due);
+			}
+
+			return Long.compare(this.order, other.order);
+		}
+	}
+
+	private final Impairment impairment;
+	private final Random random;
+	private final InetSocketAddress server;
+	private final DatagramChannel listen;
+	private final Selector selector;
+	private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+	private final PriorityQueue<Delayed> queue = new PriorityQueue<Delayed>();
+	private final Map<SocketAddress, Upstream> upstreams = new HashMap<SocketAddress, Upstream>();
+	private long order;
+
+	/**
+	 * Nanoseconds after which the socket of a robot which has sent nothing is
+	 * closed.
+	 */
+	public long idleTimeout = ImpairmentProxy.IDLE_TIMEOUT;
+	private long nextExpiry;
+	public long expired;
+
+	/**
+	 * When each direction has sent what it has queued.
+	 */
+	private final long[] linkFree = new long[2];
+
+	/* counters, per direction */
+	public final long[] received = new long[2];
+	public final long[] dropped = new long[2];
+	public final long[] duplicated = new long[2];
+	public final long[] reordered = new long[2];
+	public final long[] forwarded = new long[2];
+
+	/**
+	 * Data packets and their bytes the server has sent, before the losses.
+	 */
+	public long serverDataPackets;
+	public long serverDataBytes;
+
+	private volatile boolean running = true;
+	private Thread thread;
+
+	/**
+	 * @param port
+	 *            where the robots send, zero picks a free port
+	 */
+	public ImpairmentProxy(int port, String serverName, int serverPort,
+			Impairment impairment) throws IOException {
+		this.impairment = impairment;
+		this.random = new Random(impairment.seed);
+		this.server = new InetSocketAddress(
+				InetAddress.getByName(serverName), serverPort);
+		this.selector = Selector.open();
+		this.listen = DatagramChannel.open();
+		this.listen.bind(new InetSocketAddress(
+				InetAddress.getLoopbackAddress(), port));
+		this.listen.configureBlocking(false);
+		this.listen.register(this.selector, SelectionKey.OP_READ);
+	}
+
+	public int port() {
+		return this.listen.socket().getLocalPort();
+	}
+
+	public ImpairmentProxy start() {
+		this.thread = new Thread(this, "proxy-" + this.port());
+		this.thread.setDaemon(true);
+		this.thread.start();
+
+		return this;
+	}
+
+	/**
+	 * Stops the thread of start() and closes the sockets.
+	 */
+	public void stop() {
+		this.running = false;
+		this.selector.wakeup();
+
+		try {
+			this.thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (this.running) {
+				Delayed next = this.queue.peek();
+				long now = System.nanoTime();
+				long due = next != null ? next.due
+						: this.upstreams.isEmpty() ? Long.MAX_VALUE
+								: this.nextExpiry;
+
+				if (due == Long.MAX_VALUE) {
+					this.selector.select();
+				} else if (due > now) {
+					this.selector.select(Math.max(1, (due - now) / 1_000_000));
+				} else {
+					this.selector.selectNow();
+				}
+
+				for (SelectionKey key : this.selector.selectedKeys()) {
+					this.read((DatagramChannel) key.channel(),
+							(SocketAddress) key.attachment());
+				}
+				this.selector.selectedKeys().clear();
+
+				this.flush(System.nanoTime());
+				this.expire(System.nanoTime());
+			}
+
+			for (Upstream upstream : this.upstreams.values()) {
+				upstream.channel.close();
+			}
+			this.listen.close();
+			this.selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Takes all the queued datagrams of a socket.
+	 * 
+	 * @param client
+	 *            null for the listening socket, else the robot the upstream
+	 *            socket belongs to
+	 */
+	private void read(DatagramChannel channel, SocketAddress client)
+			throws IOException {
+		for (;;) {
+			this.buffer.clear();
+
+			SocketAddress from;
+
+			try {
+				from = channel.receive(this.buffer);
+			} catch (PortUnreachableException e) {
+				continue;
+			}
+
+			if (from == null) {
+				return;
+			}
+
+			this.buffer.flip();
+			byte[] data = new byte[this.buffer.remaining()];
+			this.buffer.get(data);
+
+			long now = System.nanoTime();
+
+			if (client == null) {
+				this.impair(ImpairmentProxy.UPSTREAM, this.upstream(from, now),
+						this.server, data, now);
+			} else {
+				if (data.length > Packet.HEADER_SIZE && data[8] == 0) {
+					this.serverDataPackets += 1;
+					this.serverDataBytes += data.length - Packet.HEADER_SIZE;
+				}
+
+				this.impair(ImpairmentProxy.DOWNSTREAM, this.listen, client,
+						data, now);
+			}
+		}
+	}
+
+	private DatagramChannel upstream(SocketAddress client, long now)
+			throws IOException {
+		Upstream upstream = this.upstreams.get(client);
+
+		if (upstream == null) {
+			DatagramChannel channel = DatagramChannel.open();
+
+			channel.connect(this.server);
+			channel.configureBlocking(false);
+			channel.register(this.selector, SelectionKey.OP_READ, client);
+			upstream = new Upstream(channel);
+			this.upstreams.put(client, upstream);
+		}
+
+		upstream.lastHeard = now;
+
+		return upstream.channel;
+	}
+
+	/**
+	 * Closes the sockets of the robots which have sent nothing for
+	 * idleTimeout, checked every half of it.
+	 */
+	private void expire(long now) throws IOException {
+		if (now < this.nextExpiry) {
+			return;
+		}
+
+		Iterator<Upstream> upstreams = this.upstreams.values().iterator();
+
+		while (upstreams.hasNext()) {
+			Upstream upstream = upstreams.next();
+
+			if (now - upstream.lastHeard >= this.idleTimeout) {
+				upstream.channel.close();
+				upstreams.remove();
+				this.expired += 1;
+			}
+		}
+
+		this.nextExpiry = now + this.idleTimeout / 2;
+	}
+
+	private void impair(int direction, DatagramChannel via,
+			SocketAddress to, byte[] data, long now) {
+		this.received[direction] += 1;
+
+		if (this.random.nextDouble() < this.impairment.loss) {
+			this.dropped[direction] += 1;
+			return;
+		}
+
+		int copies = 1;
+
+		if (this.random.nextDouble() < this.impairment.duplicate) {
+			this.duplicated[direction] += 1;
+			copies = 2;
+		}
+
+		for (int i = 0; i < copies; i += 1) {
+			long sent = now;
+
+			if (this.impairment.bandwidth > 0) {
+				long start = Math.max(now, this.linkFree[direction]);
+
+				/* the queue of the link is full */
+				if ((start - now) * this.impairment.bandwidth / 1_000_000_000L > ImpairmentProxy.QUEUE_LIMIT) {
+					this.dropped[direction] += 1;
+					continue;
+				}
+
+				sent = start + data.length * 1_000_000_000L
+						/ this.impairment.bandwidth;
+				this.linkFree[direction] = sent;
+			}
+
+			long due = sent + this.impairment.delay;
+
+			if (this.impairment.jitter > 0) {
+				due += (long) (this.random.nextDouble() * this.impairment.jitter);
+			}
+
+			if (this.random.nextDouble() < this.impairment.reorder) {
+				this.reordered[direction] += 1;
+				due += ImpairmentProxy.REORDER_DELAY;
+			}
+
+			this.queue.add(new Delayed(due, this.order++, via, to, data));
+		}
+	}
+
+	/**
+	 * Sends the datagrams which are due.
+	 */
+	private void flush(long now) throws IOException {
+		while (!this.queue.isEmpty() && this.queue.peek().due <= now) {
+			Delayed datagram = this.queue.poll();
+
+			try {
+				if (datagram.via == this.listen) {
+					datagram.via.send(ByteBuffer.wrap(datagram.data),
+							datagram.to);
+					this.forwarded[ImpairmentProxy.DOWNSTREAM] += 1;
+				} else {
+					datagram.via.write(ByteBuffer.wrap(datagram.data));
+					this.forwarded[ImpairmentProxy.UPSTREAM] += 1;
+				}
+			} catch (PortUnreachableException | ClosedChannelException e) {
+				/* nobody listens there (any more), the datagram is lost */
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("Proxy: " + this.impairment
+				+ ", upstream sockets=" + this.upstreams.size() + ", expired="
+				+ this.expired);
+		String[] names = { "up", "down" };
+
+		for (int i = 0; i < 2; i += 1) {
+			sb.append("\n  ").append(names[i]).append(": received=")
+					.append(this.received[i]).append(", dropped=")
+					.append(this.dropped[i]).append(", duplicated=")
+					.append(this.duplicated[i]).append(", reordered=")
+					.append(this.reordered[i]).append(", forwarded=")
+					.append(this.forwarded[i]);
+		}
+
+		return sb.toString();
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * Runs a download through an ImpairmentProxy for every combination of the
+ * given impairments and prints a row of results for each.
+ */
+class Sweep {
+
+	/**
+	 * The impairments the sweep varies when the command line names none.
+	 */
+	public static final String[] DEFAULT_GRID = { "loss=0,0.01,0.05,0.1",
+			"delay=0,20" };
+
+	private final String serverName;
+	private final Options options;
+	private final Impairment base;
+	private final List<String> names = new ArrayList<String>();
+	private final List<String[]> values = new ArrayList<String[]>();
+
+	/**
+	 * @param options
+	 *            the port of the server, the impairment every point starts
+	 *            from and the settings of the downloads
+	 * @param grid
+	 *            'name=value,value,...' of Impairment.set()
+	 */
+	public Sweep(String serverName, Options options, String[] grid) {
+		this.serverName = serverName;
+		this.options = options;
+		this.base = options.impairment;
+
+		for (String axis : grid) {
+			int eq = axis.indexOf('=');
+
+			if (eq < 0) {
+				throw new IllegalArgumentException("expected name=values: "
+						+ axis);
+			}
+
+			this.names.add(axis.substring(0, eq));
+			this.values.add(axis.substring(eq + 1).split(","));
+		}
+	}
+
+	public void run() {
+		List<String> rows = new ArrayList<String>();
+		int[] index = new int[this.names.size()];
+
+		for (;;) {
+			Impairment impairment = this.base.copy();
+			StringBuilder point = new StringBuilder();
+
+			for (int i = 0; i < index.length; i += 1) {
+				String value = this.values.get(i)[index[i]];
+
+				impairment.set(this.names.get(i), value);
+				point.append(this.names.get(i)).append('=').append(value)
+						.append(' ');
+			}
+
+			rows.add(point + this.measure(impairment));
+
+			/* next combination, the last axis first */
+			int axis = index.length - 1;
+
+			while (axis >= 0 && ++index[axis] == this.values.get(axis).length) {
+				index[axis] = 0;
+				axis -= 1;
+			}
+
+			if (axis < 0) {
+				break;
+			}
+		}
+
+		System.out.println("Sweep of " + this.serverName + ":"
+				+ this.options.port + ", " + this.base);
+		for (String row : rows) {
+			System.out.println(row);
+		}
+	}
+
+	/**
+	 * Downloads the firmware once.
+	 * 
+	 * @return the results as a row of the table
+	 */
+	private String measure(Impairment impairment) {
+		ImpairmentProxy proxy;
+
+		try {
+			proxy = new ImpairmentProxy(0, this.serverName,
+					this.options.port, impairment).start();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+			return null;
+		}
+
+		List<MemoryPoolMXBean> heap = new ArrayList<MemoryPoolMXBean>();
+
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				heap.add(pool);
+			}
+		}
+
+		System.gc();
+		for (MemoryPoolMXBean pool : heap) {
+			pool.resetPeakUsage();
+		}
+
+		UDP udp = new UDP("127.0.0.1", proxy.port(), this.options);
+		Download download = new Download(udp, false, "sweep.bin",
+				this.options);
+		final long[] ready = new long[1];
+
+		download.setAckPolicy(this.options.ackPolicy);
+
+		CompletableFuture<Void> written = download.result().thenRun(
+				new Runnable() {
+					@Override
+					public void run() {
+						ready[0] = System.nanoTime();
+					}
+				});
+
+		long start = System.nanoTime();
+
+		udp.drive(download);
+		download.close();
+		udp.socket.close();
+		Log.flush();
+		proxy.stop();
+
+		long peak = 0;
+
+		for (MemoryPoolMXBean pool : heap) {
+			peak += pool.getPeakUsage().getUsed();
+		}
+
+		/* with --pipeline the writer completes the result after the drive */
+		try {
+			written.join();
+		} catch (CompletionException e) {
+			return "FAILED " + proxy.toString().replace('\n', ' ');
+		}
+
+		long bytes = download.received();
+		long time = Math.max(1, ready[0] - start);
+
+		return String.format(
+				"time=%d ms, goodput=%.1f KB/s, retransmission ratio=%.3f, peak heap=%.1f MB",
+				time / 1_000_000, bytes * 1e9 / time / 1024,
+				bytes == 0 ? 0.0 : (double) proxy.serverDataBytes / bytes - 1,
+				peak / 1048576.0);
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * Firmware images mapped once and shared by all the sessions of the server.
+ */
+class ImageCache {
+
+	private static final ConcurrentHashMap<String, MappedByteBuffer> IMAGES = new ConcurrentHashMap<String, MappedByteBuffer>();
+
+	/**
+	 * @return the read-only mapping of the file, use a duplicate() of it
+	 */
+	public static MappedByteBuffer get(String fileName) throws IOException {
+		MappedByteBuffer image = ImageCache.IMAGES.get(fileName);
+
+		if (image == null) {
+			try (FileChannel channel = FileChannel.open(Paths.get(fileName),
+					StandardOpenOption.READ)) {
+				image = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+						channel.size());
+			}
+
+			MappedByteBuffer other = ImageCache.IMAGES.putIfAbsent(fileName,
+					image);
+
+			if (other != null) {
+				image = other;
+			}
+		}
+
+		return image;
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * Datagrams from the receiving thread of the server to one shard, a
+ * single-producer/single-consumer ring of preallocated buffers. A full ring
+ * drops the datagram as a full socket would.
+ */
+class DatagramRing {
+
+	private final ByteBuffer[] slots;
+	private final int[] lengths;
+	private final SocketAddress[] addresses;
+	private final int mask;
+
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+
+	public long dropped;
+
+	/**
+	 * @param capacity
+	 *            a power of two
+	 */
+	public DatagramRing(int capacity) {
+		this.slots = new ByteBuffer[capacity];
+		this.lengths = new int[capacity];
+		this.addresses = new SocketAddress[capacity];
+		this.mask = capacity - 1;
+
+		for (int i = 0; i < capacity; i += 1) {
+			this.slots[i] = ByteBuffer.allocate(BufferPool.DATAGRAM_SIZE);
+		}
+	}
+
+	/**
+	 * Copies the datagram (position to limit) into the ring, producer only.
+	 * 
+	 * @return false if the ring is full
+	 */
+	public boolean offer(ByteBuffer datagram, SocketAddress from) {
+		long head = this.head.get();
+
+		if (head - this.tail.get() > this.mask) {
+			this.dropped += 1;
+			return false;
+		}
+
+		int slot = (int) head & this.mask;
+
+		this.lengths[slot] = datagram.remaining();
+		this.slots[slot].clear();
+		this.slots[slot].put(datagram);
+		this.addresses[slot] = from;
+		this.head.lazySet(head + 1);
+
+		return true;
+	}
+
+	/**
+	 * @return the oldest datagram in 'view' and its sender, null if the ring
+	 *         is empty; it is valid until release(), consumer only
+	 */
+	public SocketAddress peek(PacketView view) {
+		long tail = this.tail.get();
+
+		if (tail == this.head.get()) {
+			return null;
+		}
+
+		int slot = (int) tail & this.mask;
+
+		view.wrap(this.slots[slot], this.lengths[slot]);
+
+		return this.addresses[slot];
+	}
+
+	public void release() {
+		long tail = this.tail.get();
+
+		this.addresses[(int) tail & this.mask] = null;
+		this.tail.lazySet(tail + 1);
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * One connection of the server, owned by the thread of its shard.
+ */
+abstract class ServerSession {
+
+	/**
+	 * A session nobody talks to is forgotten after this many nanoseconds.
+	 */
+	public static final long IDLE_TIMEOUT = 10_000_000_000L;
+
+	protected final ServerShard shard;
+	public final int connId;
+	public final SocketAddress address;
+
+	protected final RttEstimator rtt = new RttEstimator();
+	protected long lastHeard;
+	protected boolean finished;
+
+	protected ServerSession(ServerShard shard, int connId,
+			SocketAddress address, long now) {
+		this.shard = shard;
+		this.connId = connId;
+		this.address = address;
+		this.lastHeard = now;
+	}
+
+	public boolean isFinished() {
+		return this.finished;
+	}
+
+	/**
+	 * Ends the session at once, the shard frees it.
+	 */
+	public void abort() {
+		this.finished = true;
+	}
+
+	/**
+	 * @return when onTimer() is due, never later than the idle timeout
+	 */
+	public long deadline() {
+		return this.lastHeard + ServerSession.IDLE_TIMEOUT;
+	}
+
+	public abstract void receive(PacketView packet, long now);
+
+	public abstract void onTimer(long now);
+}
+
+/******************************************************************************/
+
+/**
+ * Sends the firmware: a window of segments, paced by srtt / window (or by a
+ * fixed rate), go-back-N after the timeout and a fast retransmission of the
+ * base after three duplicate ACKs.
+ */
+class ServedDownload extends ServerSession {
+
+	public static final int MAX_FIN_ATTEMPTS = 20;
+
+	private final long size;
+	private final int window;
+	private final long pace;
+
+	/**
+	 * First byte not acknowledged, next byte to send, end of what was sent.
+	 */
+	private long base;
+	private long next;
+	private long highest;
+
+	private final long[] sendTimes;
+	private final boolean[] resent;
+	private long nextSend;
+	private long timeout;
+	private int duplicateAcks;
+	private int finAttempts;
+
+	/**
+	 * An ACK has come, the robot knows the connId.
+	 */
+	private boolean acknowledged;
+
+	/**
+	 * Before this time an RST may be of data which overtook the answer to the
+	 * SYN, after it the robot has taken another session (of a repeated or
+	 * parallel SYN).
+	 */
+	private final long resetsFrom;
+
+	/**
+	 * The robot has been told the firmware, its ACKs may skip what it holds
+	 * from an earlier run.
+	 */
+	private final boolean skipping;
+
+	public ServedDownload(ServerShard shard, int connId,
+			SocketAddress address, ByteBuffer image, int window,
+			long pace, boolean skipping, long now) {
+		super(shard, connId, address, now);
+
+		this.skipping = skipping;
+		this.size = image.capacity();
+		this.window = window;
+		this.pace = pace;
+		this.sendTimes = new long[window];
+		this.resent = new boolean[window];
+		this.timeout = now + this.rtt.rto();
+		this.resetsFrom = this.timeout;
+		this.transmit(now);
+	}
+
+	private int slot(long offset) {
+		return (int) (offset / Packet.MAX_DATA_LENGTH % this.window);
+	}
+
+	/**
+	 * @return nanoseconds between two segments
+	 */
+	private long interval() {
+		if (this.pace > 0) {
+			return Packet.MAX_DATA_LENGTH * 1_000_000_000L / this.pace;
+		}
+
+		return this.rtt.srtt() / this.window;
+	}
+
+	/**
+	 * Sends what the window and the pacing allow, or the FIN.
+	 */
+	private void transmit(long now) {
+		if (this.base >= this.size) {
+			return;
+		}
+
+		long end = Math.min(this.size, this.base + (long) this.window
+				* Packet.MAX_DATA_LENGTH);
+
+		while (this.next < end && this.nextSend <= now) {
+			this.next += this.sendSegment(this.next, now);
+			this.highest = Math.max(this.highest, this.next);
+			this.nextSend = Math.max(this.nextSend, now - this.interval())
+					+ this.interval();
+		}
+	}
+
+	/**
+	 * @return length of the segment
+	 */
+	private int sendSegment(long offset, long now) {
+		int length = (int) Math.min(Packet.MAX_DATA_LENGTH, this.size
+				- offset);
+		int slot = this.slot(offset);
+
+		this.resent[slot] = offset < this.highest;
+		this.sendTimes[slot] = now;
+
+		if (this.resent[slot]) {
+			this.shard.retransmissions += 1;
+		}
+
+		this.shard.sendData(this.address, this.connId, (short) offset,
+				(int) offset, length);
+
+		return length;
+	}
+
+	@Override
+	public void receive(PacketView packet, long now) {
+		this.lastHeard = now;
+
+		/*
+		 * a robot which has not acknowledged anything yet resets the data
+		 * which overtook the answer to its SYN, it will take them again; a
+		 * session it still resets an RTO later is one nobody wants
+		 */
+		if (packet.isRst()
+				&& (this.acknowledged || now >= this.resetsFrom)) {
+			this.finished = true;
+			return;
+		}
+
+		if (packet.isFin()) {
+			this.finished = true;
+			return;
+		}
+
+		if (packet.isRst() || this.base >= this.size) {
+			return;
+		}
+
+		int rel = (packet.ackNum() - (short) this.base) & 0xffff;
+		long acked = this.base + rel;
+
+		this.acknowledged = true;
+
+		if (rel == 0) {
+			this.duplicateAcks += 1;
+
+			if (this.duplicateAcks == 3 && this.next > this.base) {
+				this.sendSegment(this.base, now);
+			}
+			return;
+		}
+
+		if (acked > this.highest) {
+			/* older ACKs are behind the base, half the numbers away */
+			if (!this.skipping || rel >= 0x8000 || acked > this.size) {
+				return;
+			}
+
+			this.highest = acked;
+		} else {
+			int last = this.slot(acked - 1);
+
+			if (!this.resent[last]) {
+				this.rtt.sample(now - this.sendTimes[last]);
+			}
+		}
+
+		this.base = acked;
+		this.next = Math.max(this.next, this.base);
+		this.duplicateAcks = 0;
+		this.rtt.resetBackoff();
+		this.timeout = now + this.rtt.rto();
+
+		if (this.base >= this.size) {
+			this.sendFin(now);
+		} else {
+			this.transmit(now);
+		}
+	}
+
+	private void sendFin(long now) {
+		this.finAttempts += 1;
+
+		if (this.finAttempts > ServedDownload.MAX_FIN_ATTEMPTS) {
+			this.finished = true;
+			return;
+		}
+
+		this.shard.send(this.address, this.connId, (short) this.size,
+				(short) 0, Packet.FLAG_FIN);
+		this.timeout = now + this.rtt.rto();
+	}
+
+	@Override
+	public long deadline() {
+		long deadline = Math.min(super.deadline(), this.timeout);
+
+		if (this.base < this.size && this.next < this.size
+				&& this.next < this.base + (long) this.window
+						* Packet.MAX_DATA_LENGTH) {
+			deadline = Math.min(deadline, this.nextSend);
+		}
+
+		return deadline;
+	}
+
+	@Override
+	public void onTimer(long now) {
+		if (now >= super.deadline()) {
+			this.finished = true;
+			return;
+		}
+
+		if (now >= this.timeout) {
+			this.rtt.backoff();
+
+			if (this.base >= this.size) {
+				this.sendFin(now);
+				return;
+			}
+
+			/* go back to the first byte which is not acknowledged */
+			this.next = this.base;
+			this.nextSend = now;
+			this.timeout = now + this.rtt.rto();
+		}
+
+		this.transmit(now);
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * Receives a firmware: every data packet is acknowledged with the end of the
+ * data in order, the file is written at the FIN and the session lingers to
+ * answer a repeated FIN.
+ */
+class ServedUpload extends ServerSession {
+
+	public static final long LINGER = 2_000_000_000L;
+
+	/**
+	 * Segments kept out of order: the window of the server, a power of two,
+	 * the robot has no reason to send further ahead.
+	 */
+	private final ReassemblyWindow window;
+	private final ByteStore data = new ByteStore();
+	private long lingerUntil;
+
+	public ServedUpload(ServerShard shard, int connId,
+			SocketAddress address, int window, long now) {
+		super(shard, connId, address, now);
+
+		this.window = new ReassemblyWindow(Integer.highestOneBit(Math.max(1,
+				window - 1) << 1));
+	}
+
+	@Override
+	public void receive(PacketView packet, long now) {
+		this.lastHeard = now;
+
+		if (packet.isRst()) {
+			this.finished = true;
+			return;
+		}
+
+		long base = this.window.base();
+
+		if (packet.isFin()) {
+			if (this.lingerUntil == 0) {
+				this.write();
+			}
+
+			this.lingerUntil = now + ServedUpload.LINGER;
+			this.shard.send(this.address, this.connId, (short) 0,
+					(short) base, Packet.FLAG_FIN);
+			return;
+		}
+
+		int rel = (packet.seqNum() - (short) base) & 0xffff;
+		int length = packet.dataLength();
+
+		/* far ahead is an old segment from behind the base */
+		if (this.lingerUntil == 0 && length > 0 && rel < 0x8000) {
+			long offset = base + rel;
+
+			switch (this.window.classify(offset, length)) {
+			case ReassemblyWindow.IN_ORDER:
+				this.data.append(packet.array(), packet.dataOffset(), length);
+				this.window.advance(length);
+
+				while (this.window.ready()) {
+					this.data.append(this.window.readyData(), 0,
+							this.window.readyLength());
+					this.window.release();
+				}
+				break;
+			case ReassemblyWindow.OUT_OF_ORDER:
+				this.window.store(offset, packet.array(),
+						packet.dataOffset(), length);
+				break;
+			default:
+				break;
+			}
+		}
+
+		this.shard.send(this.address, this.connId, (short) 0,
+				(short) this.window.base(), Packet.FLAG_NONE);
+	}
+
+	private void write() {
+		String name = "upload-" + Integer.toUnsignedString(this.connId)
+				+ ".bin";
+
+		try (FileChannel channel = FileChannel.open(Paths.get(name),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			this.data.writeTo(channel);
+			this.shard.uploadedBytes += this.data.size();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public long deadline() {
+		if (this.lingerUntil != 0) {
+			return this.lingerUntil;
+		}
+
+		return super.deadline();
+	}
+
+	@Override
+	public void onTimer(long now) {
+		this.finished = true;
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * The sessions whose connId hashes to one core: a thread which takes the
+ * datagrams from its DatagramRing, runs the sessions and their timers and
+ * sends through the socket of the server.
+ */
+class ServerShard implements Runnable {
+
+	/**
+	 * The longest sleep, so that an unpark lost in a race costs little.
+	 */
+	private static final long PARK_NANOS = 10_000_000L;
+
+	public final int index;
+	private final FirmwareServer server;
+	public final DatagramRing inbox;
+	private final ByteBuffer image;
+
+	/**
+	 * View of the image used for sending, only its position and limit move.
+	 */
+	private final ByteBuffer payload;
+
+	private final ServerSession[] sessions;
+	private final int[] freeSlots;
+	private int freeCount;
+	private final IntMap slots;
+	private final TimerQueue timers;
+
+	private final PacketView view = new PacketView();
+	private final ByteBuffer sendBuffer = ByteBuffer
+			.allocateDirect(Packet.HEADER_SIZE + Packet.MAX_DATA_LENGTH);
+
+	public Thread thread;
+
+	/* counters */
+	public long opened;
+	public long closed;
+	public long stray;
+	public long segments;
+	public long retransmissions;
+	public long uploadedBytes;
+	public long failures;
+
+	public ServerShard(int index, FirmwareServer server, ByteBuffer image,
+			int capacity) {
+		this.index = index;
+		this.server = server;
+		this.image = image;
+		this.payload = image.duplicate();
+		this.inbox = new DatagramRing(FirmwareServer.INBOX_SIZE);
+		this.sessions = new ServerSession[capacity];
+		this.freeSlots = new int[capacity];
+
+		for (int i = 0; i < capacity; i += 1) {
+			this.freeSlots[i] = capacity - 1 - i;
+		}
+
+		this.freeCount = capacity;
+		this.slots = new IntMap(capacity);
+		this.timers = new TimerQueue(capacity);
+	}
+
+	@Override
+	public void run() {
+		for (;;) {
+			for (SocketAddress from; (from = this.inbox
+					.peek(this.view)) != null;) {
+				this.dispatch(this.view, from, System.nanoTime());
+				this.inbox.release();
+			}
+
+			long now = System.nanoTime();
+
+			while (this.timers.nextDeadline() <= now) {
+				int slot = this.timers.nextId();
+
+				try {
+					this.sessions[slot].onTimer(now);
+				} catch (RuntimeException e) {
+					this.fail(slot, e);
+				}
+
+				this.update(slot);
+			}
+
+			long wait = Math.min(ServerShard.PARK_NANOS,
+					this.timers.nextDeadline() - System.nanoTime());
+
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+		}
+	}
+
+	private void dispatch(PacketView packet, SocketAddress from, long now) {
+		if (!packet.isValid()) {
+			this.stray += 1;
+			return;
+		}
+
+		if (packet.isSyn()) {
+			this.open(packet, from, now);
+			return;
+		}
+
+		int slot = this.slots.get(packet.connId());
+
+		if (slot == IntMap.MISSING) {
+			this.stray += 1;
+
+			if (!packet.isRst()) {
+				this.send(from, packet.connId(), (short) 0, (short) 0,
+						Packet.FLAG_RST);
+			}
+			return;
+		}
+
+		try {
+			this.sessions[slot].receive(packet, now);
+		} catch (RuntimeException e) {
+			this.fail(slot, e);
+		}
+
+		this.update(slot);
+	}
+
+	/**
+	 * A bug of one session ends only that session, the others go on.
+	 */
+	private void fail(int slot, RuntimeException e) {
+		e.printStackTrace();
+		this.failures += 1;
+		this.sessions[slot].abort();
+	}
+
+	/**
+	 * Answers a SYN with a new connId of this shard.
+	 */
+	private void open(PacketView packet, SocketAddress from, long now) {
+		byte command = packet.dataLength() >= 1 ? packet.data(0) : 0;
+		boolean digest = command == Robot.SIGN_DOWNLOAD
+				&& packet.dataLength() == 2
+				&& packet.data(1) == Handshake.OPTION_DIGEST;
+
+		if (packet.dataLength() > (digest ? 2 : 1)) {
+			command = 0;
+		}
+
+		if ((command != Robot.SIGN_DOWNLOAD && command != Robot.SIGN_UPLOAD)
+				|| this.freeCount == 0) {
+			this.send(from, packet.connId(), (short) 0, (short) 0,
+					Packet.FLAG_RST);
+			return;
+		}
+
+		int connId;
+
+		do {
+			connId = ThreadLocalRandom.current().nextInt();
+		} while (connId == 0 || this.server.shardOf(connId) != this.index
+				|| this.slots.get(connId) != IntMap.MISSING);
+
+		this.sendBuffer.clear();
+		PacketView.encode(this.sendBuffer, connId, (short) 0, (short) 0,
+				Packet.FLAG_SYN);
+		this.sendBuffer.position(Packet.HEADER_SIZE);
+		this.sendBuffer.put(command);
+
+		if (digest) {
+			this.sendBuffer.put(Handshake.OPTION_DIGEST)
+					.putLong(this.image.capacity())
+					.putInt(this.server.digest);
+		}
+
+		this.sendBuffer.flip();
+		this.server.send(this.sendBuffer, from);
+
+		this.freeCount -= 1;
+		int slot = this.freeSlots[this.freeCount];
+
+		this.slots.put(connId, slot);
+		this.opened += 1;
+
+		if (command == Robot.SIGN_DOWNLOAD) {
+			this.sessions[slot] = new ServedDownload(this, connId, from,
+					this.image, this.server.window, this.server.pace, digest,
+					now);
+		} else {
+			this.sessions[slot] = new ServedUpload(this, connId, from,
+					this.server.window, now);
+		}
+
+		this.update(slot);
+	}
+
+	/**
+	 * Reschedules the session, or frees its slot when it has finished.
 	 */
-	int fromPort;
+	private void update(int slot) {
+		ServerSession session = this.sessions[slot];
+
+		if (session.isFinished()) {
+			this.timers.cancel(slot);
+			this.slots.remove(session.connId);
+			this.sessions[slot] = null;
+			this.freeSlots[this.freeCount] = slot;
+			this.freeCount += 1;
+			this.closed += 1;
+			return;
+		}
+
+		this.timers.schedule(slot, session.deadline());
+	}
 
-	private UDP udp;
+	public void send(SocketAddress to, int connId, short seq,
+			short ack, byte flags) {
+		this.sendBuffer.clear();
+		PacketView.encode(this.sendBuffer, connId, seq, ack, flags);
+		this.sendBuffer.limit(Packet.HEADER_SIZE);
+		this.server.send(this.sendBuffer, to);
+	}
 
 	/**
-	 * This holds the file.
+	 * Sends 'length' bytes of the image from 'offset'.
 	 */
-	// private List<Byte> data;
+	public void sendData(SocketAddress to, int connId, short seq,
+			int offset, int length) {
+		this.payload.limit(offset + length).position(offset);
+
+		this.sendBuffer.clear();
+		PacketView.encode(this.sendBuffer, connId, seq, (short) 0,
+				Packet.FLAG_NONE);
+		this.sendBuffer.position(Packet.HEADER_SIZE);
+		this.sendBuffer.put(this.payload);
+		this.sendBuffer.flip();
+		this.server.send(this.sendBuffer, to);
+		this.segments += 1;
+	}
+
+	@Override
+	public String toString() {
+		return "Shard " + this.index + ": sessions opened=" + this.opened
+				+ ", closed=" + this.closed + ", segments=" + this.segments
+				+ ", retransmissions=" + this.retransmissions
+				+ ", uploaded=" + this.uploadedBytes + " B, stray="
+				+ this.stray + ", failures=" + this.failures + ", inbox drops="
+				+ this.inbox.dropped;
+	}
+}
+
+/******************************************************************************/
+
+/**
+ * A server of the Karel protocol which hands out one firmware and takes
+ * uploads. One thread receives and passes each datagram to the shard of its
+ * connId (a SYN to the shards in turn), each shard runs its sessions in its
+ * own thread; all share one socket and one mapping of the image.
+ */
+class FirmwareServer {
 
 	/**
-	 * Connection identifier.
+	 * Datagrams waiting for one shard.
 	 */
-	private int connId = -1;
+	public static final int INBOX_SIZE = 1024;
 
 	/**
-	 * posledni ack kde mam vsechny data v pohode
+	 * Most sessions of one shard at once.
 	 */
-	private int lastAckInRow = 0;
+	public static final int SHARD_CAPACITY = 1024;
+
+	public static final int DEFAULT_WINDOW = 8;
+
+	private final DatagramChannel channel;
+	private final ServerShard[] shards;
+	private int nextShard;
 
 	/**
-	 * budu si pamatovat posledni ack, abych mohl urcit, jestli preteklo
+	 * Segments in flight and bytes per second of a download, zero paces by
+	 * the RTT. An upload keeps as many segments out of order.
 	 */
-	private int prevAck = -1;
+	public final int window;
+	public final long pace;
 
 	/**
-	 * kolikrat uz mi acekacko preteklo?
+	 * CRC32 of the firmware, told to the robots which resume.
 	 */
-	private int ackOwerflowCount = 0;
+	public final int digest;
 
 	/**
-	 * Mapa pole bytu. Predpokladam, ze kazdej zaznam bude dlouhej 255 bytu a
-	 * ten posledni bude min
+	 * @param options
+	 *            the shards, window and pace of the serve mode and the socket
+	 *            buffers
 	 */
-	Map<Integer, byte[]> buffer;
-
-	List<Byte> data;
+	public FirmwareServer(int port, String firmware, Options options)
+			throws IOException {
+		MappedByteBuffer image = ImageCache.get(firmware);
+		CRC32 crc = new CRC32();
+
+		crc.update(image.duplicate());
+
+		this.window = options.serverWindow;
+		this.pace = options.pace;
+		this.digest = (int) crc.getValue();
+		this.channel = DatagramChannel.open();
+		this.channel.bind(new InetSocketAddress(port));
+		UDP.setBufferSizes(this.channel, options.rcvbuf, options.sndbuf);
+		this.shards = new ServerShard[options.shards];
+
+		for (int i = 0; i < this.shards.length; i += 1) {
+			this.shards[i] = new ServerShard(i, this, image.duplicate(),
+					FirmwareServer.SHARD_CAPACITY);
+		}
+	}
 
-	Map<Integer, Byte[]> allData;
+	/**
+	 * @return the port the server has been bound to
+	 */
+	public int port() throws IOException {
+		return ((InetSocketAddress) this.channel.getLocalAddress()).getPort();
+	}
 
-	public Download(String serverName) {
-		this.buffer = new HashMap<Integer, byte[]>();
-		this.data = new ArrayList<Byte>();
+	/**
+	 * @return data segments sent by all the shards
+	 */
+	public long segments() {
+		long segments = 0;
 
-		/* Create UDP wrapper */
-		this.udp = new UDP(serverName, Robot.PORT);
+		for (ServerShard shard : this.shards) {
+			segments += shard.segments;
+		}
 
-		/**********************************************************************/
+		return segments;
+	}
 
-		System.out.println("]]] I'll connect to the server:");
+	public int shardOf(int connId) {
+		return Integer.remainderUnsigned(connId * 0x9E3779B9,
+				this.shards.length);
+	}
 
-		/* Connect to server. */
-		this.connectToServer();
+	/**
+	 * Sends from any shard, the channel serialises the writers.
+	 */
+	public void send(ByteBuffer datagram, SocketAddress to) {
+		try {
+			this.channel.send(datagram, to);
+		} catch (IOException e) {
+			/* the robot is gone, it will time out */
+		}
+	}
 
-		/**********************************************************************/
+	/**
+	 * Receives until the process ends.
+	 */
+	public void run() throws IOException {
+		for (ServerShard shard : this.shards) {
+			shard.thread = new Thread(shard, "shard-" + shard.index);
+			shard.thread.setDaemon(true);
+			shard.thread.start();
+		}
 
-		System.out.println("]]] Ok. I'm connected. connId="
-				+ Integer.toHexString(this.connId));
+		ByteBuffer buffer = ByteBuffer.allocateDirect(BufferPool.DATAGRAM_SIZE);
 
-		Packet recvPacket = null;
-		for (int _ = 0;; _++) {
-			System.out.println("loop: " + _);
+		for (;;) {
+			buffer.clear();
 
-			/* don't hurry, be happy (: */
-			// try {
-			// Thread.sleep(100);
-			// } catch (InterruptedException e1) {
-			// }
+			SocketAddress from;
 
 			try {
-				recvPacket = this.udp.recv();
-			} catch (SocketTimeoutException e) {
-				System.out.println("timeout==================================");
+				from = this.channel.receive(buffer);
+			} catch (PortUnreachableException e) {
 				continue;
 			}
 
-			System.out.println("RECV: " + recvPacket);
+			buffer.flip();
 
-			/* If the connId is different to mine, send a RST packet. */
-			if (recvPacket.connId != this.connId) {
-				System.out.println("wrong connId, sengind rst");
-				this.udp.send(new Packet(recvPacket.connId, (short) 0,
-						(short) 0, Packet.FLAG_RST, null));
+			if (buffer.remaining() < Packet.HEADER_SIZE
+					|| buffer.remaining() > Packet.HEADER_SIZE
+							+ Packet.MAX_DATA_LENGTH) {
 				continue;
 			}
 
-			if (recvPacket.isFin()) {
-				System.out.println("FIN was received. Sending 20x RST.");
-
-				for (int i = 0; i < 20; i += 1) {
-					try {
-						Thread.sleep(100);
-					} catch (InterruptedException e1) {
-					}
+			ServerShard shard;
 
-					this.udp.send(new Packet(this.connId, (short) 0,
-							(short) (this.data.size()), Packet.FLAG_FIN, null));
-				}
+			if ((buffer.get(8) & Packet.FLAG_SYN) != 0) {
+				shard = this.shards[this.nextShard];
+				this.nextShard = (this.nextShard + 1) % this.shards.length;
+			} else {
+				shard = this.shards[this.shardOf(buffer.getInt(0))];
+			}
 
-				break;
+			if (shard.inbox.offer(buffer, from)) {
+				LockSupport.unpark(shard.thread);
 			}
+		}
+	}
 
-			/******************************************************************/
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("Server: shards="
+				+ this.shards.length + ", window=" + this.window + ", pace="
+				+ (this.pace == 0 ? "srtt/window" : this.pace + " B/s"));
 
-			if (recvPacket.isData()) {
-				System.out.println("a data packet has came!");
+		for (ServerShard shard : this.shards) {
+			sb.append('\n').append(shard);
+		}
 
-				// TODO: owerflow
-				/*
-				 * int dataPosition = recvPacket.seqNum + this.ackOwerflowCount
-				 * * 65536;
-				 */
-				if (recvPacket.ackNum < this.lastAckInRow) {
-					System.out.println("tohle uz ale mam!");
-				} else if (recvPacket.seqNum == this.data.size()) {
-					System.out.println("presne tohle jsem potreboval");
+		return sb.toString();
+	}
+}
 
-					/* mam co chci, tak to tam nacpu */
-					for (Byte b : recvPacket.data) {
-						this.data.add(b);
-					}
+/******************************************************************************/
 
-					while (this.buffer.containsKey(this.data.size())) {
-						int size = this.data.size();
-						System.out.println("mam dalsi data o chci! " + size);
+/**
+ * The settings of a run, from the options of the command line (see
+ * Robot.parseOptions()). Whatever depends on them gets them from here.
+ */
+class Options {
 
-						for (byte b : this.buffer.get(size)) {
-							System.out.println("pridavam: " + b);
-							this.data.add(b);
-						}
+	/**
+	 * The port of the server, -1 until main() has chosen one.
+	 */
+	public int port = -1;
 
-						this.buffer.remove(size);
-					}
+	/**
+	 * Write every data packet straight to its offset in the output file.
+	 */
+	public boolean positional;
 
-				} else {
+	public AckPolicy ackPolicy = new AckPolicy();
 
-					System.out.println("to jeste nechci, tak si to ulozim. ds="
-							+ this.data.size() + ",seq=" + recvPacket.seqNum);
-					this.prevAck = recvPacket.seqNum;
+	/**
+	 * Segments in flight during an upload.
+	 */
+	public int window = Upload.DEFAULT_WINDOW;
 
-					byte[] tmpData = new byte[recvPacket.data.length];
+	/**
+	 * Sockets shared by the transfers of the fleet mode.
+	 */
+	public int channels = 1;
 
-					System.arraycopy(recvPacket.data, 0, tmpData, 0,
-							recvPacket.data.length);
+	/**
+	 * Drain the socket in batches (UDP.driveBatch()).
+	 */
+	public boolean batch;
 
-					System.out.println("toto jsou tmp data co ukladam: ");
-					for (byte b : tmpData) {
-						System.out.print(b + " ");
-					}
-					System.out.println(".");
+	/**
+	 * SO_RCVBUF and SO_SNDBUF in bytes, zero is the default of the system.
+	 */
+	public int rcvbuf;
+	public int sndbuf;
 
-					this.buffer.put((int) recvPacket.seqNum, tmpData);
+	public final HandshakePolicy handshakePolicy = new HandshakePolicy();
 
-				}
+	/**
+	 * Keep what an interrupted download has written (implies positional
+	 * writes), see ResumeJournal.
+	 */
+	public boolean resume;
 
-			}
+	/**
+	 * Read the download through a DownloadStream of this many bytes while it
+	 * comes, zero does not.
+	 */
+	public int stream;
+
+	/**
+	 * Write the file in a WriterStage thread while the data come.
+	 */
+	public boolean pipeline;
 
-			this.udp.send(new Packet(this.connId, (short) 0, (short) (this.data
-					.size()), Packet.FLAG_NONE, null));
+	/**
+	 * What the proxy and sweep modes do to the datagrams.
+	 */
+	public final Impairment impairment = new Impairment();
 
-		}// konec for
+	/**
+	 * Threads, segments in flight and pacing (bytes per second, zero paces
+	 * by the RTT) of the serve mode.
+	 */
+	public int shards = Runtime.getRuntime().availableProcessors();
+	public int serverWindow = FirmwareServer.DEFAULT_WINDOW;
+	public long pace;
 
-		System.out.println("tak jsem venku ze smycky");
+	/**
+	 * Where the recording of --jfr goes, or null.
+	 */
+	public String jfr;
 
-		writeItToFile();
+	/**
+	 * Where --record writes the trace of the datagrams, or null.
+	 */
+	public String record;
 
-		System.out.println("thiii end :)");
+	/**
+	 * The TransferScheduler of the fleet: bytes per second of a transfer
+	 * and of all, transfers of the urgent class (the first ones, the others
+	 * are background when set) and weights (repeated over the transfers).
+	 */
+	public boolean scheduling;
+	public long rate;
+	public long totalRate;
+	public int urgent;
+	public int[] weights = { 1 };
+}
 
-	}
+/******************************************************************************/
 
-	private void writeItToFile() {
-		FileWriter fstream = null;
+public class Robot {
 
-		try {
-			fstream = new FileWriter("recv.txt");
-		} catch (IOException e) {
-			e.printStackTrace();
-			System.exit(1);
-		}
+	public static final boolean DEBUG = true;
+	public static final boolean LOCALHOST = true;
 
-		BufferedWriter out = new BufferedWriter(fstream);
+	public static final byte SIGN_DOWNLOAD = 0x01;
+	public static final byte SIGN_UPLOAD = 0x02;
 
-		/* neslo by to rychlejc? */
-		for (int i = 0; i < this.data.size(); i += 1) {
-			try {
-				Byte b = this.data.get(i);
-				System.out.println(i + ", pisu: " + b);
+	public static final int PORT_BARYK = 3220;
+	public static final int PORT_LOCALHOST = 4000;
 
-				if (b == null) {
-					continue;
+	public static final String OUTPUT = "recv.txt";
+
+	/**************************************************************************/
+
+	/**
+	 * Sets up the options (arguments starting with '--').
+	 * 
+	 * @return the other arguments
+	 */
+	private static String[] parseOptions(String[] args, Options options) {
+		List<String> rest = new ArrayList<String>();
+
+		for (String arg : args) {
+			if (!arg.startsWith("--")) {
+				rest.add(arg);
+			} else if (arg.startsWith("--log=")) {
+				/* before anything loads Log, its levels are constants */
+				System.setProperty(Log.PROPERTY, Robot.optionValue(arg));
+			} else if (arg.equals("--positional")) {
+				options.positional = true;
+			} else if (arg.startsWith("--ack-every=")) {
+				options.ackPolicy = new AckPolicy(Integer.parseInt(Robot
+						.optionValue(arg)), options.ackPolicy.delay,
+						options.ackPolicy.immediateOnGap,
+						options.ackPolicy.timerDriven);
+			} else if (arg.startsWith("--ack-delay=")) {
+				options.ackPolicy = new AckPolicy(options.ackPolicy.coalesce,
+						Long.parseLong(Robot.optionValue(arg)) * 1_000_000L,
+						options.ackPolicy.immediateOnGap,
+						options.ackPolicy.timerDriven);
+			} else if (arg.equals("--no-gap-ack")) {
+				options.ackPolicy = new AckPolicy(options.ackPolicy.coalesce,
+						options.ackPolicy.delay, false,
+						options.ackPolicy.timerDriven);
+			} else if (arg.startsWith("--syn-timeout=")) {
+				options.handshakePolicy.initialTimeout = Long.parseLong(Robot
+						.optionValue(arg)) * 1_000_000L;
+			} else if (arg.startsWith("--syn-backoff=")) {
+				options.handshakePolicy.backoff = Double.parseDouble(Robot
+						.optionValue(arg));
+			} else if (arg.startsWith("--syn-jitter=")) {
+				options.handshakePolicy.jitter = Double.parseDouble(Robot
+						.optionValue(arg));
+			} else if (arg.startsWith("--syn-attempts=")) {
+				options.handshakePolicy.attempts = Integer.parseInt(Robot
+						.optionValue(arg));
+			} else if (arg.startsWith("--syn-parallel=")) {
+				options.handshakePolicy.parallel = Integer.parseInt(Robot
+						.optionValue(arg));
+			} else if (arg.equals("--early-data")) {
+				options.handshakePolicy.earlyData = true;
+			} else if (arg.startsWith("--port=")) {
+				options.port = Integer.parseInt(Robot.optionValue(arg));
+			} else if (arg.startsWith("--loss=")
+					|| arg.startsWith("--dup=")
+					|| arg.startsWith("--reorder=")
+					|| arg.startsWith("--delay=")
+					|| arg.startsWith("--jitter=")
+					|| arg.startsWith("--bandwidth=")
+					|| arg.startsWith("--seed=")) {
+				options.impairment.set(arg.substring(2, arg.indexOf('=')),
+						Robot.optionValue(arg));
+			} else if (arg.startsWith("--shards=")) {
+				options.shards = Integer.parseInt(Robot.optionValue(arg));
+			} else if (arg.startsWith("--server-window=")) {
+				options.serverWindow = Integer.parseInt(Robot.optionValue(arg));
+			} else if (arg.startsWith("--pace=")) {
+				options.pace = Long.parseLong(Robot.optionValue(arg));
+			} else if (arg.startsWith("--rate=")) {
+				options.rate = Long.parseLong(Robot.optionValue(arg));
+				options.scheduling = true;
+			} else if (arg.startsWith("--total-rate=")) {
+				options.totalRate = Long.parseLong(Robot.optionValue(arg));
+				options.scheduling = true;
+			} else if (arg.startsWith("--urgent=")) {
+				options.urgent = Integer.parseInt(Robot.optionValue(arg));
+				options.scheduling = true;
+			} else if (arg.startsWith("--weights=")) {
+				String[] weights = Robot.optionValue(arg).split(",");
+
+				options.weights = new int[weights.length];
+
+				for (int i = 0; i < weights.length; i += 1) {
+					options.weights[i] = Integer.parseInt(weights[i]);
 				}
 
-				out.write(b);
-				out.flush();
-			} catch (IOException e) {
-				e.printStackTrace();
+				options.scheduling = true;
+			} else if (arg.startsWith("--record=")) {
+				options.record = Robot.optionValue(arg);
+			} else if (arg.startsWith("--jfr=")) {
+				options.jfr = Robot.optionValue(arg);
+			} else if (arg.equals("--pipeline")) {
+				options.pipeline = true;
+			} else if (arg.equals("--stream")) {
+				options.stream = DownloadStream.DEFAULT_CAPACITY;
+			} else if (arg.startsWith("--stream=")) {
+				options.stream = Integer.parseInt(Robot.optionValue(arg));
+			} else if (arg.equals("--resume")) {
+				options.resume = true;
+			} else if (arg.equals("--batch")) {
+				options.batch = true;
+			} else if (arg.startsWith("--rcvbuf=")) {
+				options.rcvbuf = Integer.parseInt(Robot.optionValue(arg));
+			} else if (arg.startsWith("--sndbuf=")) {
+				options.sndbuf = Integer.parseInt(Robot.optionValue(arg));
+			} else if (arg.startsWith("--channels=")) {
+				options.channels = Integer.parseInt(Robot.optionValue(arg));
+			} else if (arg.startsWith("--window=")) {
+				options.window = Integer.parseInt(Robot.optionValue(arg));
+			} else if (arg.equals("--no-ack-timer")) {
+				options.ackPolicy = new AckPolicy(options.ackPolicy.coalesce,
+						options.ackPolicy.delay,
+						options.ackPolicy.immediateOnGap, false);
+			} else {
+				System.err.println("Unknown option: " + arg);
 				System.exit(1);
 			}
 		}
 
+		/* the stream is fed by the reassembly in memory, a file sink has none */
+		if (options.stream > 0 && (options.positional || options.resume)) {
+			System.err.println("--stream can not be used with --positional"
+					+ " or --resume.");
+			System.exit(1);
+		}
+
+		return rest.toArray(new String[rest.size()]);
+	}
+
+	/**
+	 * Computes the CRC32 of a download while it comes.
+	 */
+	private static void consume(DownloadStream stream, long start) {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[8192];
+		long total = 0;
+		long firstByte = -1;
+
 		try {
-			out.close();
+			for (int n; (n = stream.read(buffer, 0, buffer.length)) >= 0;) {
+				if (firstByte < 0) {
+					firstByte = System.nanoTime() - start;
+				}
+
+				crc.update(buffer, 0, n);
+				total += n;
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 			System.exit(1);
 		}
+
+		System.out.println("Streamed " + total + " bytes, crc32="
+				+ Long.toHexString(crc.getValue()) + ", first byte after "
+				+ firstByte / 1_000_000 + " ms, last after "
+				+ (System.nanoTime() - start) / 1_000_000 + " ms.");
 	}
 
 	/**
-	 * 
-	 * @return
+	 * Records with the default settings of the JDK (and of the events) into
+	 * the file until the process ends.
 	 */
-	public void connectToServer() {
-		Packet recvPacket = null;
+	private static void record(String fileName) {
+		try {
+			Recording recording = new Recording(
+					Configuration.getConfiguration("default"));
 
-		this.udp.send(new Packet(0, (short) 0, (short) 0, Packet.FLAG_SYN,
-				new byte[] { Robot.SIGN_DOWNLOAD }));
+			recording.setDestination(Paths.get(fileName));
+			recording.setDumpOnExit(true);
+			recording.start();
+		} catch (IOException | ParseException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
 
+	/**
+	 * Records the datagrams into the file until the process ends.
+	 */
+	private static void trace(String fileName) {
 		try {
-			recvPacket = this.udp.recv();
-			System.out.println("__recv: " + recvPacket);
-		} catch (SocketTimeoutException e) {
-			System.out.println("SYN timeout, connecting again..");
-			this.connectToServer();
-			return;
-		}
+			final TraceWriter trace = new TraceWriter(fileName);
+
+			UDP.trace = trace;
 
-		if (recvPacket == null) {
-			System.err.println("Received packet is null.");
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					trace.close();
+				}
+			}));
+		} catch (IOException e) {
+			e.printStackTrace();
 			System.exit(1);
 		}
+	}
 
-		if (recvPacket.isSyn()) {
-			this.connId = recvPacket.connId;
-			return;
+	/**
+	 * Serves the firmware on 'port' until killed.
+	 */
+	private static void serve(int port, String firmware, Options options) {
+		try {
+			final FirmwareServer server = new FirmwareServer(port, firmware,
+					options);
+
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					System.out.println(server);
+				}
+			}));
+
+			System.out.println("Serving " + firmware + " on port " + port
+					+ ", shards=" + options.shards);
+			server.run();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
 		}
+	}
 
-		/* nebudem to komplikovat :) */
-		System.exit(1);
+	/**
+	 * Relays between robots on 'port' and the server until killed.
+	 */
+	private static void proxy(int port, String serverName, Options options) {
+		try {
+			final ImpairmentProxy proxy = new ImpairmentProxy(port,
+					serverName, options.port, options.impairment);
 
-		/* neprisel syn, prectu zbytek a uvidi se... */
-		for (;;) {
-			try {
-				recvPacket = this.udp.recv();
-				System.out.println("recv: " + recvPacket);
-			} catch (SocketTimeoutException e1) {
-			}
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					System.out.println(proxy);
+				}
+			}));
 
-			if (recvPacket.isSyn()) {
-				this.connId = recvPacket.connId;
-				return;
-			}
+			System.out.println("Proxy: 127.0.0.1:" + proxy.port() + " -> "
+					+ serverName + ":" + options.port + ", "
+					+ options.impairment);
+			proxy.run();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
 
-			this.udp.send(new Packet(recvPacket.connId, (short) 0, (short) 0,
-					Packet.FLAG_RST, null));
+	/**
+	 * Uploads the firmware to 'count' robots on the servers at once.
+	 */
+	private static void push(String servers, int count, String firmware,
+			Options options) {
+		String[] names = servers.split(",");
+		InetSocketAddress[] targets = new InetSocketAddress[names.length];
 
-			try {
-				Thread.sleep(100);
-			} catch (InterruptedException e) {
-			}
+		for (int i = 0; i < names.length; i += 1) {
+			targets[i] = new InetSocketAddress(names[i], options.port);
+		}
 
-			this.udp.send(new Packet(0, (short) 0, (short) 0, Packet.FLAG_SYN,
-					new byte[] { Robot.SIGN_DOWNLOAD }));
+		ThreadMXBean threads = (ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
 
+		try {
+			long start = System.nanoTime();
+			long cpu = threads.getThreadCpuTime(threadId);
+			long allocated = threads.getThreadAllocatedBytes(threadId);
+			FirmwarePush push = new FirmwarePush(targets, count, firmware,
+					options);
+			int failed = push.run();
+
+			System.out.println(push);
+			System.out.println("Pushed to " + (count - failed) + " robots, "
+					+ failed + " failed, in "
+					+ (System.nanoTime() - start) / 1_000_000
+					+ " ms (slowest " + push.slowest() + " ms), cpu "
+					+ (threads.getThreadCpuTime(threadId) - cpu) / 1_000_000
+					+ " ms, allocated "
+					+ (threads.getThreadAllocatedBytes(threadId) - allocated)
+					/ 1024 + " KiB.");
+
+			if (failed > 0) {
+				System.exit(1);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
 		}
 	}
-}
 
-/******************************************************************************/
+	private static String optionValue(String option) {
+		return option.substring(option.indexOf('=') + 1);
+	}
 
-public class Robot {
+	/**
+	 * Runs 'count' downloads (into recv-N.txt) or uploads of the firmware at
+	 * once in one TransferEngine.
+	 */
+	private static void fleet(String serverName, int count, String firmware,
+			Options options) {
+		long start = System.nanoTime();
 
-	public static final boolean DEBUG = true;
-	public static final boolean LOCALHOST = true;
+		try {
+			TransferEngine engine = new TransferEngine(count, options);
+
+			for (int i = 0; i < count; i += 1) {
+				ChannelUDP udp = engine.transport(serverName, options.port);
+				int priority = options.urgent == 0 ? TransferScheduler.NORMAL
+						: i < options.urgent ? TransferScheduler.URGENT
+								: TransferScheduler.BACKGROUND;
+				int weight = options.weights[i % options.weights.length];
+
+				if (firmware == null) {
+					Download download = new Download(udp, options.positional,
+							"recv-" + i + ".txt", options);
+
+					download.setAckPolicy(new AckPolicy(
+							options.ackPolicy.coalesce,
+							options.ackPolicy.delay,
+							options.ackPolicy.immediateOnGap,
+							options.ackPolicy.timerDriven));
+					engine.add(download, udp, priority, weight);
+				} else {
+					engine.add(new Upload(udp, firmware, options), udp,
+							priority, weight);
+				}
+			}
 
-	public static final byte SIGN_DOWNLOAD = 0x01;
-	public static final byte SIGN_UPLOAD = 0x02;
+			engine.run();
 
-	public static final int PORT_BARYK = 3220;
-	public static final int PORT_LOCALHOST = 4000;
+			System.out.println("Fleet: transfers=" + count + ", channels="
+					+ options.channels + ", stray packets="
+					+ engine.strayPackets + ", time="
+					+ (System.nanoTime() - start) / 1_000_000 + " ms");
+			System.out.println(engine.socketReport());
 
-	public static int PORT = -1;
+			if (engine.scheduler != null) {
+				System.out.println(engine.scheduler);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
 
-	/**************************************************************************/
+		Log.flush();
+	}
 
 	public static void main(String[] args) {
+		Options options = new Options();
+
+		args = Robot.parseOptions(args, options);
+
+		/* the benchmark measures the transfers, not the log */
+		if (args.length >= 1 && args[0].equals("bench")) {
+			System.setProperty(Log.PROPERTY, "off");
+		}
 
 		/* set up right port */
-		if (Robot.LOCALHOST) {
-			Robot.PORT = Robot.PORT_LOCALHOST;
+		if (options.port != -1) {
+			/* --port */
+		} else if (Robot.LOCALHOST) {
+			options.port = Robot.PORT_LOCALHOST;
 		} else {
-			Robot.PORT = Robot.PORT_BARYK;
+			options.port = Robot.PORT_BARYK;
+		}
+
+		if (options.jfr != null) {
+			Robot.record(options.jfr);
+		}
+
+		if (options.record != null) {
+			Robot.trace(options.record);
 		}
 
 		/* tests */
@@ -772,15 +10124,120 @@ public class Robot {
 		System.out.println("...");
 
 		/* ... */
-		if (args.length == 1) {
+		if (args.length == 1 && args[0].equals("test")) {
+			boolean ok = IntMap.test() & RangeSet.test()
+					& ReassemblyWindow.test() & TimerQueue.test()
+					& TokenBucket.test() & TransferScheduler.test()
+					& RttEstimator.test() & Handshake.test()
+					& PacketView.test() & ResumeJournal.test()
+					& AllocationBudget.test();
+
+			Log.flush();
+
+			if (!ok) {
+				System.exit(1);
+			}
+		} else if ((args.length == 3 || args.length == 4)
+				&& args[0].equals("fleet")) {
+			Robot.fleet(args[1], Integer.parseInt(args[2]),
+					args.length == 4 ? args[3] : null, options);
+		} else if (args.length >= 2 && args.length <= 4
+				&& args[0].equals("replay")
+				&& (args.length < 4 || args[2].equals("fast"))) {
+			boolean fast = args.length >= 3 && args[2].equals("fast");
+			int output = fast ? 3 : 2;
+
+			TraceReplay.run(args[1], fast, args.length > output ? args[output]
+					: TraceReplay.DEFAULT_OUTPUT, options);
+		} else if ((args.length == 3) && args[0].equals("serve")) {
+			Robot.serve(Integer.parseInt(args[1]), args[2], options);
+		} else if ((args.length == 1 || args.length == 2)
+				&& args[0].equals("bench")) {
+			boolean ok = false;
+
+			try {
+				ok = new MicroBenchmark().run(args.length == 2 ? args[1]
+						: null);
+			} catch (IOException e) {
+				e.printStackTrace();
+			} catch (IllegalStateException e) {
+				System.err.println("Can not run the benchmark: "
+						+ e.getMessage());
+			}
+
+			Log.flush();
+
+			if (!ok) {
+				System.exit(1);
+			}
+		} else if ((args.length == 4) && args[0].equals("push")) {
+			Robot.push(args[1], Integer.parseInt(args[2]), args[3], options);
+		} else if ((args.length == 3) && args[0].equals("proxy")) {
+			Robot.proxy(Integer.parseInt(args[1]), args[2], options);
+		} else if (args.length >= 2 && args[0].equals("sweep")) {
+			String[] grid = args.length > 2 ? Arrays.copyOfRange(
+					args, 2, args.length) : Sweep.DEFAULT_GRID;
+
+			new Sweep(args[1], options, grid).run();
+		} else if (args.length == 1) {
 			System.out.println("Starting: DOWNLOAD");
-			@SuppressWarnings("unused")
-			Download d = new Download(args[0]);
+			long start = System.nanoTime();
+
+			if (options.stream > 0) {
+				Robot.consume(Download.stream(args[0], options), start);
+				return;
+			}
+
+			try {
+				String file = Download.fetch(args[0], options).join();
+
+				System.out.println("The file " + file + " is ready after "
+						+ (System.nanoTime() - start) / 1_000_000 + " ms.");
+			} catch (CompletionException e) {
+				System.exit(1);
+			}
 		} else if (args.length == 2) {
 			System.out.println("Starting: UPLOAD");
-			System.out.println("//todo: do it");
+			if (new Upload(args[0], args[1], options).isFailed()) {
+				System.exit(1);
+			}
 		} else {
-			System.out.println("Usage: java robot.Robot <server> [firmware]");
+			System.out.println("Usage: java robot.Robot [options] <server> [firmware]");
+			System.out.println("Options: --positional  write packets straight to the file");
+			System.out.println("         --log=off|debug|trace  only errors, or the transfers in detail");
+			System.out.println("         --resume  continue an interrupted download (from a serve mode server)");
+			System.out.println("         --stream[=B]  checksum the data while they come");
+			System.out.println("         --pipeline  write the file in its own thread");
+			System.out.println("         --ack-every=N  ACK every N-th in-order packet");
+			System.out.println("         --ack-delay=MS  longest delay of an ACK");
+			System.out.println("         --no-gap-ack  do not ACK a gap at once");
+			System.out.println("         --no-ack-timer  do not repeat ACKs on a timer");
+			System.out.println("         --window=N  segments in flight during an upload");
+			System.out.println("         --channels=N  sockets shared by the fleet");
+			System.out.println("         --rate=B/s, --total-rate=B/s  limits of a transfer and of the fleet");
+			System.out.println("         --urgent=N  the first N transfers of the fleet go first");
+			System.out.println("         --weights=W,...  shares of the bandwidth of the fleet");
+			System.out.println("         --batch  drain all queued datagrams at each wakeup");
+			System.out.println("         --syn-timeout=MS  first SYN timeout (default: RTO)");
+			System.out.println("         --syn-backoff=F, --syn-jitter=F  growth and randomness of it");
+			System.out.println("         --syn-attempts=N  give up after N SYNs");
+			System.out.println("         --syn-parallel=N  SYNs sent at every attempt");
+			System.out.println("         --early-data  data may open the connection");
+			System.out.println("         --rcvbuf=B, --sndbuf=B  socket buffer sizes");
+			System.out.println("         --jfr=FILE  record the robot.* Flight Recorder events");
+			System.out.println("         --record=FILE  write a trace of all the datagrams");
+			System.out.println("         --port=N  port of the server (of the proxy)");
+			System.out.println("         --shards=N, --server-window=N, --pace=B/s  of the serve mode");
+			System.out.println("         --loss=P, --dup=P, --reorder=P  impairments of the proxy");
+			System.out.println("         --delay=MS, --jitter=MS, --bandwidth=B/s, --seed=N");
+			System.out.println("       java robot.Robot [options] fleet <server> <count> [firmware]");
+			System.out.println("       java robot.Robot [options] push <server>[,<server>...] <count> <firmware>");
+			System.out.println("       java robot.Robot [options] replay <trace> [fast] [output]");
+			System.out.println("       java robot.Robot [options] serve <port> <firmware>");
+			System.out.println("       java robot.Robot [options] proxy <port> <server>");
+			System.out.println("       java robot.Robot [options] sweep <server> [name=v1,v2,...]...");
+			System.out.println("       java robot.Robot bench [name]");
+			System.out.println("       java robot.Robot test");
 		}
 	}
 }